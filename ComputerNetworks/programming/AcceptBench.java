@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Accept rate of the tracker during a join burst, for acceptors=n (see
+// TrackerAcceptor).
+//
+// For every mode a Tracker is started in its own JVM on a throwaway file.
+// One selector thread here keeps `inflight` connections opening at once until
+// `connections` have been made; each sends
+//   hello
+//   close
+// and reads until the tracker closes it, the shortest join there is. Reports
+// wall time, joins per second, join latency (connect to close) and failed
+// joins.
+//
+// Modes are Tracker options joined by '+', e.g. "acceptors=4" or
+// "nio=2+acceptors=2". Every mode starts a fresh JVM, so runs of only a few
+// thousand joins mostly measure JIT warm-up.
+//
+// How to run: java AcceptBench [connections] [modes,...] [inflight] [port]
+//   e.g. java AcceptBench 20000 acceptors=1,acceptors=4,nio+acceptors=1,nio+acceptors=4 512
+public class AcceptBench {
+
+    private static final int FILE_CHUNKS = 16;
+    private static final long TIMEOUT_MS = 120_000;
+    private static final byte[] REQUEST = "hello\nclose\n".getBytes(StandardCharsets.US_ASCII);
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        String[] modes = (args.length > 1 ? args[1]
+                : "acceptors=1,acceptors=4,nio+acceptors=1,nio+acceptors=4").split(",");
+        int inflight = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 22000;
+
+        Path dir = Files.createTempDirectory("acceptbench");
+        Path file = dir.resolve("bench.dat");
+        byte[] data = new byte[FILE_CHUNKS * SharedFile.CHUNK_SIZE];
+        new Random(1).nextBytes(data);
+        Files.write(file, data);
+
+        System.out.println("java " + Runtime.version().feature() + ", " + Runtime.getRuntime().availableProcessors()
+                + " cores, " + connections + " joins, " + inflight + " in flight");
+        System.out.printf("%-24s %9s %9s %9s %9s %9s %7s%n",
+                "mode", "wall ms", "joins/s", "p50 ms", "p99 ms", "max ms", "failed");
+        try {
+            for (String mode : modes) {
+                run(mode, connections, inflight, port++, file);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static void run(String mode, int connections, int inflight, int port, Path file) throws Exception {
+        List<String> cmd = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"),
+                "Tracker", String.valueOf(port), file.toString(), "mmap", "watch=0"));
+        cmd.addAll(Arrays.asList(mode.split("\\+")));
+        Process tracker = new ProcessBuilder(cmd)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try {
+            waitForPort(port, tracker);
+
+            long[] latencies = new long[connections];
+            long start = System.nanoTime();
+            int failed = drive(port, connections, inflight, latencies);
+            long wallNs = System.nanoTime() - start;
+
+            long[] ok = Arrays.stream(latencies).filter(l -> l > 0).sorted().toArray();
+            System.out.printf("%-24s %9d %9.0f %9.1f %9.1f %9.1f %7d%n",
+                    mode, wallNs / 1_000_000, ok.length / (wallNs / 1e9),
+                    percentile(ok, 0.50), percentile(ok, 0.99), percentile(ok, 1.0), failed);
+        } finally {
+            tracker.destroy();
+            tracker.waitFor();
+        }
+    }
+
+    private static void waitForPort(int port, Process tracker) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket s = new Socket("127.0.0.1", port)) {
+                s.getOutputStream().write(REQUEST);
+                return;
+            } catch (IOException e) {
+                if (!tracker.isAlive() || System.currentTimeMillis() > deadline) {
+                    throw new IOException("tracker did not start on port " + port);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // CLIENT SIDE
+
+    private static final class Join {
+        final int id;
+        final long startNs = System.nanoTime();
+        final ByteBuffer out = ByteBuffer.wrap(REQUEST);
+
+        Join(int id) {
+            this.id = id;
+        }
+    }
+
+    // makes all joins, at most inflight at once; returns # failed,
+    // latencies[i] = 0 for a failed one
+    private static int drive(int port, int connections, int inflight, long[] latencies) throws IOException {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        ByteBuffer sink = ByteBuffer.allocate(64 * 1024);
+        int failed = 0;
+        int started = 0;
+        int open = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        try (Selector selector = Selector.open()) {
+            while ((started < connections || open > 0) && System.currentTimeMillis() < deadline) {
+                for (; open < inflight && started < connections; started++) {
+                    try {
+                        SocketChannel ch = SocketChannel.open();
+                        ch.configureBlocking(false);
+                        ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        Join j = new Join(started);
+                        int ops = ch.connect(address) ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT;
+                        ch.register(selector, ops, j);
+                        open++;
+                    } catch (IOException e) {
+                        failed++; // e.g. out of file descriptors or ephemeral ports
+                    }
+                }
+
+                selector.select(10);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Join j = (Join) key.attachment();
+                    SocketChannel ch = (SocketChannel) key.channel();
+                    try {
+                        if (key.isConnectable()) {
+                            ch.finishConnect();
+                            key.interestOps(SelectionKey.OP_WRITE);
+                        } else if (key.isWritable()) {
+                            ch.write(j.out);
+                            if (!j.out.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+                        } else if (key.isReadable()) {
+                            sink.clear();
+                            if (ch.read(sink) < 0) {
+                                // the tracker is done with us
+                                latencies[j.id] = System.nanoTime() - j.startNs;
+                                key.cancel();
+                                ch.close();
+                                open--;
+                            }
+                        }
+                    } catch (IOException e) {
+                        key.cancel();
+                        ch.close();
+                        failed++;
+                        open--;
+                    }
+                }
+            }
+
+            // timed out
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) {
+                    failed++;
+                }
+                key.channel().close();
+            }
+            failed += connections - started;
+        }
+        return failed;
+    }
+
+    private static double percentile(long[] sortedNs, double p) {
+        if (sortedNs.length == 0) return 0;
+        int i = (int) Math.ceil(p * sortedNs.length) - 1;
+        return sortedNs[Math.max(0, i)] / 1e6;
+    }
+}
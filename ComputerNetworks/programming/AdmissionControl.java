@@ -0,0 +1,168 @@
+import java.io.InterruptedIOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+// Caps how many peer sessions are sent chunks at once, so a join storm
+// doesn't split disk and uplink between every connection until nobody
+// finishes. A session takes a slot for each chunk batch it asks for
+// (chunks, chunk index, hello want=, REQUEST, BLOCKS) and gives it back when the
+// batch has been sent:
+//   - a free slot -> the batch is served right away
+//   - otherwise it waits in a queue of at most maxQueued batches, the peer
+//     holding the fewest chunks first (as last announced), then in order
+//   - queue full -> the peer is told "busy <retryMs>" (BUSY frame in v2)
+//     and the connection is closed; it comes back after retryMs
+class AdmissionControl {
+
+    private final int maxServing;
+    private final int maxQueued;
+    private final long retryMs;
+
+    // everything below is guarded by this
+    private int serving;
+    private long arrivals;
+    private final PriorityQueue<Ticket> queue = new PriorityQueue<>(
+            Comparator.<Ticket>comparingInt(t -> t.chunksHeld).thenComparingLong(t -> t.arrival));
+
+    private long admitted;
+    private long queued;
+    private long rejected;
+    private final LatencyHistogram waits = new LatencyHistogram();
+
+    // one batch's claim on a slot
+    final class Ticket {
+        private final int chunksHeld;
+        private final long arrival;
+        private final long queuedAt = System.nanoTime();
+        private Runnable onAdmit;
+        private boolean admitted;
+        private boolean closed;
+
+        private Ticket(int chunksHeld, long arrival) {
+            this.chunksHeld = chunksHeld;
+            this.arrival = arrival;
+        }
+
+        boolean admitted() {
+            synchronized (AdmissionControl.this) {
+                return admitted;
+            }
+        }
+
+        // gives the slot back, or leaves the queue
+        void close() {
+            Runnable next;
+            synchronized (AdmissionControl.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (!admitted) {
+                    queue.remove(this);
+                    return;
+                }
+                serving--;
+                next = admitNext();
+            }
+            if (next != null) {
+                next.run();
+            }
+        }
+    }
+
+    // maxQueued batches may wait for one of maxServing slots
+    AdmissionControl(int maxServing, int maxQueued, long retryMs) {
+        this.maxServing = maxServing;
+        this.maxQueued = maxQueued;
+        this.retryMs = retryMs;
+    }
+
+    long retryMs() {
+        return retryMs;
+    }
+
+    // thread per peer: blocks while queued; null if the queue is full (-> busy)
+    Ticket admit(int chunksHeld) throws InterruptedIOException {
+        synchronized (this) {
+            Ticket t = tryAdmit(chunksHeld, null);
+            if (t == null || t.admitted) {
+                return t;
+            }
+            try {
+                while (!t.admitted) {
+                    wait();
+                }
+                return t;
+            } catch (InterruptedException e) {
+                t.close();
+                throw new InterruptedIOException("interrupted while queued");
+            }
+        }
+    }
+
+    // null -> queue full (busy); admitted() -> serve now; otherwise onAdmit
+    // runs, on the thread that frees the slot, once it has been admitted
+    synchronized Ticket tryAdmit(int chunksHeld, Runnable onAdmit) {
+        Ticket t = new Ticket(chunksHeld, arrivals++);
+        if (serving < maxServing && queue.isEmpty()) {
+            serving++;
+            t.admitted = true;
+            admitted++;
+            waits.record(0);
+            return t;
+        }
+        if (queue.size() >= maxQueued) {
+            rejected++;
+            return null;
+        }
+        t.onAdmit = onAdmit;
+        queue.add(t);
+        queued++;
+        return t;
+    }
+
+    // the next waiting batch gets the free slot; returns its callback (nio) to run outside the lock
+    private Runnable admitNext() {
+        Ticket t = queue.poll();
+        if (t == null) {
+            return null;
+        }
+        serving++;
+        t.admitted = true;
+        admitted++;
+        waits.record(System.nanoTime() - t.queuedAt);
+        notifyAll();
+        return t.onAdmit;
+    }
+
+    // STATS
+
+    synchronized int serving() {
+        return serving;
+    }
+
+    synchronized int waiting() {
+        return queue.size();
+    }
+
+    synchronized long admittedCount() {
+        return admitted;
+    }
+
+    synchronized long queuedCount() {
+        return queued;
+    }
+
+    synchronized long rejectedCount() {
+        return rejected;
+    }
+
+    LatencyHistogram.Snapshot waits() {
+        return waits.snapshot();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "admit " + maxServing + " serving, " + maxQueued + " queued, retry after " + retryMs + " ms";
+    }
+}
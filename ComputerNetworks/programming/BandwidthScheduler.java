@@ -0,0 +1,251 @@
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Shares the tracker's uplink between peer connections.
+// Every chunk has to be granted before it is sent:
+//   - a global token bucket caps the total egress (rate bytes/s)
+//   - a token bucket per connection caps each peer (peerRate bytes/s)
+//   - when there aren't enough tokens the chunk waits, and waiting
+//     connections are served deficit round robin, so a peer looping
+//     "chunk index"/"next" gets the same share as everyone else
+// A rate of 0 means no cap. Buckets hold at most BURST_MS worth of tokens.
+// The tracker only runs one (and its TICK_MS thread) if rate or peerRate is set.
+class BandwidthScheduler {
+
+    private static final long TICK_MS = 10;
+    private static final long BURST_MS = 100;
+    private static final long MIN_BURST = 64 * 1024;
+    private static final long STATS_MS = 10_000;
+    private static final int QUANTUM = SharedFile.CHUNK_SIZE;
+
+    private final long rate;
+    private final long peerRate;
+    private final long burst;
+    private final long peerBurst;
+
+    // everything below is guarded by this
+    private long tokens;
+    private long lastRefill = System.nanoTime();
+    private final List<Flow> flows = new ArrayList<>();
+    private final List<Flow> waiting = new ArrayList<>(); // round robin order
+    private int cursor;
+
+    private long sentBytes;
+    private long throttled; // chunks that had to wait
+
+    // one peer connection
+    final class Flow {
+        final String name;
+        private long allowance;
+        private long deficit;
+        private long want;      // bytes waiting for a grant, 0 if none
+        private Runnable onGrant;
+        private long sent;
+        private long sentAtLastStats;
+
+        private Flow(String name) {
+            this.name = name;
+            this.allowance = peerBurst;
+        }
+
+        // blocks until `bytes` may be sent (thread per peer mode)
+        void acquire(int bytes) throws InterruptedIOException {
+            synchronized (BandwidthScheduler.this) {
+                if (tryAcquire(bytes, null)) {
+                    return;
+                }
+                try {
+                    while (want > 0) {
+                        BandwidthScheduler.this.wait();
+                    }
+                } catch (InterruptedException e) {
+                    waiting.remove(this);
+                    want = 0;
+                    throw new InterruptedIOException("interrupted while throttled");
+                }
+            }
+        }
+
+        // true -> send now; false -> onGrant runs (on the scheduler thread)
+        // once the bytes have been granted
+        boolean tryAcquire(int bytes, Runnable onGrant) {
+            synchronized (BandwidthScheduler.this) {
+                if (bytes <= 0) {
+                    return true;
+                }
+                refill();
+                // only jump the queue if nobody else is waiting
+                if (waiting.isEmpty() && canSend(this, bytes)) {
+                    grant(this, bytes);
+                    return true;
+                }
+                want = bytes;
+                this.onGrant = onGrant;
+                waiting.add(this);
+                throttled++;
+                return false;
+            }
+        }
+
+        void close() {
+            synchronized (BandwidthScheduler.this) {
+                flows.remove(this);
+                waiting.remove(this);
+            }
+        }
+    }
+
+    // rate / peerRate in bytes per second, 0 = unlimited
+    BandwidthScheduler(long rate, long peerRate) {
+        this.rate = rate;
+        this.peerRate = peerRate;
+        this.burst = Math.max(rate * BURST_MS / 1000, MIN_BURST);
+        this.peerBurst = Math.max(peerRate * BURST_MS / 1000, MIN_BURST);
+        this.tokens = burst;
+
+        Thread t = new Thread(this::run, "BandwidthScheduler");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    synchronized Flow register(String name) {
+        Flow f = new Flow(name);
+        flows.add(f);
+        return f;
+    }
+
+    // SCHEDULING
+
+    private void run() {
+        long nextStats = System.currentTimeMillis() + STATS_MS;
+        long sentAtLastStats = 0;
+        while (true) {
+            try {
+                Thread.sleep(TICK_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                refill();
+                serveWaiting();
+                notifyAll(); // blocked acquire() calls re-check their flow
+                if (System.currentTimeMillis() >= nextStats) {
+                    if (sentBytes != sentAtLastStats) {
+                        System.out.println("Tracker: " + stats(STATS_MS));
+                    }
+                    sentAtLastStats = sentBytes;
+                    nextStats += STATS_MS;
+                }
+            }
+        }
+    }
+
+    // deficit round robin over the waiting flows, until the global bucket
+    // runs dry or a whole round grants nothing
+    private void serveWaiting() {
+        boolean progress = true;
+        while (!waiting.isEmpty() && progress) {
+            progress = false;
+            for (int n = waiting.size(); n > 0 && !waiting.isEmpty(); n--) {
+                if (cursor >= waiting.size()) {
+                    cursor = 0;
+                }
+                Flow f = waiting.get(cursor);
+                if (!canSend(f, f.want)) {
+                    if (!globalTokensFor(f.want)) {
+                        return; // keep the cursor, this flow goes first next tick
+                    }
+                    cursor++; // over its own cap, skip
+                    continue;
+                }
+                f.deficit = Math.min(f.deficit + QUANTUM, f.want);
+                if (f.deficit < f.want) {
+                    cursor++;
+                    progress = true;
+                    continue;
+                }
+                f.deficit = 0;
+                long bytes = f.want;
+                f.want = 0;
+                waiting.remove(cursor);
+                grant(f, bytes);
+                progress = true;
+                if (f.onGrant != null) {
+                    Runnable r = f.onGrant;
+                    f.onGrant = null;
+                    r.run();
+                }
+            }
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        long elapsedNs = now - lastRefill;
+        if (elapsedNs < 1_000_000) {
+            return; // too little time to add whole bytes, keep accumulating
+        }
+        lastRefill = now;
+        if (rate > 0) {
+            tokens = Math.min(burst, tokens + rate * elapsedNs / 1_000_000_000L);
+        }
+        if (peerRate > 0) {
+            long add = peerRate * elapsedNs / 1_000_000_000L;
+            for (Flow f : flows) {
+                f.allowance = Math.min(peerBurst, f.allowance + add);
+            }
+        }
+    }
+
+    // a request bigger than a bucket goes once the bucket is full, leaving it in debt
+    private boolean globalTokensFor(long bytes) {
+        return rate == 0 || tokens >= Math.min(bytes, burst);
+    }
+
+    private boolean canSend(Flow f, long bytes) {
+        return globalTokensFor(bytes) && (peerRate == 0 || f.allowance >= Math.min(bytes, peerBurst));
+    }
+
+    private void grant(Flow f, long bytes) {
+        if (rate > 0) tokens -= bytes;
+        if (peerRate > 0) f.allowance -= bytes;
+        f.sent += bytes;
+        sentBytes += bytes;
+    }
+
+    // METRICS
+
+    synchronized long sentBytes() {
+        return sentBytes;
+    }
+
+    synchronized long throttledChunks() {
+        return throttled;
+    }
+
+    // egress over the last interval, slowest and fastest peer
+    private String stats(long intervalMs) {
+        long total = 0;
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (Flow f : flows) {
+            long d = f.sent - f.sentAtLastStats;
+            f.sentAtLastStats = f.sent;
+            total += d;
+            min = Math.min(min, d);
+            max = Math.max(max, d);
+        }
+        if (flows.isEmpty()) {
+            min = 0;
+        }
+        return "egress " + kbps(total, intervalMs) + " KB/s (cap " + (rate > 0 ? rate / 1024 + " KB/s" : "none")
+                + "), " + flows.size() + " peers, per peer " + kbps(min, intervalMs) + ".." + kbps(max, intervalMs)
+                + " KB/s (cap " + (peerRate > 0 ? peerRate / 1024 + " KB/s" : "none") + "), "
+                + waiting.size() + " waiting, " + throttled + " chunks throttled, " + sentBytes + " bytes total";
+    }
+
+    private static long kbps(long bytes, long intervalMs) {
+        return bytes * 1000 / intervalMs / 1024;
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.*;
+
+// Chunk lists for the batched tracker request
+//
+//   chunks <list>   -> for every index in order: "chunk size N" + N bytes
+//
+// <list> is comma separated indices and ranges, e.g. "0-499" or "3,7,12-20".
+// No "next" is needed between the chunks of a batch; an index the tracker
+// doesn't have gets "chunk size 0" like a single "chunk index" would.
+class ChunkBatch {
+
+    // most indices one request may name
+    static final int MAX_CHUNKS = 4096;
+
+    static int[] parse(String list) {
+        List<Integer> indices = new ArrayList<>();
+        for (String part : list.trim().split(",")) {
+            int dash = part.indexOf('-', 1);
+            int from = Integer.parseInt(part.substring(0, dash < 0 ? part.length() : dash).trim());
+            int to = dash < 0 ? from : Integer.parseInt(part.substring(dash + 1).trim());
+            // long: to - from overflows for e.g. "-2147483648-2147483647"
+            if (from < 0 || to < from || indices.size() + ((long) to - from + 1) > MAX_CHUNKS) {
+                throw new IllegalArgumentException("bad chunk list: " + list);
+            }
+            for (long i = from; i <= to; i++) {
+                indices.add((int) i);
+            }
+        }
+        int[] result = new int[indices.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = indices.get(i);
+        }
+        return result;
+    }
+
+    // runs of consecutive indices become ranges, order is kept
+    static String encode(List<Integer> indices) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < indices.size()) {
+            int from = indices.get(i);
+            int to = from;
+            while (i + 1 < indices.size() && indices.get(i + 1) == to + 1) {
+                to++;
+                i++;
+            }
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(from);
+            if (to > from) {
+                sb.append('-').append(to);
+            }
+            i++;
+        }
+        return sb.toString();
+    }
+}
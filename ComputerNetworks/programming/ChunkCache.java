@@ -0,0 +1,186 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Chunk payloads kept in memory so hot chunks (the early ones during a join
+// storm) aren't opened and read from disk for every request. Payloads live
+// in direct buffers, outside the heap, and the least recently used ones are
+// dropped once the total goes over the byte budget.
+// Two threads missing the same chunk at once may both read it; the second
+// copy is simply thrown away.
+// The selector threads of nio mode don't read on a miss (getIfLoaded): the
+// chunk goes out from the file and is read into the cache in the background.
+class ChunkCache {
+
+    // chunks waiting to be read in the background, more are skipped
+    private static final int MAX_QUEUED = 1024;
+
+    private final long budget;
+    private long bytes; // guarded by this
+
+    // access order -> eldest entry is the least recently used chunk
+    private final LinkedHashMap<String, ByteBuffer> chunks = new LinkedHashMap<>(1024, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // keys being read by the loader, started on first use
+    private final Set<String> loading = ConcurrentHashMap.newKeySet();
+    private ThreadPoolExecutor loader;
+
+    ChunkCache(long budgetBytes) {
+        this.budget = budgetBytes;
+    }
+
+    // `length` bytes of `file` from `offset`, as a read only buffer the caller may consume
+    ByteBuffer get(String key, Path file, long offset, int length) throws IOException {
+        ByteBuffer cached;
+        synchronized (this) {
+            cached = chunks.get(key);
+        }
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached.duplicate();
+        }
+        misses.incrementAndGet();
+
+        ByteBuffer data = ByteBuffer.allocateDirect(length);
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (data.hasRemaining()) {
+                if (source.read(data, offset + data.position()) < 0) {
+                    throw new EOFException("chunk " + key + " ends early in " + file);
+                }
+            }
+        }
+        data.flip();
+        ByteBuffer chunk = data.asReadOnlyBuffer();
+        if (length <= budget) {
+            put(key, chunk);
+        }
+        return chunk.duplicate();
+    }
+
+    // the cached chunk, null on a miss; nothing is read
+    ByteBuffer getIfLoaded(String key) {
+        ByteBuffer cached;
+        synchronized (this) {
+            cached = chunks.get(key);
+        }
+        if (cached == null) {
+            return null;
+        }
+        hits.incrementAndGet();
+        return cached.duplicate();
+    }
+
+    // reads the chunk into the cache on a background thread, unless it is
+    // already on its way or too many are waiting
+    void loadLater(String key, Path file, long offset, int length) {
+        if (!loading.add(key)) {
+            return;
+        }
+        try {
+            loaderPool().execute(() -> {
+                try {
+                    get(key, file, offset, length);
+                } catch (IOException e) {
+                    System.out.println("Tracker: could not cache chunk " + key + " - " + e.getMessage());
+                } finally {
+                    loading.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            loading.remove(key);
+        }
+    }
+
+    private synchronized ThreadPoolExecutor loaderPool() {
+        if (loader == null) {
+            loader = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(MAX_QUEUED), r -> {
+                Thread t = new Thread(r, "ChunkCacheLoader");
+                t.setDaemon(true);
+                return t;
+            });
+            loader.allowCoreThreadTimeOut(true);
+        }
+        return loader;
+    }
+
+    private synchronized void put(String key, ByteBuffer chunk) {
+        ByteBuffer old = chunks.put(key, chunk);
+        bytes += chunk.capacity() - (old != null ? old.capacity() : 0);
+
+        Iterator<ByteBuffer> eldest = chunks.values().iterator();
+        while (bytes > budget && eldest.hasNext()) {
+            bytes -= eldest.next().capacity();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    // drop every chunk whose key starts with prefix (e.g. a file that got unloaded)
+    synchronized void invalidate(String prefix) {
+        Iterator<Map.Entry<String, ByteBuffer>> it = chunks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ByteBuffer> e = it.next();
+            if (e.getKey().startsWith(prefix)) {
+                bytes -= e.getValue().capacity();
+                it.remove();
+            }
+        }
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    long evictions() {
+        return evictions.get();
+    }
+
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    String stats() {
+        return "chunk cache hits=" + hits() + " misses=" + misses() + " evictions=" + evictions()
+                + " bytes=" + bytes() + "/" + budget;
+    }
+
+    // prints stats every periodMs while there is traffic
+    void startStatsLog(long periodMs) {
+        Thread t = new Thread(() -> {
+            long last = -1;
+            while (true) {
+                try {
+                    Thread.sleep(periodMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long requests = hits() + misses();
+                if (requests != last) {
+                    System.out.println("Tracker: " + stats());
+                    last = requests;
+                }
+            }
+        }, "ChunkCacheStats");
+        t.setDaemon(true);
+        t.start();
+    }
+}
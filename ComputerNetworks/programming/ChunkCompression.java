@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Chunk compression on the tracker -> peer link. The peer offers the
+// encodings it can decode, most preferred first, and the tracker picks one:
+//
+//   text / hello   "encoding deflate,lz4"  ->  "encoding deflate"  (or "encoding identity")
+//                  hello: enc=deflate,lz4, answered by that line right after the hello line
+//   protocol v2    ENCODING frame both ways, same lists (see Frames)
+//
+// With an encoding picked, a chunk that got smaller goes out as
+//
+//   chunk size <decoded bytes> deflate <encoded bytes>  + encoded bytes
+//   ENCODED frame: index, decoded bytes (varints), encoded bytes
+//
+// and every other chunk exactly as before ("chunk size N", DATA).
+//
+// The tracker deflates a chunk the first time it is asked for and keeps the
+// result (SharedFile.deflatedChunk), as long as all deflated chunks together
+// stay under the budget. Once one doesn't fit, chunks not kept yet go raw
+// until budget is released, so no chunk is deflated again and again; the
+// kept ones are still offered and sent deflated. A chunk that doesn't get at least
+// 1/MIN_SAVING smaller is remembered as such and always sent raw. Only
+// deflate (java.util.zip) is built in; other names in an offer are skipped.
+// The selector threads of nio mode never deflate themselves: a chunk not
+// kept yet goes raw and is deflated on a few background threads
+// (SharedFile.keptDeflatedChunk).
+class ChunkCompression {
+
+    static final String IDENTITY = "identity";
+    static final String DEFLATE = "deflate";
+
+    // what peers offer
+    static final String OFFER = DEFLATE;
+
+    private static final int MIN_SAVING = 16;
+    // chunks waiting to be deflated in the background, more go raw until there is room
+    private static final int MAX_QUEUED = 1024;
+
+    // stored for chunks that don't shrink
+    static final ByteBuffer RAW = ByteBuffer.allocate(0);
+
+    private final long budget;
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong deflatedChunks = new AtomicLong();
+    private final AtomicLong rawChunks = new AtomicLong();
+    // a deflated chunk didn't fit the budget, cleared by release: no new ones
+    // are deflated meanwhile, the kept ones are still served
+    private volatile boolean full;
+    // deflates for the selector threads, started on first use
+    private ThreadPoolExecutor background;
+
+    // budget: bytes of deflated chunks kept in memory, 0 -> compression is never offered
+    ChunkCompression(long budget) {
+        this.budget = budget;
+    }
+
+    boolean enabled() {
+        return budget > 0;
+    }
+
+    // the tracker's pick from an offer like "deflate,lz4"
+    String negotiate(String offer) {
+        if (enabled() && offer != null) {
+            for (String name : offer.trim().split(",")) {
+                if (name.trim().equals(DEFLATE)) {
+                    return DEFLATE;
+                }
+            }
+        }
+        return IDENTITY;
+    }
+
+    // deflated copy of raw (consumed), or RAW if that doesn't save enough
+    ByteBuffer compress(ByteBuffer raw) {
+        int length = raw.remaining();
+        byte[] out = deflate(raw);
+        if (out.length > length - length / MIN_SAVING) {
+            rawChunks.incrementAndGet();
+            return RAW;
+        }
+        deflatedChunks.incrementAndGet();
+        return ByteBuffer.wrap(out).asReadOnlyBuffer();
+    }
+
+    // runs job on a background thread; false if too many are waiting already
+    boolean inBackground(Runnable job) {
+        try {
+            backgroundPool().execute(job);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private synchronized ThreadPoolExecutor backgroundPool() {
+        if (background == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            background = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(MAX_QUEUED), r -> {
+                        Thread t = new Thread(r, "ChunkDeflater");
+                        t.setDaemon(true);
+                        return t;
+                    });
+            background.allowCoreThreadTimeOut(true);
+        }
+        return background;
+    }
+
+    // room for a deflated chunk of `size` bytes; false once the budget is used up
+    boolean reserve(int size) {
+        while (true) {
+            long now = bytes.get();
+            if (now + size > budget) {
+                full = true;
+                return false;
+            }
+            if (bytes.compareAndSet(now, now + size)) {
+                return true;
+            }
+        }
+    }
+
+    void release(long size) {
+        bytes.addAndGet(-size);
+        full = false;
+    }
+
+    // true once the budget is used up: chunks not deflated yet go raw, kept ones still go deflated
+    boolean full() {
+        return full;
+    }
+
+    long bytes() {
+        return bytes.get();
+    }
+
+    long deflatedChunks() {
+        return deflatedChunks.get();
+    }
+
+    long rawChunks() {
+        return rawChunks.get();
+    }
+
+    // CODEC
+
+    static byte[] deflate(ByteBuffer raw) {
+        int length = raw.remaining();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            // worst case deflate output is a little over the input size
+            byte[] out = new byte[length + length / 100 + 64];
+            int n = 0;
+            while (!deflater.finished()) {
+                if (n == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                n += deflater.deflate(out, n, out.length - n);
+            }
+            return Arrays.copyOf(out, n);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    // the decodedLength bytes deflate(...) was made from
+    static byte[] inflate(byte[] encoded, int decodedLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(encoded);
+            byte[] out = new byte[decodedLength];
+            int n = 0;
+            while (n < decodedLength && !inflater.finished()) {
+                int got = inflater.inflate(out, n, decodedLength - n);
+                if (got == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += got;
+            }
+            if (n == decodedLength && !inflater.finished()) {
+                // the stream trailer is left, or more data than announced
+                n += inflater.inflate(new byte[1]);
+            }
+            if (n != decodedLength || !inflater.finished()) {
+                throw new IOException("deflated chunk decodes to " + n + " bytes, expected " + decodedLength);
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("bad deflated chunk - " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+// Where each chunk of a shared file starts and how long it is: every
+// chunkSize bytes (the default), or the cut points of a ContentChunker.
+class ChunkLayout {
+
+    private final long fileSize;
+    private final int chunkSize;        // fixed layout, 0 for content defined
+    private final long[] offsets;       // content defined: n + 1 values, the last is fileSize
+    private final ContentChunker chunker;
+    private final int maxChunkSize;
+
+    private ChunkLayout(long fileSize, int chunkSize, long[] offsets, ContentChunker chunker) {
+        this.fileSize = fileSize;
+        this.chunkSize = chunkSize;
+        this.offsets = offsets;
+        this.chunker = chunker;
+        int max = chunkSize;
+        if (offsets != null) {
+            for (int i = 0; i + 1 < offsets.length; i++) {
+                max = Math.max(max, (int) (offsets[i + 1] - offsets[i]));
+            }
+        }
+        this.maxChunkSize = max;
+    }
+
+    static ChunkLayout fixed(long fileSize, int chunkSize) {
+        return new ChunkLayout(fileSize, chunkSize, null, null);
+    }
+
+    // cuts the file, reading all of it
+    static ChunkLayout contentDefined(Path file, ContentChunker chunker) throws IOException {
+        long[] offsets = chunker.offsets(file);
+        return new ChunkLayout(offsets[offsets.length - 1], 0, offsets, chunker);
+    }
+
+    // from chunk lengths saved earlier (SplitManifest, ChunkManifest)
+    static ChunkLayout contentDefined(int[] lengths, ContentChunker chunker) {
+        long[] offsets = new long[lengths.length + 1];
+        for (int i = 0; i < lengths.length; i++) {
+            offsets[i + 1] = offsets[i] + lengths[i];
+        }
+        return new ChunkLayout(offsets[lengths.length], 0, offsets, chunker);
+    }
+
+    boolean isContentDefined() {
+        return chunker != null;
+    }
+
+    // null for a fixed layout
+    ContentChunker chunker() {
+        return chunker;
+    }
+
+    // "fixed <chunkSize>" or "cdc <min> <avg> <max>"
+    String spec() {
+        return chunker != null ? chunker.spec() : "fixed " + chunkSize;
+    }
+
+    long fileSize() {
+        return fileSize;
+    }
+
+    int totalChunks() {
+        if (offsets != null) {
+            return offsets.length - 1;
+        }
+        return (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    long offset(int index) {
+        return offsets != null ? offsets[index] : (long) index * chunkSize;
+    }
+
+    int length(int index) {
+        if (offsets != null) {
+            return (int) (offsets[index + 1] - offsets[index]);
+        }
+        return (int) Math.min(chunkSize, fileSize - (long) index * chunkSize);
+    }
+
+    int maxChunkSize() {
+        return maxChunkSize;
+    }
+}
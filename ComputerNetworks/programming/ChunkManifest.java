@@ -0,0 +1,228 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.*;
+
+// SHA-256 hash of every chunk plus the Merkle root over them.
+// The tracker builds it once the file is chunked and sends it on "manifest":
+//
+//   MANIFEST <n> <root hex>
+//   <hash of chunk 0 hex>
+//   ...
+//   <hash of chunk n-1 hex>
+//   END
+//
+// or "MANIFEST busy" while the hashes are still being computed.
+// Peers rebuild the root from the leaves, so a damaged list is caught too.
+//
+// Content defined chunks (see ContentChunker) have their own offsets, so then
+// the header names the chunking and every line carries offset and length:
+//
+//   MANIFEST <n> <root hex> cdc <min> <avg> <max>
+//   <hash of chunk 0 hex> <offset> <length>
+//   ...
+class ChunkManifest {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final byte[][] leaves;
+    private final byte[] root;
+    private final ChunkLayout layout; // content defined chunks, null for fixed size
+
+    ChunkManifest(byte[][] leaves) {
+        this(leaves, null);
+    }
+
+    ChunkManifest(byte[][] leaves, ChunkLayout layout) {
+        this.leaves = leaves;
+        this.root = merkleRoot(leaves);
+        this.layout = layout != null && layout.isContentDefined() ? layout : null;
+    }
+
+    int size() {
+        return leaves.length;
+    }
+
+    String rootHex() {
+        return HEX.formatHex(root);
+    }
+
+    // offsets of content defined chunks, null if they are fixed size
+    ChunkLayout layout() {
+        return layout;
+    }
+
+    // every chunk hash
+    byte[][] leaves() {
+        return leaves;
+    }
+
+    // chunk indices by hash, to find chunks we already have under another index
+    Map<String, List<Integer>> indicesByHash() {
+        Map<String, List<Integer>> indices = new HashMap<>();
+        for (int i = 0; i < leaves.length; i++) {
+            indices.computeIfAbsent(HEX.formatHex(leaves[i]), k -> new ArrayList<>(1)).add(i);
+        }
+        return indices;
+    }
+
+    static String hex(byte[] hash) {
+        return HEX.formatHex(hash);
+    }
+
+    boolean verify(int index, byte[] data) {
+        if (index < 0 || index >= leaves.length) {
+            return false;
+        }
+        return MessageDigest.isEqual(leaves[index], ChunkSplitter.sha256().digest(data));
+    }
+
+    // PROTOCOL
+
+    String encode() {
+        StringBuilder sb = new StringBuilder(leaves.length * 65 + 100);
+        sb.append("MANIFEST ").append(leaves.length).append(' ').append(rootHex());
+        if (layout != null) {
+            sb.append(' ').append(layout.spec());
+        }
+        sb.append('\n');
+        for (int i = 0; i < leaves.length; i++) {
+            sb.append(HEX.formatHex(leaves[i]));
+            if (layout != null) {
+                sb.append(' ').append(layout.offset(i)).append(' ').append(layout.length(i));
+            }
+            sb.append('\n');
+        }
+        sb.append("END\n");
+        return sb.toString();
+    }
+
+    // protocol v2 META payload: n (varint), root, n leaf hashes
+    // [content defined: min, avg, max, then n chunk lengths (varints)]
+    byte[] encodeBinary() {
+        int hashLen = root.length;
+        int cdcLen = layout != null ? 15 + 5 * leaves.length : 0;
+        ByteBuffer buf = ByteBuffer.allocate(Frames.varintSize(leaves.length) + hashLen * (leaves.length + 1) + cdcLen);
+        Frames.putVarint(buf, leaves.length);
+        buf.put(root);
+        for (byte[] leaf : leaves) {
+            buf.put(leaf);
+        }
+        if (layout != null) {
+            ContentChunker c = layout.chunker();
+            Frames.putVarint(buf, c.min);
+            Frames.putVarint(buf, c.avg);
+            Frames.putVarint(buf, c.max);
+            for (int i = 0; i < leaves.length; i++) {
+                Frames.putVarint(buf, layout.length(i));
+            }
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    static ChunkManifest parseBinary(ByteBuffer payload) throws IOException {
+        int n = Frames.getVarint(payload);
+        byte[] root = new byte[32];
+        if (n < 0 || payload.remaining() < 32L * (n + 1)) {
+            throw new IOException("bad manifest frame");
+        }
+        payload.get(root);
+        byte[][] leaves = new byte[n][32];
+        for (byte[] leaf : leaves) {
+            payload.get(leaf);
+        }
+        ChunkLayout layout = null;
+        if (payload.hasRemaining()) {
+            try {
+                ContentChunker chunker = new ContentChunker(
+                        Frames.getVarint(payload), Frames.getVarint(payload), Frames.getVarint(payload));
+                int[] lengths = new int[n];
+                for (int i = 0; i < n; i++) {
+                    lengths[i] = Frames.getVarint(payload);
+                }
+                layout = ChunkLayout.contentDefined(lengths, chunker);
+            } catch (RuntimeException e) {
+                throw new IOException("bad manifest frame: " + e.getMessage());
+            }
+        }
+        ChunkManifest manifest = new ChunkManifest(leaves, layout);
+        if (!MessageDigest.isEqual(manifest.root, root)) {
+            throw new IOException("manifest root mismatch");
+        }
+        return manifest;
+    }
+
+    static boolean isBusy(String header) {
+        return "MANIFEST busy".equals(header);
+    }
+
+    // header is the "MANIFEST <n> <root> [cdc ...]" line, leafLines the n lines after it
+    static ChunkManifest parse(String header, List<String> leafLines) throws IOException {
+        String[] parts = header.split("\\s+");
+        boolean cdc = parts.length == 7 && "cdc".equals(parts[3]);
+        if (!(parts.length == 3 || cdc) || !"MANIFEST".equals(parts[0])) {
+            throw new IOException("bad manifest header: " + header);
+        }
+        int n = Integer.parseInt(parts[1]);
+        if (leafLines.size() != n) {
+            throw new IOException("manifest has " + leafLines.size() + " hashes, expected " + n);
+        }
+
+        byte[][] leaves = new byte[n][];
+        int[] lengths = new int[n];
+        long offset = 0;
+        for (int i = 0; i < n; i++) {
+            String[] leaf = leafLines.get(i).trim().split(" ");
+            leaves[i] = HEX.parseHex(leaf[0]);
+            if (cdc) {
+                // offsets must follow each other with no gaps
+                if (leaf.length != 3 || Long.parseLong(leaf[1]) != offset) {
+                    throw new IOException("bad manifest line " + i + ": " + leafLines.get(i));
+                }
+                lengths[i] = Integer.parseInt(leaf[2]);
+                offset += lengths[i];
+            }
+        }
+        ChunkLayout layout = null;
+        if (cdc) {
+            try {
+                layout = ChunkLayout.contentDefined(lengths,
+                        ContentChunker.parseSpec(String.join(" ", Arrays.copyOfRange(parts, 3, 7))));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+        ChunkManifest manifest = new ChunkManifest(leaves, layout);
+        if (!manifest.rootHex().equals(parts[2])) {
+            throw new IOException("manifest root mismatch");
+        }
+        return manifest;
+    }
+
+    // UTILITIES
+
+    // pairs are hashed as SHA-256(0x01 | left | right); an odd node moves up unchanged
+    static byte[] merkleRoot(byte[][] leaves) {
+        if (leaves.length == 0) {
+            return ChunkSplitter.sha256().digest();
+        }
+        byte[][] level = leaves;
+        MessageDigest sha = ChunkSplitter.sha256();
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                int left = 2 * i;
+                if (left + 1 == level.length) {
+                    next[i] = level[left];
+                } else {
+                    sha.update((byte) 1);
+                    sha.update(level[left]);
+                    sha.update(level[left + 1]);
+                    next[i] = sha.digest();
+                }
+            }
+            level = next;
+        }
+        return level[0];
+    }
+}
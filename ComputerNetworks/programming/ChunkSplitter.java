@@ -0,0 +1,345 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntFunction;
+
+// Writes chunk_N.dat files for the tracker's split mode in the background.
+// The chunk range is split fork/join style into extents; each extent is read
+// from the source with one large positional read, then its chunks are hashed
+// (SHA-256) and written out. A chunk is marked ready as soon as its file is
+// complete, so the tracker can serve it while later extents are still running.
+// A finished split is recorded in a SplitManifest; when it still matches the
+// source on the next start, the chunk files are reused and nothing is read.
+// When the source has changed since that split, it is the next version (see
+// FileVersion). Every version writes its own directory (SplitManifest.chunkDir),
+// so files still being served for the old one never change; a chunk whose
+// hash is the same as before is hard linked from the old directory (copied
+// where links aren't supported) instead of written again.
+// Chunks are cut every chunkSize bytes, or by a ContentChunker (see ChunkLayout).
+// On a node of a tracker cluster every chunk is hashed but only the node's
+// own chunks get a file (see ShardMap).
+class ChunkSplitter {
+
+    // 2.5 MB sequential reads (256 x 10 kB), at least one chunk
+    private static final int EXTENT_BYTES = 256 * SharedFile.CHUNK_SIZE;
+
+    private final Path src;
+    private final Path chunkDir;          // this version's, under chunkRoot
+    private final long fileSize;
+    private final long mtime;
+    private final ChunkLayout layout;
+    private final int totalChunks;
+    private final int chunksPerExtent;
+    private final Path manifestPath;
+    private final SplitManifest reusable; // last split if it still matches, else null
+    private final BitSet keep;            // chunks written to files, null for all
+    private final int version;
+    private final byte[][] previous;      // hashes of the chunk files on disk from the last split, or null
+    private final Path previousDir;       // where those files are
+
+    private final AtomicIntegerArray ready; // 1 once chunk_N.dat is fully written
+    private final byte[][] hashes;
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();   // chunks that couldn't even be hashed
+    private final AtomicInteger finished = new AtomicInteger(); // done + failed
+    private final AtomicInteger rewritten = new AtomicInteger();
+    private long startNanos;
+    private Runnable whenDone;
+    private Runnable whenFinished;
+
+    // chunker null -> fixed chunkSize chunks. Content defined chunks are cut
+    // here, reading the whole file, unless the last split can be reused.
+    // chunkRoot: <file>_chunks, with a directory per version (see SplitManifest)
+    // minVersion: the version after one still loaded, 1 if there is none
+    // keep(totalChunks) names the chunks to write, null for all of them.
+    ChunkSplitter(Path src, Path chunkRoot, int chunkSize, ContentChunker chunker, int minVersion,
+                  IntFunction<BitSet> keep) throws IOException {
+        this.src = src;
+        this.fileSize = Files.size(src);
+        this.mtime = SplitManifest.mtime(src);
+        this.manifestPath = SplitManifest.pathFor(chunkRoot);
+
+        String chunking = chunker != null ? chunker.spec() : ChunkLayout.fixed(fileSize, chunkSize).spec();
+        SplitManifest saved = SplitManifest.load(manifestPath);
+        BitSet savedKeep = saved != null && keep != null ? keep.apply(saved.hashes().length) : null;
+        if (saved != null && saved.version() >= minVersion
+                && saved.matches(fileSize, mtime, chunking, chunkRoot, savedKeep)) {
+            this.reusable = saved;
+            this.layout = saved.layout();
+            this.keep = savedKeep;
+            this.version = saved.version();
+            this.chunkDir = saved.chunkDir(chunkRoot);
+            this.previous = null;
+            this.previousDir = null;
+        } else {
+            this.reusable = null;
+            // never the directory of a version still loaded
+            this.version = Math.max(saved != null ? saved.version() + 1 : 1, minVersion);
+            this.chunkDir = SplitManifest.versionDir(chunkRoot, version);
+            this.previous = saved != null ? saved.hashes() : null;
+            this.previousDir = saved != null ? saved.chunkDir(chunkRoot) : null;
+            this.layout = chunker != null
+                    ? ChunkLayout.contentDefined(src, chunker)
+                    : ChunkLayout.fixed(fileSize, chunkSize);
+            this.keep = keep != null ? keep.apply(layout.totalChunks()) : null;
+        }
+        this.totalChunks = layout.totalChunks();
+        long averageChunk = totalChunks > 0 ? Math.max(1, fileSize / totalChunks) : 1;
+        this.chunksPerExtent = (int) Math.max(1, EXTENT_BYTES / averageChunk);
+        this.ready = new AtomicIntegerArray(totalChunks);
+        this.hashes = new byte[totalChunks][];
+    }
+
+    int totalChunks() {
+        return totalChunks;
+    }
+
+    long fileSize() {
+        return fileSize;
+    }
+
+    ChunkLayout layout() {
+        return layout;
+    }
+
+    // where this version's chunk_N.dat files are
+    Path chunkDir() {
+        return chunkDir;
+    }
+
+    boolean isReady(int index) {
+        return ready.get(index) == 1;
+    }
+
+    // SHA-256 of chunk `index`, null until it is ready
+    byte[] hash(int index) {
+        return isReady(index) ? hashes[index] : null;
+    }
+
+    // every chunk hash; only complete once whenDone has run
+    byte[][] hashes() {
+        return hashes;
+    }
+
+    // of the file as split now, see FileVersion
+    int version() {
+        return version;
+    }
+
+    // hashes of the version before, null if there was none (or nothing changed)
+    byte[][] previousHashes() {
+        return previous;
+    }
+
+    // returns right away, the work runs on the common fork/join pool;
+    // whenDone runs once every chunk is written and hashed
+    // (right here if the chunks from the last split can be reused).
+    // whenFinished runs after that, or instead of it if the split failed:
+    // nothing is read from the last split's directory any more
+    void start(Runnable whenDone, Runnable whenFinished) {
+        this.whenDone = whenDone;
+        this.whenFinished = whenFinished;
+        startNanos = System.nanoTime();
+        if (totalChunks == 0) {
+            whenDone.run();
+            whenFinished.run();
+            return;
+        }
+        if (reuseLastSplit()) {
+            long ms = (System.nanoTime() - startNanos) / 1_000_000;
+            System.out.println("Tracker: reusing " + totalChunks + " chunks in " + chunkDir + " (checked in " + ms + " ms)");
+            whenDone.run();
+            whenFinished.run();
+            return;
+        }
+        try {
+            // the split on disk stops being the latest one
+            Files.deleteIfExists(manifestPath);
+            Files.createDirectories(chunkDir);
+        } catch (IOException e) {
+            System.out.println("Tracker: could not prepare " + chunkDir + " - " + e.getMessage());
+        }
+        ForkJoinPool.commonPool().execute(new SplitTask(0, totalChunks));
+    }
+
+    private boolean reuseLastSplit() {
+        if (reusable == null) {
+            return false;
+        }
+        byte[][] savedHashes = reusable.hashes();
+        for (int i = 0; i < totalChunks; i++) {
+            hashes[i] = savedHashes[i];
+            ready.set(i, 1);
+        }
+        done.set(totalChunks);
+        return true;
+    }
+
+    private class SplitTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        SplitTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunksPerExtent) {
+                try {
+                    splitExtent(from, to);
+                } catch (IOException e) {
+                    // chunks that are not ready keep being served from the source file,
+                    // they still need their hash for the manifest
+                    System.out.println("Tracker: chunking error at chunks " + from + "-" + (to - 1) + " - "
+                            + e.getMessage() + ", hashing the rest from " + src);
+                    hashUnwritten(from, to);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SplitTask(from, mid), new SplitTask(mid, to));
+        }
+    }
+
+    private void splitExtent(int from, int to) throws IOException {
+        long start = layout.offset(from);
+        int length = (int) (layout.offset(to - 1) + layout.length(to - 1) - start);
+
+        ByteBuffer extent = ByteBuffer.allocate(length);
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ)) {
+            while (extent.hasRemaining()) {
+                if (in.read(extent, start + extent.position()) == -1) {
+                    throw new EOFException("source file shrank while chunking");
+                }
+            }
+        }
+
+        MessageDigest sha = sha256();
+        for (int i = from; i < to; i++) {
+            int offset = (int) (layout.offset(i) - start);
+            ByteBuffer chunk = extent.slice(offset, layout.length(i));
+
+            sha.update(chunk.duplicate());
+            hashes[i] = sha.digest();
+
+            Path chunkPath = chunkDir.resolve("chunk_" + i + ".dat");
+            if ((keep == null || keep.get(i)) && !linkUnchanged(i, chunkPath)) {
+                rewritten.incrementAndGet();
+                // a file left by a split that died may be a link to an older version's
+                Files.deleteIfExists(chunkPath);
+                try (FileChannel out = FileChannel.open(chunkPath, StandardOpenOption.CREATE_NEW,
+                        StandardOpenOption.WRITE)) {
+                    while (chunk.hasRemaining()) {
+                        out.write(chunk);
+                    }
+                }
+            }
+
+            ready.set(i, 1);
+            chunkFinished(true);
+        }
+    }
+
+    // after splitExtent failed: hash the chunks of [from, to) it didn't finish
+    // straight from the source, without files. What can't be read counts as failed
+    private void hashUnwritten(int from, int to) {
+        int i = from;
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ)) {
+            MessageDigest sha = sha256();
+            for (; i < to; i++) {
+                if (isReady(i)) {
+                    continue;
+                }
+                ByteBuffer chunk = ByteBuffer.allocate(layout.length(i));
+                while (chunk.hasRemaining()) {
+                    if (in.read(chunk, layout.offset(i) + chunk.position()) == -1) {
+                        throw new EOFException("source file shrank while chunking");
+                    }
+                }
+                hashes[i] = sha.digest(chunk.array());
+                chunkFinished(true);
+            }
+        } catch (IOException e) {
+            System.out.println("Tracker: could not hash chunks " + i + "-" + (to - 1) + " - " + e.getMessage());
+            for (; i < to; i++) {
+                if (!isReady(i)) {
+                    chunkFinished(false);
+                }
+            }
+        }
+    }
+
+    // chunk_N.dat from the last split already holds chunk i: it is linked
+    // (or copied) to chunkPath, false if it has to be written
+    private boolean linkUnchanged(int i, Path chunkPath) {
+        if (previous == null || i >= previous.length || !MessageDigest.isEqual(previous[i], hashes[i])) {
+            return false;
+        }
+        Path old = previousDir.resolve("chunk_" + i + ".dat");
+        try {
+            if (Files.size(old) != layout.length(i)) {
+                return false;
+            }
+            Files.deleteIfExists(chunkPath); // left by a split that died
+            try {
+                Files.createLink(chunkPath, old);
+            } catch (UnsupportedOperationException | IOException e) {
+                Files.copy(old, chunkPath);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // once per chunk: hashed (and written if it is ours), or failed. The
+    // last one runs whenDone, or reports the failure: without every hash there
+    // is no manifest, and peers keep getting "busy" until the source changes
+    private void chunkFinished(boolean hashed) {
+        int n = hashed ? done.incrementAndGet() : done.get();
+        if (!hashed) {
+            failed.incrementAndGet();
+        }
+        if (finished.incrementAndGet() == totalChunks) {
+            int lost = failed.get();
+            if (lost > 0) {
+                System.out.println("Tracker: chunking " + src + " failed, " + lost + " of " + totalChunks
+                        + " chunks could not be read, manifest not published");
+                whenFinished.run();
+                return;
+            }
+            long ms = (System.nanoTime() - startNanos) / 1_000_000;
+            System.out.println("Tracker: chunking done, " + n + " chunks in " + ms + " ms"
+                    + (previous != null ? ", " + rewritten.get() + " chunk files rewritten" : ""));
+            try {
+                new SplitManifest(fileSize, mtime, version, layout, hashes).save(manifestPath);
+            } catch (IOException e) {
+                System.out.println("Tracker: could not write " + manifestPath + " - " + e.getMessage());
+            }
+            whenDone.run();
+            whenFinished.run();
+        } else if (hashed && n % Math.max(1, totalChunks / 10) == 0) {
+            System.out.println("Tracker: chunked " + n + "/" + totalChunks + " (" + (100L * n / totalChunks) + "%)");
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JRE ships SHA-256
+        }
+    }
+}
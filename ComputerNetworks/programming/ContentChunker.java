@@ -0,0 +1,149 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.Random;
+
+// Content defined chunk boundaries (FastCDC style Gear hash), so an insert
+// or delete only changes the chunks around it instead of shifting every
+// fixed 10 kB boundary after it.
+//
+// The hash is rolled over the bytes after the last cut:
+//   h = (h << 1) + GEAR[byte]
+// and the chunk ends where the top bits of h are all zero. Up to `avg` the
+// mask has one bit more than log2(avg) and after it one bit less
+// (normalized chunking), so lengths bunch up around avg; no cut before
+// `min`, a forced cut at `max`.
+//
+// Tracker and peers must cut the same way, so GEAR comes from a fixed seed
+// and the parameters travel in the manifest as "cdc <min> <avg> <max>".
+class ContentChunker {
+
+    static final int DEFAULT_MIN = 2 * 1024;
+    static final int DEFAULT_AVG = 8 * 1024;
+    static final int DEFAULT_MAX = 32 * 1024;
+
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x5eedc0deL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private static final int READ_BUFFER = 1 << 20;
+
+    final int min;
+    final int avg;
+    final int max;
+    private final long maskSmall; // before avg: harder to hit
+    private final long maskLarge; // after avg: easier to hit
+
+    ContentChunker(int min, int avg, int max) {
+        if (Integer.bitCount(avg) != 1 || min <= 0 || min > avg || avg > max) {
+            throw new IllegalArgumentException("cdc sizes need 0 < min <= avg <= max, avg a power of two: "
+                    + min + "/" + avg + "/" + max);
+        }
+        this.min = min;
+        this.avg = avg;
+        this.max = max;
+        int bits = Integer.numberOfTrailingZeros(avg);
+        this.maskSmall = topBits(bits + 1);
+        this.maskLarge = topBits(bits - 1);
+    }
+
+    ContentChunker() {
+        this(DEFAULT_MIN, DEFAULT_AVG, DEFAULT_MAX);
+    }
+
+    private static long topBits(int n) {
+        return n <= 0 ? 0 : -1L << (64 - n);
+    }
+
+    // "cdc <min> <avg> <max>", as in manifests
+    String spec() {
+        return "cdc " + min + " " + avg + " " + max;
+    }
+
+    // from "cdc <min> <avg> <max>"
+    static ContentChunker parseSpec(String spec) {
+        String[] parts = spec.trim().split("\\s+");
+        if (parts.length != 4 || !parts[0].equals("cdc")) {
+            throw new IllegalArgumentException("bad chunking spec: " + spec);
+        }
+        return new ContentChunker(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+    }
+
+    // length of the chunk starting at data[from]; data[from..end) has at least
+    // `max` bytes unless it is the end of the input
+    int cut(byte[] data, int from, int end) {
+        int n = end - from;
+        if (n <= min) {
+            return n;
+        }
+        int limit = Math.min(n, max);
+        int normal = Math.min(limit, avg);
+        long h = 0;
+        int i = min;
+        for (; i < normal; i++) {
+            h = (h << 1) + GEAR[data[from + i] & 0xff];
+            if ((h & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i++) {
+            h = (h << 1) + GEAR[data[from + i] & 0xff];
+            if ((h & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    interface ChunkConsumer {
+        // chunk bytes are data[offset, offset + length), only valid during the call
+        void accept(byte[] data, int offset, int length) throws IOException;
+    }
+
+    // cuts the whole stream, in order
+    void forEachChunk(InputStream in, ChunkConsumer consumer) throws IOException {
+        byte[] buf = new byte[Math.max(READ_BUFFER, 2 * max)];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        while (true) {
+            if (!eof && end - start < max) {
+                // keep at least one max sized chunk ahead
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+                int n = in.readNBytes(buf, end, buf.length - end);
+                end += n;
+                eof = end < buf.length;
+            }
+            if (start == end) {
+                return;
+            }
+            int length = cut(buf, start, end);
+            consumer.accept(buf, start, length);
+            start += length;
+        }
+    }
+
+    // chunk start offsets of a file plus its size at the end, n + 1 values
+    long[] offsets(Path file) throws IOException {
+        long[][] offsets = { new long[1024] };
+        int[] n = { 0 };
+        long[] pos = { 0 };
+        try (InputStream in = Files.newInputStream(file)) {
+            forEachChunk(in, (data, offset, length) -> {
+                if (n[0] + 1 == offsets[0].length) {
+                    offsets[0] = Arrays.copyOf(offsets[0], offsets[0].length * 2);
+                }
+                offsets[0][n[0]++] = pos[0];
+                pos[0] += length;
+            });
+        }
+        offsets[0][n[0]] = pos[0];
+        return Arrays.copyOf(offsets[0], n[0] + 1);
+    }
+}
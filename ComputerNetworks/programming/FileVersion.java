@@ -0,0 +1,81 @@
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+// Versions of a shared file. The tracker watches the sources it has loaded
+// (see TrackerCatalog); when one changes it is chunked again, rewriting only
+// the chunk files whose content changed (see ChunkSplitter), and published
+// as the next version with the chunks that differ from the one before:
+//
+//   VERSION <n> <changed>
+//
+// <changed> is a chunk list like "chunks" takes (see ChunkBatch) of the
+// indices whose hash differs from version n-1, "-" for none, "all" if the
+// peer isn't on version n-1 (or too much changed for one list), "busy" while
+// version n is still being hashed.
+// Peers send their version with "version <n>", "hello ... version=<n>" or a
+// VERSION frame (0: none yet) and on a new one keep every chunk that isn't
+// in <changed>. The version number is kept in the SplitManifest, so it
+// survives tracker restarts in split mode.
+class FileVersion {
+
+    static final String ALL = "all";
+    static final String BUSY = "busy";
+
+    final int number;
+    final int[] changed; // null -> all of them
+    final boolean busy;
+
+    private FileVersion(int number, int[] changed, boolean busy) {
+        this.number = number;
+        this.changed = changed;
+        this.busy = busy;
+    }
+
+    // indices whose hash is not the one at the same index in previous (null: every index)
+    static List<Integer> diff(byte[][] previous, byte[][] current) {
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < current.length; i++) {
+            if (previous == null || i >= previous.length || !MessageDigest.isEqual(previous[i], current[i])) {
+                changed.add(i);
+            }
+        }
+        return changed;
+    }
+
+    // WIRE FORMAT
+
+    // "VERSION ..." without the newline; changed null -> "all", hashing -> "busy"
+    static String encode(int number, List<Integer> changed, boolean hashing) {
+        String list;
+        if (hashing) {
+            list = BUSY;
+        } else if (changed == null || changed.size() > ChunkBatch.MAX_CHUNKS) {
+            list = ALL;
+        } else {
+            list = changed.isEmpty() ? "-" : ChunkBatch.encode(changed);
+        }
+        return "VERSION " + number + " " + list;
+    }
+
+    static FileVersion parse(String line) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length != 3 || !parts[0].equals("VERSION")) {
+            throw new IllegalArgumentException("expected VERSION, got " + line);
+        }
+        int number = Integer.parseInt(parts[1]);
+        switch (parts[2]) {
+            case BUSY:
+                return new FileVersion(number, null, true);
+            case ALL:
+                return new FileVersion(number, null, false);
+            default:
+                return new FileVersion(number, Hello.indices(parts[2]), false);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "version " + number;
+    }
+}
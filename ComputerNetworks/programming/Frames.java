@@ -0,0 +1,320 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+// Protocol v2: length prefixed binary frames instead of text lines.
+// A client asks for it with "rdy2" / "rdy2 <fileName>" instead of "rdy".
+// A tracker that speaks v2 answers "rdy2" and from then on both sides only
+// send frames. Anything else means an old tracker, and the client reconnects
+// with the text protocol.
+//
+//   frame = type (1 byte) | length (varint) | payload (length bytes)
+//
+//   HELLO    tracker -> peer   totalChunks, largest chunk size (the piece size for fixed chunks,
+//                              varints), file name (UTF-8)
+//   META     peer -> tracker   empty: asks for the manifest
+//            tracker -> peer   n (varint), root, n leaf hashes (32 bytes each); empty if not ready
+//                              + min, avg, max, n chunk lengths (varints) for content defined chunks
+//   REQUEST  peer -> tracker   (first, count) varint pairs; chunks come back in that order
+//   DATA     tracker -> peer   index (varint), chunk bytes (none if the tracker doesn't have it)
+//   HAVE     peer -> tracker   index (varint) of a chunk the peer now holds
+//   BITFIELD peer -> tracker   upload port (varint), host length (varint), host, BitSet bytes
+//   AVAIL    peer -> tracker   empty: asks for availability (like "availability")
+//            tracker -> peer   holder count per chunk (varints)
+//   CLOSE    either side, empty
+//   ENCODING peer -> tracker   encodings it can decode, e.g. "deflate" (UTF-8, comma separated)
+//            tracker -> peer   the one it picked, "identity" for none (see ChunkCompression)
+//   ENCODED  tracker -> peer   index, decoded length (varints), chunk bytes in the picked
+//                              encoding; instead of DATA for chunks that got smaller
+//   BUSY     tracker -> peer   retry after (ms, varint): no slot for this REQUEST, the tracker
+//                              closes the connection (see AdmissionControl)
+//   SHARDS   peer -> tracker   empty: asks for the cluster's shard map
+//            tracker -> peer   the map as text, "SHARDS 0" if not in a cluster (see ShardMap)
+//   VERSION  peer -> tracker   the file version the peer has (varint, 0 for none)
+//            tracker -> peer   "VERSION <n> <changed>" as text (see FileVersion)
+//   BLOCKS   peer -> tracker   (index, offset, length) varint triples: byte ranges of large
+//                              pieces, at most PieceBlocks.MAX_BLOCKS; BLOCKs come back in order
+//   BLOCK    tracker -> peer   index, offset, piece length (varints), the bytes: cut short at
+//                              the end of the piece, none past it; piece length 0 if the
+//                              tracker doesn't have the piece (see PieceBlocks)
+//
+// HAVE only counts after this connection sent a BITFIELD (which works like
+// "announce"). Varints are unsigned LEB128: 7 bits per byte, low bits first.
+class Frames {
+
+    static final byte HELLO = 1;
+    static final byte META = 2;
+    static final byte REQUEST = 3;
+    static final byte DATA = 4;
+    static final byte HAVE = 5;
+    static final byte BITFIELD = 6;
+    static final byte CLOSE = 7;
+    static final byte AVAIL = 8;
+    static final byte ENCODING = 9;
+    static final byte ENCODED = 10;
+    static final byte BUSY = 11;
+    static final byte SHARDS = 12;
+    static final byte VERSION = 13;
+    static final byte BLOCKS = 14;
+    static final byte BLOCK = 15;
+
+    // largest payload accepted
+    static final int MAX_FRAME = 16 << 20;
+
+    // VARINTS
+
+    static int varintSize(long v) {
+        int n = 1;
+        while ((v >>>= 7) != 0) {
+            n++;
+        }
+        return n;
+    }
+
+    static void putVarint(ByteBuffer buf, long v) {
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    // a varint that decodes to a negative int (5 bytes with the top bit set) is an
+    // IOException, as is one cut off by the end of the payload
+    static int getVarint(ByteBuffer buf) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!buf.hasRemaining()) {
+                throw new IOException("truncated frame");
+            }
+            byte b = buf.get();
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return checked(v);
+            }
+        }
+        throw new IOException("varint too long");
+    }
+
+    // -1 if buf doesn't hold the whole varint yet; doesn't move the position
+    static int peekVarint(ByteBuffer buf, int at) throws IOException {
+        int v = 0;
+        for (int shift = 0, i = at; shift < 32; shift += 7, i++) {
+            if (i >= buf.limit()) {
+                return -1;
+            }
+            byte b = buf.get(i);
+            v |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return checked(v);
+            }
+        }
+        throw new IOException("varint too long");
+    }
+
+    static int readVarint(InputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("end of stream inside a varint");
+            }
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return checked(v);
+            }
+        }
+        throw new IOException("varint too long");
+    }
+
+    private static int checked(int v) throws IOException {
+        if (v < 0) {
+            throw new IOException("varint out of range");
+        }
+        return v;
+    }
+
+    // FRAMES
+
+    // DATA header up to the chunk bytes, which the caller sends right after
+    static ByteBuffer dataHeader(int index, int chunkLength) {
+        int length = varintSize(index) + chunkLength;
+        ByteBuffer buf = ByteBuffer.allocate(1 + varintSize(length) + varintSize(index));
+        buf.put(DATA);
+        putVarint(buf, length);
+        putVarint(buf, index);
+        return buf.flip();
+    }
+
+    // ENCODED header up to the encoded chunk bytes
+    static ByteBuffer encodedHeader(int index, int decodedLength, int encodedLength) {
+        int length = varintSize(index) + varintSize(decodedLength) + encodedLength;
+        ByteBuffer buf = ByteBuffer.allocate(1 + varintSize(length) + varintSize(index) + varintSize(decodedLength));
+        buf.put(ENCODED);
+        putVarint(buf, length);
+        putVarint(buf, index);
+        putVarint(buf, decodedLength);
+        return buf.flip();
+    }
+
+    // BLOCK header up to the block's bytes
+    static ByteBuffer blockHeader(int index, int offset, int pieceLength, int blockLength) {
+        int length = varintSize(index) + varintSize(offset) + varintSize(pieceLength) + blockLength;
+        ByteBuffer buf = ByteBuffer.allocate(1 + varintSize(length) + length - blockLength);
+        buf.put(BLOCK);
+        putVarint(buf, length);
+        putVarint(buf, index);
+        putVarint(buf, offset);
+        putVarint(buf, pieceLength);
+        return buf.flip();
+    }
+
+    static ByteBuffer frame(byte type, byte[] payload) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + varintSize(payload.length) + payload.length);
+        buf.put(type);
+        putVarint(buf, payload.length);
+        buf.put(payload);
+        return buf.flip();
+    }
+
+    static ByteBuffer hello(SharedFile file) {
+        byte[] name = file.fileName().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(10 + name.length);
+        putVarint(payload, file.totalChunks());
+        putVarint(payload, file.maxChunkSize());
+        payload.put(name);
+        return frame(HELLO, Arrays.copyOf(payload.array(), payload.position()));
+    }
+
+    static ByteBuffer bitfield(String host, int port, BitSet have) {
+        byte[] hostBytes = host.getBytes(StandardCharsets.UTF_8);
+        byte[] bits = have.toByteArray();
+        ByteBuffer payload = ByteBuffer.allocate(10 + hostBytes.length + bits.length);
+        putVarint(payload, port);
+        putVarint(payload, hostBytes.length);
+        payload.put(hostBytes).put(bits);
+        return frame(BITFIELD, Arrays.copyOf(payload.array(), payload.position()));
+    }
+
+    static ByteBuffer varintFrame(byte type, int value) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + varintSize(value));
+        buf.put(type);
+        putVarint(buf, varintSize(value));
+        putVarint(buf, value);
+        return buf.flip();
+    }
+
+    // REQUEST for the given indices, runs of consecutive ones as one pair
+    static ByteBuffer request(List<Integer> indices) {
+        ByteBuffer payload = ByteBuffer.allocate(10 * indices.size());
+        int i = 0;
+        while (i < indices.size()) {
+            int first = indices.get(i);
+            int count = 1;
+            while (i + count < indices.size() && indices.get(i + count) == first + count) {
+                count++;
+            }
+            putVarint(payload, first);
+            putVarint(payload, count);
+            i += count;
+        }
+        return frame(REQUEST, Arrays.copyOf(payload.array(), payload.position()));
+    }
+
+    // indices named by a REQUEST payload, at most ChunkBatch.MAX_CHUNKS
+    static int[] parseRequest(ByteBuffer payload) throws IOException {
+        int total = 0;
+        int start = payload.position();
+        while (payload.hasRemaining()) {
+            getVarint(payload);
+            total += getVarint(payload);
+            if (total < 0 || total > ChunkBatch.MAX_CHUNKS) {
+                throw new IOException("REQUEST for too many chunks");
+            }
+        }
+        payload.position(start);
+        int[] indices = new int[total];
+        int n = 0;
+        while (payload.hasRemaining()) {
+            int first = getVarint(payload);
+            int count = getVarint(payload);
+            for (int i = 0; i < count; i++) {
+                indices[n++] = first + i;
+            }
+        }
+        return indices;
+    }
+
+    // BLOCKS for (index, offset, length) triples
+    static ByteBuffer blocks(List<int[]> blocks) {
+        ByteBuffer payload = ByteBuffer.allocate(15 * blocks.size());
+        for (int[] block : blocks) {
+            putVarint(payload, block[0]);
+            putVarint(payload, block[1]);
+            putVarint(payload, block[2]);
+        }
+        return frame(BLOCKS, Arrays.copyOf(payload.array(), payload.position()));
+    }
+
+    // the triples of a BLOCKS payload, flattened
+    static int[] parseBlocks(ByteBuffer payload) throws IOException {
+        int[] blocks = new int[3 * PieceBlocks.MAX_BLOCKS];
+        int n = 0;
+        while (payload.hasRemaining()) {
+            if (n == blocks.length) {
+                throw new IOException("BLOCKS for too many blocks");
+            }
+            blocks[n++] = getVarint(payload);
+            blocks[n++] = getVarint(payload);
+            blocks[n++] = getVarint(payload);
+        }
+        return Arrays.copyOf(blocks, n);
+    }
+
+    // blocking streams: reads one frame at a time into a reused buffer
+    static final class Reader {
+        private final InputStream in;
+        private ByteBuffer payload = ByteBuffer.allocate(1024);
+
+        Reader(InputStream in) {
+            this.in = in;
+        }
+
+        // type of the next frame, -1 at end of stream; its payload is then in payload()
+        int next() throws IOException {
+            int type = in.read();
+            if (type < 0) {
+                return -1;
+            }
+            int length = readVarint(in);
+            if (length > MAX_FRAME) {
+                throw new IOException("frame too large: " + length);
+            }
+            if (payload.capacity() < length) {
+                payload = ByteBuffer.allocate(Math.max(length, 2 * payload.capacity()));
+            }
+            payload.clear();
+            int off = 0;
+            while (off < length) {
+                int n = in.read(payload.array(), off, length - off);
+                if (n < 0) {
+                    throw new EOFException("end of stream inside a frame");
+                }
+                off += n;
+            }
+            payload.limit(length);
+            return type;
+        }
+
+        ByteBuffer payload() {
+            return payload;
+        }
+    }
+
+    static void write(OutputStream out, ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+}
@@ -52,43 +52,34 @@ public class Group_Peer {
 
     private void downloadChunksFromTracker() throws IOException {
         Socket sock = new Socket(TRACKER_IP, TRACKER_PORT);
-        InputStream is = sock.getInputStream();
-        OutputStream os = sock.getOutputStream();
+        LineCodec io = new LineCodec(sock);
         
         //rdy
-        sendLine(os, "rdy");
-        String line = readLine(is);
+        io.sendLine("rdy");
+        String line = io.readLine();
         if (!"rdy".equals(line)) throw new IOException("Handshake failed");
 
         //Send filename
-        String trackerFileName = readLine(is);
-        sendLine(os, trackerFileName);  // echo filename back
+        String trackerFileName = io.readLine();
+        io.sendLine(trackerFileName);  // echo filename back
 
         //Send totalChunks
-        String chunksStr = readLine(is);
+        String chunksStr = io.readLine();
         this.totalChunks = Integer.parseInt(chunksStr);
-        sendLine(os, chunksStr);  // echo chunk count back
 
-        //rdyD
-        sendLine(os, "rdyD");
+        //echo chunk count back + rdyD, one packet
+        io.writeLine(chunksStr).writeLine("rdyD");
 
         //Request each chunk by index
         for (int i = 0; i < totalChunks; i++) {
-            sendLine(os, "chunk index " + i);
+            io.writeLine("chunk index ", i).flush();
 
-            String sizeLine = readLine(is);
-            String[] parts = sizeLine.split("\\s+");
-            int chunkSizeInt = Integer.parseInt(parts[2]);
+            if (!io.nextLine()) throw new IOException("Unexpected EOF");
+            int chunkSizeInt = io.intField(2);
 
             System.out.println("Downloading chunk " + i + " of size " + chunkSizeInt);
 
-            byte[] chunkData = new byte[chunkSizeInt];
-            int bytesRead = 0;
-            while (bytesRead < chunkSizeInt) {
-                int r = is.read(chunkData, bytesRead, chunkSizeInt - bytesRead);
-                if (r == -1) throw new IOException("Unexpected EOF");
-                bytesRead += r;
-            }
+            byte[] chunkData = io.readBytes(chunkSizeInt);
 
             File chunkFile = new File("chunk_" + i);
             Files.write(chunkFile.toPath(), chunkData);
@@ -96,31 +87,14 @@ public class Group_Peer {
             chunkFiles.put(i, chunkFile);
             System.out.println("Downloaded chunk " + i);
 
-            sendLine(os, "next");
+            io.writeLine("next"); // goes out with the next request
         }
 
-        sendLine(os, "close");
+        io.sendLine("close");
         sock.close();
         System.out.println("Initial chunks downloaded from tracker: " + ownedChunks.size());
     }
 
-    private static void sendLine(OutputStream out, String msg) throws IOException {
-        out.write((msg + "\n").getBytes("UTF-8"));
-        out.flush();
-    }
-
-    private static String readLine(InputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while ((ch = in.read()) != -1) {
-            if (ch == '\n') break;
-            if (ch != '\r') sb.append((char) ch);
-        }
-        if (sb.length() == 0 && ch == -1) return null;
-        return sb.toString();
-    }
-
-
     //Upload neighbor server thread
     private class UploadServer implements Runnable {
 
@@ -144,29 +118,31 @@ public class Group_Peer {
 
             try {
 
-                BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-                PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-                OutputStream os = sock.getOutputStream();
+                LineCodec io = new LineCodec(sock);
 
                 //Send owned chunk list to neighbor
                 System.out.println("Sending owned chunk list " + ownedChunks + " to upload neighbor : " + UPLOAD_NEIGHBOR_PORT);
-                out.println(String.join(" ", ownedChunks.stream().map(String::valueOf).toArray(String[]::new)));
+                String sep = "";
+                for (int id : ownedChunks) {
+                    io.write(sep).write(id);
+                    sep = " ";
+                }
+                io.newLine().flush();
 
-                String line;
-                while ((line = in.readLine()) != null) {
-                    if ("close".equals(line)) break;
-                    int requestedChunk = Integer.parseInt(line);
+                while (io.nextLine()) {
+                    if (io.is("close")) break;
+                    int requestedChunk = io.intField(0);
                     System.out.println("Upload neighbor requested chunk " + requestedChunk);
                     File chunkFile = chunkFiles.get(requestedChunk);
                     if (chunkFile != null) {
                         byte[] data = Files.readAllBytes(chunkFile.toPath());
-                        out.println(data.length);
                         System.out.println("Sending chunk " + requestedChunk + " of size " + data.length);
-                        os.write(data);
-                        os.flush();
+                        io.writeLine("", data.length);
+                        io.write(data, 0, data.length);
+                        io.flush();
                         System.out.println("Sent chunk " + requestedChunk);
                     } else {
-                        out.println("ERROR");
+                        io.sendLine("ERROR");
                     }
                 }
 
@@ -186,12 +162,11 @@ public class Group_Peer {
 
                 try (Socket sock = new Socket(DOWNLOAD_NEIGHBOR_IP, DOWNLOAD_NEIGHBOR_PORT)) {
 
-                    BufferedReader in = new BufferedReader(new InputStreamReader(sock.getInputStream()));
-                    PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-                    InputStream is = sock.getInputStream();
+                    // one buffered stream for the lines and the chunk bytes
+                    LineCodec io = new LineCodec(sock);
 
                     //Get neighbor owned chunk list
-                    String chunkList = in.readLine();
+                    String chunkList = io.readLine();
                     Set<Integer> neighborChunks = new HashSet<>();
                     for (String s : chunkList.split(" ")) {
                         if (!s.isEmpty())
@@ -207,15 +182,10 @@ public class Group_Peer {
 
                     for (int chunkId : needed) {
 
-                        out.println(chunkId);
-                        int size = Integer.parseInt(in.readLine());
-                        byte[] data = new byte[size];
-                        int read = 0;
-                        while (read < size) {
-                            int n = is.read(data, read, size - read);
-                            if (n == -1) throw new IOException("Stream ended unexpectedly");
-                            read += n;
-                        }
+                        io.writeLine("", chunkId).flush();
+                        if (!io.nextLine()) throw new IOException("Stream ended unexpectedly");
+                        int size = io.intField(0);
+                        byte[] data = io.readBytes(size);
 
                         File chunkFile = new File("chunk_" + chunkId);
                         Files.write(chunkFile.toPath(), data);
@@ -224,7 +194,7 @@ public class Group_Peer {
                         System.out.println("Downloaded chunk " + chunkId);
                     }
 
-                    out.println("close");
+                    io.sendLine("close");
                     Thread.sleep(2000);
                    
                 } catch (Exception e) {
@@ -101,66 +101,63 @@ public class Group_Peer {
 
     private void connectToTrackerAndDownloadInitialChunks() {
         try (Socket socket = new Socket(trackerHost, trackerPort)) {
-            InputStream in = socket.getInputStream();
-            OutputStream out = socket.getOutputStream();
+            LineCodec io = new LineCodec(socket);
 
             // rdy / rdy
-            sendLine(out, "rdy");
-            String resp = readLine(in);
+            io.sendLine("rdy");
+            String resp = io.readLine();
             if (!"rdy".equals(resp)) {
                 System.err.println("Peer " + peerId + ": expected 'rdy' " + resp);
                 return;
             }
 
             // fName
-            resp = readLine(in); 
+            resp = io.readLine(); 
             fileName = resp;
-            sendLine(out, resp);
+            io.sendLine(resp);
 
             System.out.println("Peer " + peerId + ": tracker fileName=" + fileName);
 
             // # of chunks
-            resp = readLine(in);
+            resp = io.readLine();
             totalChunks = Integer.parseInt(resp);
-            sendLine(out, resp);
             System.out.println("Peer " + peerId + ": totalChunks=" + totalChunks);
             initialChunksFromTracker = totalChunks;
-            // ready to download
-            sendLine(out, "rdyD");
+            // echo and ready to download in one packet
+            io.writeLine(resp).writeLine("rdyD");
 
             // choose indices
             List<Integer> chosen = chooseInitialChunkIndices(totalChunks, initialChunksFromTracker);
             System.out.println("Peer " + peerId + ": initial chunk indices " + chosen);
 
             for (int idx : chosen) {
-                requestChunkFromTracker(idx, in, out);
-                sendLine(out, "next");
+                requestChunkFromTracker(idx, io);
+                // goes out with the next request
+                io.writeLine("next");
             }
 
-            sendLine(out, "close");
+            io.sendLine("close");
 
         } catch (IOException e) {
             System.err.println("Peer " + peerId + ": error talking to tracker" + e.getMessage());
         }
     }
 
-    private void requestChunkFromTracker(int index,
-                                         InputStream in,
-                                         OutputStream out) throws IOException {
-        sendLine(out, "chunk index " + index);
+    private void requestChunkFromTracker(int index, LineCodec io) throws IOException {
+        io.writeLine("chunk index ", index).flush();
 
-        String szLine = readLine(in); // "chunk size X"
-        if (szLine == null || !szLine.startsWith("chunk size")) {
-            System.err.println("Peer " + peerId + ": invalid size line for chunk " + index + ": " + szLine);
+        // "chunk size X"
+        if (!io.nextLine() || !io.startsWith("chunk size")) {
+            System.err.println("Peer " + peerId + ": invalid size line for chunk " + index + ": " + io.line());
             return;
         }
-        int size = Integer.parseInt(szLine.split("\\s+")[2]);
+        int size = io.intField(2);
         if (size <= 0) {
             System.err.println("Peer " + peerId + ": chunk " + index + " has size " + size);
             return;
         }
 
-        byte[] buf = rawRead(in, size);
+        byte[] buf = io.readBytes(size);
         saveChunkToDisk(index, buf);
         ownedChunks.add(index);
 
@@ -215,28 +212,27 @@ public class Group_Peer {
 
     private void handleUploadNeighbor(Socket socket) {
         try {
-            InputStream in = socket.getInputStream();
-            OutputStream out = socket.getOutputStream();
+            LineCodec io = new LineCodec(socket);
 
             // handshake rdy / rdy
-            String line = readLine(in);
+            String line = io.readLine();
             if (!"rdy".equals(line)) {
                 System.out.println("Peer " + peerId + " UPeer: expected 'rdy', got " + line);
                 return;
             }
-            sendLine(out, "rdy");
+            io.sendLine("rdy");
 
             // wait for "chunkIDList"
-            line = readLine(in);
+            line = io.readLine();
             if (!"chunkIDList".equals(line)) {
                 System.out.println("Peer " + peerId + " UPeer: expected 'chunkIDList', got " + line);
                 return;
             }
 
             // send our chunk ID list
-            sendChunkIdList(out);
+            sendChunkIdList(io);
 
-            line = readLine(in);
+            line = io.readLine();
             if ("close".equals(line)) {
                 // neighbor doesn't need anything after seeing our list
                 System.out.println("Peer " + peerId + " UPeer: neighbor closed after list");
@@ -248,11 +244,10 @@ public class Group_Peer {
             }
 
             // respond to requests
-            while ((line = readLine(in)) != null) {
-                if (line.startsWith("chunk index")) {
-                    int idx = Integer.parseInt(line.split("\\s+")[2]);
-                    sendChunkToNeighbor(idx, out);
-                } else if ("close".equals(line)) {
+            while (io.nextLine()) {
+                if (io.startsWith("chunk index")) {
+                    sendChunkToNeighbor(io.intField(2), io);
+                } else if (io.is("close")) {
                     System.out.println("Peer " + peerId + " UPeer: neighbor closed");
                     break;
                 } else {
@@ -267,27 +262,29 @@ public class Group_Peer {
         }
     }
 
-    private void sendChunkIdList(OutputStream out) throws IOException {
-        sendLine(out, "LIST " + ownedChunks.size());
-        for (int id : ownedChunks) {
-            sendLine(out, Integer.toString(id));
+    private void sendChunkIdList(LineCodec io) throws IOException {
+        // one write for the whole list
+        List<Integer> ids = new ArrayList<>(ownedChunks);
+        io.writeLine("LIST ", ids.size());
+        for (int id : ids) {
+            io.writeLine("", id);
         }
-        sendLine(out, "END");
+        io.writeLine("END").flush();
         System.out.println("Peer " + peerId + " UPeer: sent chunk ID list " + ownedChunks);
     }
 
-    private void sendChunkToNeighbor(int index, OutputStream out) throws IOException {
+    private void sendChunkToNeighbor(int index, LineCodec io) throws IOException {
         Path path = chunkDir.resolve("chunk_" + index + ".dat");
         if (!Files.exists(path)) {
-            sendLine(out, "chunk size 0");
+            io.sendLine("chunk size 0");
             System.out.println("Peer " + peerId + " UPeer: requested chunk " + index +
                     " but do not have it");
             return;
         }
         byte[] data = Files.readAllBytes(path);
-        sendLine(out, "chunk size " + data.length);
-        out.write(data);
-        out.flush();
+        io.writeLine("chunk size ", data.length);
+        io.write(data, 0, data.length);
+        io.flush();
 
         System.out.println("Peer " + peerId + " UPeer: sent chunk " + index);
     }
@@ -297,23 +294,22 @@ public class Group_Peer {
 
         while (true) {
             try (Socket socket = new Socket(downloadNeighborHost, downloadNeighborPort)) {
-                InputStream in = socket.getInputStream();
-                OutputStream out = socket.getOutputStream();
+                LineCodec io = new LineCodec(socket);
 
                 System.out.println("Peer " + peerId + " DPeer: connected to "
                         + downloadNeighborHost + ":" + downloadNeighborPort);
 
                 // handshake
-                sendLine(out, "rdy");
-                String line = readLine(in);
+                io.sendLine("rdy");
+                String line = io.readLine();
                 if (!"rdy".equals(line)) {
                     System.err.println("Peer " + peerId + " DPeer: expected 'rdy', got " + line);
                     continue;
                 }
 
                 // request chunk ID list
-                sendLine(out, "chunkIDList");
-                Set<Integer> neighborChunks = receiveChunkIdList(in);
+                io.sendLine("chunkIDList");
+                Set<Integer> neighborChunks = receiveChunkIdList(io);
                 System.out.println("Peer " + peerId + " DPeer: neighbor has " + neighborChunks);
 
                 // compute missing
@@ -322,7 +318,7 @@ public class Group_Peer {
                 System.out.println("Peer " + peerId + " DPeer: missing from neighbor: " + missing);
 
                 if (missing.isEmpty()) {
-                    sendLine(out, "close");
+                    io.sendLine("close");
 
                     // if already have the whole file, done
                     if (totalChunks > 0 && ownedChunks.size() >= totalChunks) {
@@ -337,25 +333,24 @@ public class Group_Peer {
                 }
 
                 // ready to download chunks
-                sendLine(out, "rdyD");
+                io.sendLine("rdyD");
 
                 for (int idx : missing) {
-                    sendLine(out, "chunk index " + idx);
-                    String szLine = readLine(in); // "chunk size X"
-                    if (szLine == null || !szLine.startsWith("chunk size")) {
+                    io.writeLine("chunk index ", idx).flush();
+                    if (!io.nextLine() || !io.startsWith("chunk size")) {
                         System.err.println("Peer " + peerId + " DPeer: invalid size line for chunk "
-                                + idx + ": " + szLine);
+                                + idx + ": " + io.line());
                         break;
                     }
-                    int size = Integer.parseInt(szLine.split("\\s+")[2]);
+                    int size = io.intField(2);
                     if (size <= 0) continue;
-                    byte[] data = rawRead(in, size);
+                    byte[] data = io.readBytes(size);
                     saveChunkToDisk(idx, data);
                     ownedChunks.add(idx);
                     System.out.println("Peer " + peerId + " DPeer: downloaded chunk " + idx);
                 }
 
-                sendLine(out, "close");
+                io.sendLine("close");
 
                 if (totalChunks > 0 && ownedChunks.size() >= totalChunks) {
                     System.out.println("Peer " + peerId + " DPeer: have all chunks!");
@@ -374,14 +369,12 @@ public class Group_Peer {
         }
     }
 
-    private Set<Integer> receiveChunkIdList(InputStream in) throws IOException {
+    private Set<Integer> receiveChunkIdList(LineCodec io) throws IOException {
         Set<Integer> ids = new HashSet<>();
-        String header = readLine(in); // "LIST n"
+        String header = io.readLine(); // "LIST n"
         if (header == null || !header.startsWith("LIST")) return ids;
-        String line;
-        while ((line = readLine(in)) != null) {
-            if ("END".equals(line)) break;
-            ids.add(Integer.parseInt(line.trim()));
+        while (io.nextLine() && !io.is("END")) {
+            ids.add(io.intField(0));
         }
         return ids;
     }
@@ -426,37 +419,6 @@ public class Group_Peer {
         }
     }
 
-    // HELPERS
-
-    private static void sendLine(OutputStream out, String msg) throws IOException {
-        out.write((msg + "\n").getBytes("UTF-8"));
-        out.flush();
-    }
-
-    private static String readLine(InputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while ((ch = in.read()) != -1) {
-            if (ch == '\n') break;
-            if (ch != '\r') sb.append((char) ch);
-        }
-        if (sb.length() == 0 && ch == -1) {
-            return null; // EOF
-        }
-        return sb.toString();
-    }
-
-    private static byte[] rawRead(InputStream in, int size) throws IOException {
-        byte[] buf = new byte[size];
-        int off = 0;
-        while (off < size) {
-            int r = in.read(buf, off, size - off);
-            if (r == -1) throw new EOFException("Unexpected EOF");
-            off += r;
-        }
-        return buf;
-    }
-
     // MAIN:
     // java Group_Peer <peerIndex>
     // where peerIndex is 0..4 corresponding to PEER_IPS/PORTS/DIRS
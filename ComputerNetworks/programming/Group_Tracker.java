@@ -1,13 +1,20 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Group_Tracker {
 
-    private static final int CHUNK_SIZE = 10 * 1024; // 10 kB
+    private static final int CHUNK_SIZE = SharedFile.CHUNK_SIZE; // 10 kB
 
     // === Hard-coded config ===
     private static final int TRACKER_PORT = 8000;
+    private static final long CACHE_BYTES = 64L * 1024 * 1024; // hot chunks kept in memory
 
     // TODO: change this to the full path of the file you want to share
     private static final String FILE_TO_SHARE =
@@ -16,192 +23,223 @@ public class Group_Tracker {
     private final String fileName;
     private final Path chunkDir;
     private final int totalChunks;
+    private final long fileSize;
+    private final ChunkCache cache = new ChunkCache(CACHE_BYTES);
+    private final TrackerMetrics metrics = new TrackerMetrics(cache, null, null, null, null);
 
     public Group_Tracker(String filePath) throws IOException {
         Path path = Paths.get(filePath);
         this.fileName = path.getFileName().toString();
 
-        this.chunkDir = path.getParent().resolve(fileName + "_chunks");
-        Files.createDirectories(chunkDir);
-
-        this.totalChunks = splitIntoChunks(path, CHUNK_SIZE);
+        Path chunkRoot = path.getParent().resolve(fileName + "_chunks");
+        this.fileSize = Files.size(path);
+
+        // chunks from the last run are reused while the file hasn't changed (see SplitManifest)
+        Path manifestPath = SplitManifest.pathFor(chunkRoot);
+        long mtime = SplitManifest.mtime(path);
+        ChunkLayout layout = ChunkLayout.fixed(fileSize, CHUNK_SIZE);
+        SplitManifest saved = SplitManifest.load(manifestPath);
+        if (saved != null && saved.matches(fileSize, mtime, layout.spec(), chunkRoot, null)) {
+            this.chunkDir = saved.chunkDir(chunkRoot);
+            this.totalChunks = saved.hashes().length;
+            System.out.println("Tracker: reusing chunks from the last run");
+        } else {
+            Files.deleteIfExists(manifestPath);
+            // always version 1 here
+            this.chunkDir = SplitManifest.versionDir(chunkRoot, 1);
+            Files.createDirectories(chunkDir);
+            List<byte[]> hashes = new ArrayList<>();
+            this.totalChunks = splitIntoChunks(path, CHUNK_SIZE, hashes);
+            new SplitManifest(fileSize, mtime, 1, layout, hashes.toArray(new byte[0][])).save(manifestPath);
+        }
         System.out.println("Tracker: file=" + fileName + ", total chunks=" + totalChunks);
         System.out.println("Tracker: chunks stored in " + chunkDir.toAbsolutePath());
     }
 
-    /* ========== Helper: line I/O ========== */
-
-    private static void sendLine(OutputStream out, String msg) throws IOException {
-        out.write((msg + "\n").getBytes("UTF-8"));
-        out.flush();
-    }
-
-    private static String readLine(InputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while ((ch = in.read()) != -1) {
-            if (ch == '\n') break;
-            if (ch != '\r') {
-                sb.append((char) ch);
-            }
-        }
-        if (sb.length() == 0 && ch == -1) {
-            return null; // EOF
-        }
-        return sb.toString();
-    }
-
     /* ========== Startup ========== */
 
     public void startServer(int port) throws IOException {
-        ServerSocket serverSocket = new ServerSocket(port);
+        // blocking channel accept, so sendChunk can transferTo the socket
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
         System.out.println("Tracker listening on TCP port " + port);
 
         while (true) {
-            Socket peerSocket = serverSocket.accept();
+            Socket peerSocket = serverChannel.accept().socket();
             System.out.println("Tracker: peer connected from " + peerSocket.getRemoteSocketAddress());
-            new Thread(() -> handlePeer(peerSocket)).start();
+            long acceptedAt = System.nanoTime();
+            new Thread(() -> handlePeer(peerSocket, acceptedAt)).start();
         }
     }
 
     /* ========== Protocol handling per peer ========== */
 
-    private void handlePeer(Socket socket) {
+    private void handlePeer(Socket socket, long acceptedAt) {
+        metrics.sessionOpened();
         try {
-            InputStream in = socket.getInputStream();
-            OutputStream out = socket.getOutputStream();
+            LineCodec io = new LineCodec(socket);
 
             // 1) rdy / rdy
-            String line = readLine(in);
+            String line = io.readLine();
             if (!"rdy".equals(line)) {
                 System.out.println("Tracker: expected 'rdy', got " + line);
                 return;
             }
-            sendLine(out, "rdy");
+            io.sendLine("rdy");
 
             // 2) send file name, expect echo (Group_Peer reads name, sends it back)
-            sendLine(out, fileName);
-            line = readLine(in); // echo
+            io.sendLine(fileName);
+            line = io.readLine(); // echo
             if (line == null || !line.equals(fileName)) {
                 System.out.println("Tracker: expected echo of fileName, got " + line);
                 return;
             }
 
             // 3) send # of chunks, expect echo
-            sendLine(out, Integer.toString(totalChunks));
-            line = readLine(in); // echo
+            io.sendLine(Integer.toString(totalChunks));
+            line = io.readLine(); // echo
             if (line == null || !line.equals(Integer.toString(totalChunks))) {
                 System.out.println("Tracker: expected echo of totalChunks, got " + line);
                 return;
             }
 
             // 4) wait for rdyD
-            line = readLine(in);
+            line = io.readLine();
             if (!"rdyD".equals(line)) {
                 System.out.println("Tracker: expected 'rdyD', got " + line);
                 return;
             }
+            metrics.handshake(System.nanoTime() - acceptedAt);
 
-            // 5) loop: handle "chunk index X", "next", "close"
+            // 5) loop: handle "chunk index X", "next", "chunks <list>", "close"
+            // matched in the codec's line buffer, no String per command
             while (true) {
-                line = readLine(in);
-                if (line == null) {
+                if (!io.nextLine()) {
                     System.out.println("Tracker: peer closed connection");
                     break;
                 }
 
-                if (line.startsWith("chunk index")) {
+                if (io.startsWith("chunk index")) {
                     // client is requesting a chunk
-                    String[] parts = line.split("\\s+");
-                    if (parts.length < 3) {
-                        System.out.println("Tracker: malformed 'chunk index' line: " + line);
+                    int index;
+                    try {
+                        index = io.intField(2);
+                    } catch (IOException | NumberFormatException e) {
+                        System.out.println("Tracker: malformed 'chunk index' line: " + io.line());
                         return;
                     }
-                    int index = Integer.parseInt(parts[2]);
-                    sendChunk(out, index);
+                    sendChunk(io, socket.getChannel(), index);
 
                     // After sending chunk, we expect either "next" or "close"
-                    String ctl = readLine(in);
-                    if (ctl == null) {
+                    if (!io.nextLine()) {
                         System.out.println("Tracker: peer closed after chunk");
                         break;
                     }
-                    if ("close".equals(ctl)) {
+                    if (io.is("close")) {
                         System.out.println("Tracker: peer sent 'close'");
                         break;
                     }
-                    if (!"next".equals(ctl)) {
-                        System.out.println("Tracker: expected 'next' or 'close', got " + ctl);
+                    if (!io.is("next")) {
+                        System.out.println("Tracker: expected 'next' or 'close', got " + io.line());
                         break;
                     }
                     // if "next", loop and wait for another "chunk index ..."
-                } else if ("close".equals(line)) {
+                } else if (io.startsWith("chunks ")) {
+                    // batch ("chunks 0-499", "chunks 3,7,12"): sent back to back, no "next" after it
+                    int[] indices;
+                    try {
+                        indices = ChunkBatch.parse(io.line().substring(7));
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Tracker: " + e.getMessage());
+                        return;
+                    }
+                    for (int index : indices) {
+                        sendChunk(io, socket.getChannel(), index);
+                    }
+                } else if (io.is("close")) {
                     System.out.println("Tracker: peer sent 'close'");
                     break;
                 } else {
                     // ignore unknown lines for robustness
-                    System.out.println("Tracker: ignoring line: " + line);
+                    System.out.println("Tracker: ignoring line: " + io.line());
                 }
             }
 
         } catch (IOException e) {
             System.out.println("Tracker: error with peer - " + e.getMessage());
         } finally {
+            metrics.sessionClosed();
             try { socket.close(); } catch (IOException ignored) {}
         }
     }
 
-    private void sendChunk(OutputStream out, int index) throws IOException {
-        Path chunkPath = chunkDir.resolve("chunk_" + index + ".dat");
-        if (!Files.exists(chunkPath)) {
+    private void sendChunk(LineCodec io, SocketChannel channel, int index) throws IOException {
+        long start = System.nanoTime();
+        metrics.chunkRequested(fileName, totalChunks, index);
+        if (index < 0 || index >= totalChunks) {
             System.out.println("Tracker: chunk file missing for index " + index);
-            sendLine(out, "chunk size 0");
+            io.sendLine("chunk size 0");
             return;
         }
 
-        long sizeLong = Files.size(chunkPath);
-        int size = (int) sizeLong; // safe: chunks are at most CHUNK_SIZE
-        sendLine(out, "chunk size " + size);
-
-        try (InputStream inChunk = Files.newInputStream(chunkPath)) {
-            byte[] buffer = new byte[1000];
-            int sentSoFar = 0;
-            while (sentSoFar < size) {
-                int toRead = Math.min(buffer.length, size - sentSoFar);
-                int n = inChunk.read(buffer, 0, toRead);
-                if (n == -1) break;
-                out.write(buffer, 0, n);
-                sentSoFar += n;
-            }
+        // hot chunks come from memory, the rest is read from chunk_N.dat once
+        Path chunkPath = chunkDir.resolve("chunk_" + index + ".dat");
+        int size = (int) Math.min(CHUNK_SIZE, fileSize - (long) index * CHUNK_SIZE);
+        ByteBuffer chunk = cache.get("chunk_" + index, chunkPath, 0, size);
+
+        // header and chunk in one gather write
+        ByteBuffer[] reply = {
+            ByteBuffer.wrap(("chunk size " + size + "\n").getBytes("UTF-8")),
+            chunk
+        };
+        while (chunk.hasRemaining()) {
+            channel.write(reply);
         }
-        out.flush();
-        System.out.println("Tracker: sent chunk " + index + " (" + sizeLong + " bytes)");
+        System.out.println("Tracker: sent chunk " + index + " (" + size + " bytes)");
+        metrics.chunkSent(size, System.nanoTime() - start);
     }
 
     /* ========== Utilities ========== */
 
-    // Split file into fixed-size chunk files on disk
-    private int splitIntoChunks(Path src, int chunkSize) throws IOException {
+    // Split file into fixed-size chunk files on disk, SHA-256 of each goes into hashes
+    private int splitIntoChunks(Path src, int chunkSize, List<byte[]> hashes) throws IOException {
         int idx = 0;
         byte[] buffer = new byte[chunkSize];
+        MessageDigest sha = ChunkSplitter.sha256();
 
         try (InputStream in = Files.newInputStream(src)) {
             int read;
-            while ((read = in.read(buffer)) != -1) {
+            // full chunks only, the sizes have to match what SplitManifest checks
+            while ((read = in.readNBytes(buffer, 0, chunkSize)) > 0) {
                 Path chunkPath = chunkDir.resolve("chunk_" + idx + ".dat");
                 try (OutputStream out = Files.newOutputStream(chunkPath)) {
                     out.write(buffer, 0, read);
                 }
+                sha.update(buffer, 0, read);
+                hashes.add(sha.digest());
                 idx++;
             }
         }
         return idx;
     }
 
-    /* ========== Main (no command line args) ========== */
+    /* ========== Main ========== */
 
+    // only option: admin=port -> metrics on http://127.0.0.1:port/metrics (default off)
     public static void main(String[] args) throws Exception {
         Group_Tracker tracker = new Group_Tracker(FILE_TO_SHARE);
+        for (String arg : args) {
+            if (arg.startsWith("admin=")) {
+                int adminPort = Integer.parseInt(arg.substring(6));
+                try {
+                    tracker.metrics.startAdminServer(adminPort);
+                } catch (IOException e) {
+                    System.out.println("Tracker: no metrics, port " + adminPort + " - " + e.getMessage());
+                }
+            } else {
+                System.out.println("Tracker: unknown option " + arg);
+            }
+        }
         tracker.startServer(TRACKER_PORT);
     }
 }
\ No newline at end of file
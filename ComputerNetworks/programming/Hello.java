@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.util.*;
+
+// One round trip handshake, instead of rdy -> fileName echo -> # of chunks
+// echo -> rdyD and then announce / manifest / availability / peers one at a time:
+//
+//   hello [resume=<token>] [host=<host> port=<uploadPort> have=<bitfield>]
+//         [manifest] [avail] [peers=<max>] [want=<list>] [enc=<encodings>]
+//         [shards] [version=<n>] [file=<fileName>]
+//
+// The tracker answers, all in one write:
+//
+//   hello <token> <totalChunks> <fileName>
+//   encoding <name>        if "enc=" was sent (see ChunkCompression)
+//   SHARDS ...             if "shards" (see ShardMap)
+//   VERSION ...            if "version=" (see FileVersion)
+//   MANIFEST ...           if "manifest" was asked for (see ChunkManifest)
+//   AVAIL ...              if "avail"
+//   PEERS n ... END        if "peers=<max>"
+//   chunk size N + bytes   for every index in <list>, like "chunks <list>"
+//
+// after which the connection takes the usual commands (chunks, announce, ..., close).
+// host/port/have work like "announce", <list> like "chunks" (see ChunkBatch)
+// or "-" for none.
+// file= comes last, the name runs to the end of the line.
+//
+// <token> names the session on the tracker. A peer that reconnects with
+// resume=<token> gets the same file and stays announced, so it can leave out
+// file=, host/port/have and manifest and put its next want= in the hello:
+// chunks in the first round trip. An unknown or expired token is ignored and
+// a new one handed out.
+//
+// Peers use the same line between each other (see Peer):
+//
+//   hello [resume=<token>] [want=<list>] [version=<n>]
+//       ->  hello <token> <list it sends | ->  + chunk size N + bytes for each
+//
+// A neighbor on another version of the file sends nothing.
+//
+// A resumed neighbor session without want= still wants what it wanted
+// last time, minus what it has been sent since.
+class Hello {
+
+    static final int MAX_TOKENS = 10_000;
+    static final long TOKEN_TTL_MS = 10 * 60_000;
+
+    String resume;
+    String host;
+    int port = -1;
+    String have;
+    boolean manifest;
+    boolean avail;
+    int peers = -1;
+    String want;
+    String enc;
+    boolean shards;
+    int version = -1;
+    String file;
+
+    static boolean isHello(String line) {
+        return line.equals("hello") || line.startsWith("hello ");
+    }
+
+    static Hello parse(String line) {
+        Hello h = new Hello();
+        int fileAt = line.indexOf(" file=");
+        if (fileAt >= 0) {
+            h.file = line.substring(fileAt + 6).trim();
+            line = line.substring(0, fileAt);
+        }
+        String[] parts = line.trim().split("\\s+");
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i];
+            int eq = part.indexOf('=');
+            String key = eq >= 0 ? part.substring(0, eq) : part;
+            String value = eq >= 0 ? part.substring(eq + 1) : null;
+            switch (key) {
+                case "resume": h.resume = value; break;
+                case "host": h.host = value; break;
+                case "port": h.port = Integer.parseInt(value); break;
+                case "have": h.have = value; break;
+                case "manifest": h.manifest = true; break;
+                case "avail": h.avail = true; break;
+                case "peers": h.peers = Integer.parseInt(value); break;
+                case "want": h.want = value; break;
+                case "enc": h.enc = value; break;
+                case "shards": h.shards = true; break;
+                case "version": h.version = Integer.parseInt(value); break;
+                default: break; // newer peers may send more, skip it
+            }
+        }
+        return h;
+    }
+
+    // TRACKER SIDE
+
+    // what a resume token brings back on the tracker
+    static final class TrackerState {
+        final String fileName;
+        volatile String announcedAs;
+
+        TrackerState(String fileName) {
+            this.fileName = fileName;
+        }
+    }
+
+    // a hello the tracker has accepted
+    static final class Accepted {
+        SharedFile file;    // null -> "unknown file"
+        String announcedAs; // swarm key, null if never announced
+        String reply;       // everything before the chunks
+        String encoding = ChunkCompression.IDENTITY; // for the chunks from here on
+        int[] want = new int[0];
+    }
+
+    // the file accept picks for this line, null if there is none
+    static String fileName(String line, TrackerCatalog catalog, SessionTokens<TrackerState> sessions) {
+        Hello h = parse(line);
+        TrackerState state = sessions.resume(h.resume);
+        if (state != null) {
+            return state.fileName;
+        }
+        return catalog.nameIn(h.file != null ? "hello " + h.file : "hello");
+    }
+
+    static Accepted accept(String line, TrackerCatalog catalog, SessionTokens<TrackerState> sessions,
+                           ChunkCompression compression, ShardMap shards) throws IOException {
+        Hello h = parse(line);
+        Accepted a = new Accepted();
+
+        TrackerState state = sessions.resume(h.resume);
+        String token = h.resume;
+        if (state != null) {
+            a.file = catalog.get(state.fileName);
+            a.announcedAs = state.announcedAs;
+        } else {
+            a.file = catalog.select(h.file != null ? "hello " + h.file : "hello");
+        }
+        if (a.file == null) {
+            return a;
+        }
+        try {
+            a.reply = reply(h, a, token, state, sessions, compression, shards);
+        } catch (RuntimeException e) {
+            a.file.release(); // the caller never gets it
+            throw e;
+        }
+        return a;
+    }
+
+    // the reply to an accepted hello, a.file is set
+    private static String reply(Hello h, Accepted a, String token, TrackerState state,
+                                SessionTokens<TrackerState> sessions, ChunkCompression compression,
+                                ShardMap shards) {
+        SwarmRegistry swarm = a.file.swarm();
+        if (state == null) {
+            state = new TrackerState(a.file.fileName());
+            token = sessions.create(state);
+        }
+
+        if (h.host != null && h.port >= 0) {
+            a.announcedAs = swarm.announce(h.host, h.port, SwarmRegistry.decode(h.have != null ? h.have : "-"));
+            state.announcedAs = a.announcedAs;
+        } else if (a.announcedAs != null && !swarm.touch(a.announcedAs)) {
+            a.announcedAs = null; // dropped from the swarm meanwhile, announce again
+            state.announcedAs = null;
+        }
+        a.want = indices(h.want);
+
+        StringBuilder sb = new StringBuilder("hello ").append(token).append(' ')
+                .append(a.file.totalChunks()).append(' ').append(a.file.fileName()).append('\n');
+        if (h.enc != null) {
+            a.encoding = compression.negotiate(h.enc);
+            sb.append("encoding ").append(a.encoding).append('\n');
+        }
+        if (h.shards) {
+            sb.append(ShardMap.encode(shards)).append('\n');
+        }
+        if (h.version >= 0) {
+            sb.append(a.file.versionReply(h.version));
+        }
+        if (h.manifest) {
+            sb.append(a.file.manifestReply());
+        }
+        if (h.avail) {
+            sb.append(swarm.availabilityReply(a.file.totalChunks()));
+        }
+        if (h.peers >= 0) {
+            sb.append(swarm.peersReply("peers " + h.peers, a.announcedAs));
+        }
+        return sb.toString();
+    }
+
+    // PEER SIDE
+
+    // "hello <token> <totalChunks> <fileName>" from a tracker, null if it isn't one
+    static String[] parseTrackerReply(String line) {
+        if (line == null || !line.startsWith("hello ")) {
+            return null;
+        }
+        String[] parts = line.split(" ", 4);
+        return parts.length == 4 ? parts : null;
+    }
+
+    // want= value for a list of indices, capped at one batch; "-" for none
+    static String wantList(List<Integer> indices) {
+        if (indices.isEmpty()) {
+            return "-";
+        }
+        return ChunkBatch.encode(indices.subList(0, Math.min(indices.size(), ChunkBatch.MAX_CHUNKS)));
+    }
+
+    // a want= value or the list in a neighbor's reply, nothing for null / "-"
+    static int[] indices(String list) {
+        return list == null || list.equals("-") ? new int[0] : ChunkBatch.parse(list);
+    }
+}
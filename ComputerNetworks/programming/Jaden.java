@@ -3,6 +3,7 @@ import java.net.*;
 import java.util.*;
 //java Client <MyPort> <NeighborIP> <NeighborPort> <MyID> <Total>
 import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntPredicate;
 
 public class Jaden {
     private static int myPort;
@@ -17,9 +18,21 @@ public class Jaden {
     private static int totalChunksInNetwork = 0;
     private static String myDir;
     private static String finalFileName = "output.dat";
+    // chunk hashes from the tracker, neighbor chunks are checked against it
+    private static volatile ChunkManifest manifest;
+    // trackers that don't know "manifest" never answer it; chunks go unchecked then
+    private static final int MANIFEST_TIMEOUT_MS = 3000;
+    private static volatile boolean trackerLacksManifest = false;
+    private static volatile boolean neighborBlacklisted = false;
+    // runs one UploadHandler per neighbor, threads= / maxSessions= (see SessionExecutor)
+    private static SessionExecutor uploadHandlers;
     public static void main(String[] args) {
+        List<String> rest = new ArrayList<>();
+        uploadHandlers = SessionExecutor.fromArgs(args, rest, "UploadHandler");
+        args = rest.toArray(new String[0]);
         if (args.length < 5) {
-            System.out.println("Usage: java Client <MyPort> <NeighborHost> <NeighborPort> <MyID> <TotalClients>");
+            System.out.println("Usage: java Client <MyPort> <NeighborHost> <NeighborPort> <MyID> <TotalClients>"
+                    + " [threads=platform|virtual] [maxSessions=n]");
             return;
         }
         myPort = Integer.parseInt(args[0]);
@@ -32,7 +45,8 @@ public class Jaden {
         new File(myDir).mkdir();
 
         System.out.println("Client " + myID + " Started on Port " + myPort);
-        downloadFromTracker();
+        // Logic: Clients download a subset (ID % Total)
+        downloadFromTracker(i -> (i % totalClients) == myID);
         new Thread(() -> startServer()).start();
         try { Thread.sleep(1000); } catch (InterruptedException e) {}
         new Thread(() -> startClient()).start();
@@ -41,72 +55,75 @@ public class Jaden {
         }
     }
 
-    // helper
-    private static void sendLine(OutputStream out, String msg) throws IOException {
-        out.write((msg + "\n").getBytes("UTF-8"));
-        out.flush();
-    }
-    private static String readLine(InputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while ((ch = in.read()) != -1) {
-            if (ch == '\n') break;
-            if (ch != '\r') sb.append((char) ch);
-        }
-        if (sb.length() == 0 && ch == -1) return null;
-        return sb.toString();
-    }
-
-    private static void downloadFromTracker() {
+    private static void downloadFromTracker(IntPredicate want) {
         System.out.println("Tracker is connecting");
         try (Socket socket = new Socket(TRACKER_HOST, TRACKER_PORT)) {
-            InputStream in = socket.getInputStream();
-            OutputStream out = socket.getOutputStream();
+            LineCodec io = new LineCodec(socket);
 
-            sendLine(out, "rdy");
-            if (!"rdy".equals(readLine(in))) throw new IOException("Tracker not ready");
+            io.sendLine("rdy");
+            if (!"rdy".equals(io.readLine())) throw new IOException("Tracker not ready");
 
-            finalFileName = readLine(in);
-            sendLine(out, finalFileName);
+            finalFileName = io.readLine();
+            io.sendLine(finalFileName);
 
-            String chunksStr = readLine(in);
+            String chunksStr = io.readLine();
             totalChunksInNetwork = Integer.parseInt(chunksStr);
-            sendLine(out, chunksStr);
+            if (myBitfield == null) myBitfield = new AtomicIntegerArray(totalChunksInNetwork);
+            // echo + rdyD in one packet
+            io.writeLine(chunksStr).writeLine("rdyD").flush();
 
-            myBitfield = new AtomicIntegerArray(totalChunksInNetwork);
-            sendLine(out, "rdyD");
+            if (manifest == null && !trackerLacksManifest) requestManifest(io);
 
-            // Logic: Clients download a subset (ID % Total)
             for (int i = 0; i < totalChunksInNetwork; i++) {
-                if ((i % totalClients) == myID) {
-                    sendLine(out, "chunk index " + i);
-                    String sizeLine = readLine(in);
-                    if (sizeLine == null) break;
-                    long size = Long.parseLong(sizeLine.split("\\s+")[2]);
+                if (want.test(i)) {
+                    io.writeLine("chunk index ", i).flush();
+                    if (!io.nextLine()) break;
+                    int size = io.intField(2);
                     if (size > 0) {
-                        byte[] buffer = new byte[(int)size];
-                        int bytesRead = 0;
-                        while(bytesRead < size) {
-                            int res = in.read(buffer, bytesRead, (int)size - bytesRead);
-                            if(res == -1) break;
-                            bytesRead += res;
-                        }
-                        saveChunk(i, buffer);
-                        sendLine(out, "next");
+                        saveChunk(i, io.readBytes(size));
+                        io.writeLine("next"); // sent with the next request
                     }
                 }
             }
-            sendLine(out, "close");
+            io.sendLine("close");
             System.out.println("Tracker download finished. Owns " + chunksOwnedCount);
         } catch (IOException e) { e.printStackTrace(); }
     }
 
+    // "MANIFEST busy" or "MANIFEST n root" + n hash lines + "END";
+    // no answer within MANIFEST_TIMEOUT_MS -> the tracker doesn't have one
+    private static void requestManifest(LineCodec io) throws IOException {
+        io.sendLine("manifest");
+        String header;
+        io.setTimeout(MANIFEST_TIMEOUT_MS);
+        try {
+            header = io.readLine();
+        } catch (SocketTimeoutException e) {
+            System.out.println("Tracker doesn't answer 'manifest', chunks are not verified");
+            trackerLacksManifest = true;
+            return;
+        } finally {
+            io.setTimeout(0);
+        }
+        if (header == null || ChunkManifest.isBusy(header)) return;
+        List<String> leaves = new ArrayList<>();
+        String line;
+        while ((line = io.readLine()) != null && !line.equals("END")) leaves.add(line);
+        manifest = ChunkManifest.parse(header, leaves);
+        System.out.println("Manifest root " + manifest.rootHex());
+    }
+
     // --- P2P SERVER (Updated to Text Protocol) ---
     private static void startServer() {
         try (ServerSocket serverSocket = new ServerSocket(myPort)) {
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                new Thread(new UploadHandler(clientSocket)).start();
+                try {
+                    uploadHandlers.execute(new UploadHandler(clientSocket));
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    System.out.println("No thread for neighbor: " + e);
+                    clientSocket.close();
+                }
             }
         } catch (IOException e) { e.printStackTrace(); }
     }
@@ -117,52 +134,51 @@ public class Jaden {
 
         @Override
         public void run() {
-            try (InputStream in = socket.getInputStream();
-                 OutputStream out = socket.getOutputStream()) {
+            try (Socket s = socket) {
+                LineCodec io = new LineCodec(s);
 
                 while(true) {
-                    String msg = readLine(in);
+                    String msg = io.readLine();
                     if (msg == null) break;
 
                     if(msg.equals("close")) break;
                     if (!msg.equals("rdy")) continue;
-                    sendLine(out, "rdy");
+                    io.sendLine("rdy");
 
-                    msg = readLine(in);
+                    msg = io.readLine();
                     if (msg != null && msg.equals("chunkIDList")) {
                         List<Integer> ownedIDs = new ArrayList<>();
                         for(int i = 0; i < totalChunksInNetwork; i++) {
                             if (myBitfield.get(i) == 1) ownedIDs.add(i);
                         }
                         // Text Protocol: "LIST <size>" -> IDs -> "END"
-                        sendLine(out, "LIST " + ownedIDs.size());
-                        for (Integer id : ownedIDs) sendLine(out, String.valueOf(id));
-                        sendLine(out, "END");
+                        io.writeLine("LIST ", ownedIDs.size());
+                        for (Integer id : ownedIDs) io.writeLine("", id);
+                        io.writeLine("END").flush();
                     }
 
-                    msg = readLine(in);
+                    msg = io.readLine();
                     if (msg == null || !msg.equals("rdyD")) continue;
 
-                    while (true) {
-                        msg = readLine(in);
-                        if (msg == null || msg.equals("done") || msg.equals("close")) break;
+                    while (io.nextLine()) {
+                        if (io.is("done") || io.is("close")) break;
 
-                        if (msg.startsWith("chunk index ")) {
-                            int reqId = Integer.parseInt(msg.split(" ")[2]);
+                        if (io.startsWith("chunk index ")) {
+                            int reqId = io.intField(2);
                             if(reqId < totalChunksInNetwork && myBitfield.get(reqId) == 1) {
                                 File f = new File(myDir, "chunk_" + reqId + ".dat");
                                 if (f.exists()) {
                                     byte[] data = java.nio.file.Files.readAllBytes(f.toPath());
                                     // Text Protocol: "chunk size <bytes>"
-                                    sendLine(out, "chunk size " + data.length);
-                                    out.write(data);
-                                    out.flush();
+                                    io.writeLine("chunk size ", data.length);
+                                    io.write(data, 0, data.length);
+                                    io.flush();
 
                                     // *** LOGGING ADDED HERE ***
                                     System.out.println("server Sent chunk " + reqId);
 
-                                } else { sendLine(out, "chunk size 0"); }
-                            } else { sendLine(out, "chunk size 0"); }
+                                } else { io.sendLine("chunk size 0"); }
+                            } else { io.sendLine("chunk size 0"); }
                         }
                     }
                 }
@@ -175,52 +191,57 @@ public class Jaden {
         while (chunksOwnedCount < totalChunksInNetwork) {
             try {
                 Thread.sleep(1000);
-                try (Socket socket = new Socket(neighborHost, neighborPort);
-                     OutputStream out = socket.getOutputStream();
-                     InputStream in = socket.getInputStream()) {
+                // no hashes yet -> nothing to check neighbor chunks against
+                if (manifest == null) {
+                    downloadFromTracker(i -> false);
+                    continue;
+                }
+                // neighbor sent a bad chunk -> get the rest from the tracker
+                if (neighborBlacklisted) {
+                    downloadFromTracker(i -> myBitfield.get(i) == 0);
+                    continue;
+                }
+                try (Socket socket = new Socket(neighborHost, neighborPort)) {
+                    LineCodec io = new LineCodec(socket);
                     while (chunksOwnedCount < totalChunksInNetwork) {
-                        sendLine(out, "rdy");
-                        String resp = readLine(in);
+                        io.sendLine("rdy");
+                        String resp = io.readLine();
                         if (resp == null || !resp.equals("rdy")) break;
-                        sendLine(out, "chunkIDList");
+                        io.sendLine("chunkIDList");
                         // Parse List: "LIST n" -> lines -> "END"
-                        String listHeader = readLine(in);
+                        String listHeader = io.readLine();
                         if (listHeader == null || !listHeader.startsWith("LIST")) break;
                         List<Integer> neighborHas = new ArrayList<>();
-                        while(true) {
-                            String idLine = readLine(in);
-                            if(idLine == null || idLine.equals("END")) break;
-                            neighborHas.add(Integer.parseInt(idLine));
+                        while (io.nextLine() && !io.is("END")) {
+                            neighborHas.add(io.intField(0));
                         }
                         List<Integer> missing = new ArrayList<>();
                         for(Integer id : neighborHas) {
                             if(myBitfield.get(id) == 0) missing.add(id);
                         }
-                        sendLine(out, "rdyD");
+                        io.sendLine("rdyD");
                         if (missing.isEmpty()) {
-                            sendLine(out, "done");
+                            io.sendLine("done");
                             Thread.sleep(1000);
                             continue;
                         }
                         System.out.println("Download Peer Found " + missing.size() + " new chunks.");
                         for (int id : missing) {
-                            sendLine(out, "chunk index " + id);
-                            String sizeLine = readLine(in); // "chunk size X"
-                            if (sizeLine == null) break;
+                            io.writeLine("chunk index ", id).flush();
+                            if (!io.nextLine()) break; // "chunk size X"
 
-                            int size = Integer.parseInt(sizeLine.split("\\s+")[2]);
+                            int size = io.intField(2);
                             if(size > 0) {
-                                byte[] data = new byte[size];
-                                int read = 0;
-                                while(read < size) {
-                                    int r = in.read(data, read, size - read);
-                                    if(r == -1) break;
-                                    read += r;
+                                byte[] data = io.readBytes(size);
+                                if (!saveChunk(id, data)) {
+                                    System.out.println("Blacklisting neighbor " + neighborHost + ":" + neighborPort);
+                                    neighborBlacklisted = true;
+                                    break;
                                 }
-                                saveChunk(id, data);
                             }
                         }
-                        sendLine(out, "done");
+                        io.sendLine("done");
+                        if (neighborBlacklisted) break;
                     }
                 }
             } catch (Exception e) {
@@ -233,13 +254,19 @@ public class Jaden {
         System.out.println("File reassembled.");
     }
 
-    private static void saveChunk(int id, byte[] data) throws IOException {
-        if (myBitfield.get(id) == 1) return;
+    // false if the bytes don't match the manifest hash
+    private static boolean saveChunk(int id, byte[] data) throws IOException {
+        if (myBitfield.get(id) == 1) return true;
+        if (manifest != null && !manifest.verify(id, data)) {
+            System.out.println("Chunk " + id + " failed hash check");
+            return false;
+        }
         try (FileOutputStream fos = new FileOutputStream(new File(myDir, "chunk_" + id + ".dat"))) {
             fos.write(data);
         }
         myBitfield.set(id, 1);
         synchronized(Jaden.class) { chunksOwnedCount++; }
+        return true;
     }
 
     private static void combineChunks() {
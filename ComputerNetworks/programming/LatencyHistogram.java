@@ -0,0 +1,93 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock free latency histogram with HDR style log-linear buckets in
+// microseconds: 1 us wide up to 16 us, then 8 buckets per power of two
+// (within 12.5% of the real value) up to 2^40 us. Fixed memory, record() is
+// one atomic add, so it can sit on every chunk send.
+class LatencyHistogram {
+
+    private static final int LINEAR = 16;       // values below this get their own bucket
+    private static final int SUB_BITS = 3;      // 8 buckets per power of two above it
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = LINEAR + (MAX_EXPONENT - 4 + 1) * (1 << SUB_BITS);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sumMicros = new AtomicLong();
+
+    void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(bucket(micros));
+        sumMicros.addAndGet(micros);
+    }
+
+    private static int bucket(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return LINEAR + (exponent - 4) * (1 << SUB_BITS) + sub;
+    }
+
+    // highest value that lands in bucket i
+    private static long upperBound(int i) {
+        if (i < LINEAR) {
+            return i;
+        }
+        int exponent = 4 + (i - LINEAR) / (1 << SUB_BITS);
+        int sub = (i - LINEAR) % (1 << SUB_BITS);
+        return ((long) ((1 << SUB_BITS) + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    // a consistent enough copy for one scrape
+    Snapshot snapshot() {
+        long[] c = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            c[i] = counts.get(i);
+            total += c[i];
+        }
+        return new Snapshot(c, total, sumMicros.get());
+    }
+
+    static final class Snapshot {
+        private final long[] counts;
+        final long count;
+        final long sumMicros;
+
+        private Snapshot(long[] counts, long count, long sumMicros) {
+            this.counts = counts;
+            this.count = count;
+            this.sumMicros = sumMicros;
+        }
+
+        // values below 2^k us, for Prometheus "le" buckets (bucket edges line up with powers of two)
+        long countBelow(int k) {
+            long n = 0;
+            for (int i = 0; i < counts.length && upperBound(i) < (1L << k); i++) {
+                n += counts[i];
+            }
+            return n;
+        }
+
+        // value at quantile q in us, rounded up to its bucket; 0 when empty
+        long quantile(double q) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperBound(i);
+                }
+            }
+            return upperBound(counts.length - 1);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Buffered reader / writer for the newline terminated text protocol, shared
+// by every tracker and peer class instead of per class sendLine / readLine.
+//
+// Reads go through one buffer (no syscall per byte) and the current line
+// stays in a reused byte array, so is() / startsWith() / intField() look at
+// it without building Strings. Writes are collected until flush(); sendLine()
+// is writeLine() + flush() for a line that expects an answer.
+//
+// Read and write through the same LineCodec only; bytes it has buffered are
+// gone from the socket stream. input() hands them on when switching to
+// binary frames.
+class LineCodec {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // longest line accepted; a hello / announce carries a whole bitfield, and the
+    // tracker's nio sessions (TrackerSession) take the same lines
+    static final int MAX_LINE = 1 << 20;
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final Socket socket; // for read timeouts, null if built from streams
+
+    private final byte[] rbuf = new byte[BUFFER_SIZE];
+    private int rpos;
+    private int rlim;
+
+    private byte[] line = new byte[256];
+    private int lineLen;
+    private boolean kept; // nextLine() gives the current line again
+
+    private final byte[] wbuf = new byte[BUFFER_SIZE];
+    private int wpos;
+
+    LineCodec(Socket socket) throws IOException {
+        this(socket.getInputStream(), socket.getOutputStream(), socket);
+    }
+
+    LineCodec(InputStream in, OutputStream out) {
+        this(in, out, null);
+    }
+
+    private LineCodec(InputStream in, OutputStream out, Socket socket) {
+        this.in = in;
+        this.out = out;
+        this.socket = socket;
+    }
+
+    // reads after this throw SocketTimeoutException when nothing comes for ms
+    // (0: wait forever). Meant for waiting on a line that may never be sent;
+    // a line cut off by the timeout is lost
+    void setTimeout(int ms) throws IOException {
+        if (socket != null) {
+            socket.setSoTimeout(ms);
+        }
+    }
+
+    // READING
+
+    // next line into the line buffer ('\r' dropped); false at end of stream
+    boolean nextLine() throws IOException {
+        if (kept) {
+            kept = false;
+            return true;
+        }
+        lineLen = 0;
+        boolean any = false;
+        while (true) {
+            if (rpos == rlim && !fill()) {
+                return any;
+            }
+            any = true;
+            byte b = rbuf[rpos++];
+            if (b == '\n') {
+                return true;
+            }
+            if (b != '\r') {
+                if (lineLen == line.length) {
+                    if (lineLen >= MAX_LINE) {
+                        throw new IOException("line too long");
+                    }
+                    line = Arrays.copyOf(line, lineLen * 2);
+                }
+                line[lineLen++] = b;
+            }
+        }
+    }
+
+    // the next line, null at end of stream
+    String readLine() throws IOException {
+        return nextLine() ? line() : null;
+    }
+
+    // the next nextLine() / readLine() returns the current line again, for a
+    // reply that turned out to be the answer to something else
+    void keepLine() {
+        kept = true;
+    }
+
+    // current line
+    String line() {
+        return new String(line, 0, lineLen, StandardCharsets.UTF_8);
+    }
+
+    // current line equals s (ASCII)
+    boolean is(String s) {
+        return lineLen == s.length() && startsWith(s);
+    }
+
+    // current line starts with prefix (ASCII)
+    boolean startsWith(String prefix) {
+        if (lineLen < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (line[i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // field `n` (0 based, split on spaces / tabs) of the current line as an int,
+    // e.g. intField(2) of "chunk size 10240" is 10240
+    int intField(int n) throws IOException {
+        int i = 0;
+        for (int f = 0; ; f++) {
+            while (i < lineLen && (line[i] == ' ' || line[i] == '\t')) i++;
+            if (i == lineLen) {
+                throw new IOException("no field " + n + " in '" + line() + "'");
+            }
+            if (f == n) {
+                break;
+            }
+            while (i < lineLen && line[i] != ' ' && line[i] != '\t') i++;
+        }
+
+        boolean negative = line[i] == '-';
+        if (negative) i++;
+        long v = 0;
+        int digits = 0;
+        while (i < lineLen && line[i] != ' ' && line[i] != '\t') {
+            int d = line[i++] - '0';
+            if (d < 0 || d > 9 || ++digits > 10) {
+                throw new NumberFormatException("bad number in '" + line() + "'");
+            }
+            v = v * 10 + d;
+        }
+        v = negative ? -v : v;
+        if (digits == 0 || v != (int) v) {
+            throw new NumberFormatException("bad number in '" + line() + "'");
+        }
+        return (int) v;
+    }
+
+    void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (rpos == rlim) {
+                // big reads skip the buffer
+                if (len >= rbuf.length) {
+                    int n = in.read(b, off, len);
+                    if (n < 0) throw new EOFException("Unexpected EOF");
+                    off += n;
+                    len -= n;
+                    continue;
+                }
+                if (!fill()) throw new EOFException("Unexpected EOF");
+            }
+            int n = Math.min(len, rlim - rpos);
+            System.arraycopy(rbuf, rpos, b, off, n);
+            rpos += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    byte[] readBytes(int size) throws IOException {
+        byte[] b = new byte[size];
+        readFully(b, 0, size);
+        return b;
+    }
+
+    // the rest of the stream, starting with what is already buffered
+    InputStream input() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                if (rpos == rlim && !fill()) {
+                    return -1;
+                }
+                return rbuf[rpos++] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (rpos == rlim && !fill()) {
+                    return -1;
+                }
+                int n = Math.min(len, rlim - rpos);
+                System.arraycopy(rbuf, rpos, b, off, n);
+                rpos += n;
+                return n;
+            }
+        };
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(rbuf, 0, rbuf.length);
+        if (n <= 0) {
+            return false;
+        }
+        rpos = 0;
+        rlim = n;
+        return true;
+    }
+
+    // WRITING
+
+    LineCodec write(String s) throws IOException {
+        int n = s.length();
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                // not ASCII, let String do the UTF-8
+                byte[] rest = s.substring(i).getBytes(StandardCharsets.UTF_8);
+                write(rest, 0, rest.length);
+                return this;
+            }
+            if (wpos == wbuf.length) flushBuffer();
+            wbuf[wpos++] = (byte) c;
+        }
+        return this;
+    }
+
+    LineCodec write(long v) throws IOException {
+        if (wbuf.length - wpos < 20) flushBuffer();
+        if (v < 0) {
+            wbuf[wpos++] = '-';
+            v = -v;
+        }
+        int start = wpos;
+        do {
+            wbuf[wpos++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        // digits went in backwards
+        for (int i = start, j = wpos - 1; i < j; i++, j--) {
+            byte t = wbuf[i];
+            wbuf[i] = wbuf[j];
+            wbuf[j] = t;
+        }
+        return this;
+    }
+
+    LineCodec writeLine(String s) throws IOException {
+        return write(s).newLine();
+    }
+
+    // prefix + number + '\n' without building a String, e.g. writeLine("chunk size ", n)
+    LineCodec writeLine(String prefix, long v) throws IOException {
+        return write(prefix).write(v).newLine();
+    }
+
+    LineCodec newLine() throws IOException {
+        if (wpos == wbuf.length) flushBuffer();
+        wbuf[wpos++] = '\n';
+        return this;
+    }
+
+    void write(byte[] b, int off, int len) throws IOException {
+        if (len > wbuf.length - wpos) {
+            flushBuffer();
+            if (len >= wbuf.length) {
+                out.write(b, off, len);
+                return;
+            }
+        }
+        System.arraycopy(b, off, wbuf, wpos, len);
+        wpos += len;
+    }
+
+    void write(ByteBuffer b) throws IOException {
+        write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        b.position(b.limit());
+    }
+
+    // one line that expects an answer: write it and flush
+    void sendLine(String s) throws IOException {
+        writeLine(s).flush();
+    }
+
+    void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (wpos > 0) {
+            out.write(wbuf, 0, wpos);
+            wpos = 0;
+        }
+    }
+}
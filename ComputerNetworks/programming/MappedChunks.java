@@ -0,0 +1,63 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.stream.IntStream;
+
+// The shared file memory mapped once; chunk i is the slice at i * chunkSize.
+// Used by the tracker's "mmap" storage mode instead of chunk_N.dat files.
+// Every session reads the same pages, so the page cache is shared and
+// nothing has to be written to disk at startup.
+class MappedChunks {
+
+    private final int chunkSize;
+    private final int chunksPerRegion;
+    private final int totalChunks;
+
+    // a MappedByteBuffer is limited to 2 GB, so big files are mapped in several
+    // regions; region size is a multiple of chunkSize so no chunk spans two
+    private final MappedByteBuffer[] regions;
+
+    MappedChunks(Path file, int chunkSize) throws IOException {
+        this.chunkSize = chunkSize;
+        this.chunksPerRegion = Integer.MAX_VALUE / chunkSize;
+        long regionSize = (long) chunksPerRegion * chunkSize;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            this.totalChunks = (int) ((fileSize + chunkSize - 1) / chunkSize);
+
+            int regionCount = (int) ((fileSize + regionSize - 1) / regionSize);
+            this.regions = new MappedByteBuffer[regionCount];
+            for (int r = 0; r < regionCount; r++) {
+                long start = r * regionSize;
+                regions[r] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(regionSize, fileSize - start));
+            }
+        }
+    }
+
+    int totalChunks() {
+        return totalChunks;
+    }
+
+    // read-only view of chunk `index`; callers get their own position/limit
+    ByteBuffer chunk(int index) {
+        MappedByteBuffer region = regions[index / chunksPerRegion];
+        int offset = (index % chunksPerRegion) * chunkSize;
+        int length = Math.min(chunkSize, region.limit() - offset);
+        return region.slice(offset, length);
+    }
+
+    // SHA-256 of every chunk, hashed in parallel straight from the mapping
+    byte[][] hashAll() {
+        byte[][] hashes = new byte[totalChunks][];
+        IntStream.range(0, totalChunks).parallel().forEach(i -> {
+            MessageDigest sha = ChunkSplitter.sha256();
+            sha.update(chunk(i));
+            hashes[i] = sha.digest();
+        });
+        return hashes;
+    }
+}
@@ -1,27 +1,149 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntFunction;
 
 public class Peer {
     private static final int NUM_PEERS_IN_RING = 5;
 
-    private static final int CHUNK_SIZE = 10 * 1024;
+    private static final int ANNOUNCE_INTERVAL_MS = 5000;
+    // least time between announces when one is asked for early (see announceSoon)
+    private static final int MIN_ANNOUNCE_GAP_MS = 1000;
+    private static final int MAX_SWARM_PEERS = 8;
+    // a tracker node that didn't answer is skipped this long
+    private static final int NODE_RETRY_MS = 5000;
+    // wait for the answer to a command older trackers don't know (see askTracker)
+    private static final int EXTENSION_TIMEOUT_MS = 3000;
+    // how long only the tracker is asked while its manifest is still "busy"
+    private static final long MANIFEST_WAIT_MS = 120_000;
+    // chunks asked of a super-seeding tracker per round, it sends a few at a time anyway
+    private static final int SEED_REQUEST = 4;
+    // and how long it isn't asked after refusing one, unless we announce first
+    private static final int SEED_BACKOFF_MS = 2000;
 
     private final String peerId;
-    private final String trackerHost;
-    private final int trackerPort;
+    // the tracker we talk to; moves to another node of a cluster if it goes away
+    private volatile String trackerHost;
+    private volatile int trackerPort;
     private final int uploadPort;
     private final String downloadNeighborHost;
     private final int downloadNeighborPort;
     private final Path chunkDir;
     private final int initialChunksFromTracker;
+    private final String wantedFile; // file to ask the tracker for, null -> its default file
 
     // shared between threads
     private final Set<Integer> ownedChunks = ConcurrentHashMap.newKeySet();
     private volatile int totalChunks = -1;
     private volatile String fileName = "unknown";
+    // the tracker's piece size (HELLO frame), 0 until a v2 session tells us
+    private volatile int pieceSize;
+    // large pieces fetched block by block so far (see PieceBlocks), by index
+    private final Map<Integer, PieceBlocks> partial = new ConcurrentHashMap<>();
+
+    // chunk hashes from the tracker; neighbor chunks are only accepted once we have it
+    private volatile ChunkManifest manifest;
+    // when we started waiting for the manifest, 0 if we aren't
+    private volatile long manifestWaitSince;
+    // received chunks are hashed here, not on the socket threads
+    private final ExecutorService verifier =
+            Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private final Set<Integer> verifying = ConcurrentHashMap.newKeySet();
+    // chunks that failed the hash check, fetched again from the tracker
+    private final Set<Integer> corrupt = ConcurrentHashMap.newKeySet();
+    // "host:port" of neighbors that sent a bad chunk
+    private final Set<String> blacklist = ConcurrentHashMap.newKeySet();
+
+    // holder counts per chunk from the tracker, for rarest-first requests
+    private final PieceSelector selector = new PieceSelector();
+
+    // cleared once the tracker turns down "rdy2", then only the text protocol is used
+    private volatile boolean trackerSpeaksV2 = true;
+    // cleared once the tracker doesn't answer "hello", then rdy / rdyD is used (see Hello)
+    private volatile boolean trackerSpeaksHello = true;
+    // our session on the tracker, so a reconnect can skip the metadata
+    private volatile String trackerToken;
+    // > 0 once the tracker answered "busy" / BUSY: ms until we should ask again
+    private volatile long trackerRetryMs;
+    // set when the tracker couldn't be reached at all
+    private volatile boolean trackerDown;
+    // text protocol commands the tracker didn't answer ("manifest", ...), not sent to it again
+    private final Set<String> trackerLacks = ConcurrentHashMap.newKeySet();
+    // the tracker answered a "chunks" batch, later ones aren't timed
+    private volatile boolean trackerBatches;
+
+    // which tracker node serves which chunk, null unless the tracker is part of a cluster
+    private volatile ShardMap shards;
+    // our tracker's name in the shard map
+    private volatile String trackerNode;
+    // cluster nodes that didn't answer -> when to try them again
+    private final Map<String, Long> downNodes = new ConcurrentHashMap<>();
+
+    // the file version our chunks belong to (see FileVersion), 0 until the tracker names one
+    private volatile int version;
+    // a newer version the tracker published, switched to once its manifest is here (0: none)
+    private volatile int pendingVersion;
+    private int[] pendingChanged;             // chunks that differ from `version`, null: compare hashes
+    private ChunkManifest previousManifest;
+    // bumped on every new version; chunks received before are dropped
+    private volatile int epoch;
+
+    // upload side: what each downloading neighbor still wants, by resume token
+    private final SessionTokens<Set<Integer>> uploadSessions =
+            new SessionTokens<>(Hello.MAX_TOKENS, Hello.TOKEN_TTL_MS);
+    // download side: our session with each neighbor ("host:port")
+    private final Map<String, NeighborSession> downloadSessions = new ConcurrentHashMap<>();
+    // neighbors that don't answer "hello", asked with rdy / chunkIDList instead
+    private final Set<String> legacyNeighbors = ConcurrentHashMap.newKeySet();
+
+    // best download neighbors from the tracker's swarm registry, null until the first announce
+    private volatile List<SwarmPeer> swarmPeers;
+    // swarm neighbors that sent nothing, skipped until the next peer list
+    private final Set<String> drained = ConcurrentHashMap.newKeySet();
+    // took our share of the tracker's chunks since the last peer list (see trackerShare)
+    private volatile boolean tookShare;
+    // the tracker refused a chunk: it isn't asked for more until the next announce
+    // or this time (ms), whichever comes first; 0 if it didn't
+    private volatile long trackerRefusedUntil;
+    // it has refused one before, so it is super-seeding (see trackerShare)
+    private volatile boolean trackerSeeds;
+    // chunks a super-seeding tracker kept for us instead of refused ones ("chunk size 0 instead <i>")
+    private final Set<Integer> trackerOffers = ConcurrentHashMap.newKeySet();
+    // guards announceRequested, the announcer waits on it between announces
+    private final Object announceWake = new Object();
+    private boolean announceRequested;
+
+    // runs one handler per upload neighbor (threads= / maxSessions=, see SessionExecutor)
+    private SessionExecutor uploadHandlers = new SessionExecutor("platform", 0, "UploadHandler");
+
+    private static final class NeighborSession {
+        final String token;
+        final Set<Integer> outstanding; // asked for and not sent yet, as the neighbor remembers it
+
+        NeighborSession(String token, Set<Integer> outstanding) {
+            this.token = token;
+            this.outstanding = outstanding;
+        }
+    }
+
+    private static final class SwarmPeer {
+        final String host;
+        final int port;
+        final int useful; // chunks it has that we didn't, as of our last announce
+
+        SwarmPeer(String host, int port, int useful) {
+            this.host = host;
+            this.port = port;
+            this.useful = useful;
+        }
+    }
 
     // CONSTRUCTOR
 
@@ -31,6 +153,17 @@ public class Peer {
                 String downloadNeighborHost, int downloadNeighborPort,
                 String chunkDir,
                 int initialChunksFromTracker) {
+        this(peerId, trackerHost, trackerPort, uploadPort, downloadNeighborHost, downloadNeighborPort,
+             chunkDir, initialChunksFromTracker, null);
+    }
+
+    public Peer(String peerId,
+                String trackerHost, int trackerPort,
+                int uploadPort,
+                String downloadNeighborHost, int downloadNeighborPort,
+                String chunkDir,
+                int initialChunksFromTracker,
+                String wantedFile) {
 
         this.peerId = peerId;
         this.trackerHost = trackerHost;
@@ -40,6 +173,12 @@ public class Peer {
         this.downloadNeighborPort = downloadNeighborPort;
         this.chunkDir = Paths.get(chunkDir);
         this.initialChunksFromTracker = initialChunksFromTracker;
+        this.wantedFile = wantedFile;
+    }
+
+    // before start()
+    void setUploadHandlers(SessionExecutor uploadHandlers) {
+        this.uploadHandlers = uploadHandlers;
     }
 
     // STARTUP 
@@ -61,6 +200,10 @@ public class Peer {
         Thread downloadThread = new Thread(this::runDownloadClient, "DownloadClient-" + peerId);
         downloadThread.start();
 
+        // 5: tell the tracker what we have, learn who else is in the swarm
+        Thread announceThread = new Thread(this::runAnnouncer, "Announcer-" + peerId);
+        announceThread.start();
+
         System.out.println("Peer " + peerId + " started. UploadPort=" + uploadPort + ", downloadNeighbor=" + downloadNeighborHost + ":" + downloadNeighborPort);
     }
 
@@ -80,73 +223,1129 @@ public class Peer {
     // TALK TO TRACKER
 
     private void connectToTrackerAndDownloadInitialChunks() {
-        try (Socket socket = new Socket(trackerHost, trackerPort)) {
-            InputStream in = socket.getInputStream();
-            OutputStream out = socket.getOutputStream();
-
-            // rdy / rdy
-            sendLine(out, "rdy");
-            String resp = readLine(in);
-            if (!"rdy".equals(resp)) {
-                System.err.println("Peer " + peerId + ": expected 'rdy' " + resp);
+        downloadFromTracker(total -> chooseInitialChunkIndices(total, initialChunksFromTracker));
+    }
+
+    // one tracker session: handshake, manifest, then whatever `pick` chooses
+    // once the chunk count is known. Protocol v2 if the tracker has it.
+    // a busy tracker (see AdmissionControl) is asked again after the time it names.
+    // With a tracker cluster, chunks another node is responsible for are fetched
+    // from that node, and an unreachable tracker is replaced by another node
+    private void downloadFromTracker(IntFunction<Collection<Integer>> pick) {
+        while (true) {
+            trackerRetryMs = 0;
+            trackerDown = false;
+            List<Integer> elsewhere = new ArrayList<>();
+            trackerSession(total -> routeToShards(pick.apply(total), elsewhere));
+            fetchFromShards(elsewhere);
+            if (trackerDown && failOverTracker()) {
+                continue;
+            }
+            if (trackerRetryMs <= 0) {
                 return;
             }
+            System.out.println("Peer " + peerId + ": tracker busy, retrying in " + trackerRetryMs + " ms");
+            try { Thread.sleep(trackerRetryMs); } catch (InterruptedException e) { return; }
+        }
+    }
 
-            // fName
-            resp = readLine(in); 
-            fileName = resp;
-            sendLine(out, resp);
+    private void trackerSession(IntFunction<Collection<Integer>> pick) {
+        if (trackerSpeaksV2 && downloadFromTrackerV2(pick)) {
+            awaitVerification();
+            return;
+        }
 
-            System.out.println("Peer " + peerId + ": tracker fileName=" + fileName);
+        if (trackerSpeaksHello) {
+            try (Socket socket = new Socket(trackerHost, trackerPort)) {
+                if (downloadWithHello(new LineCodec(socket), pick)) {
+                    awaitVerification();
+                    return;
+                }
+                // otherwise reconnect for rdy / rdyD
+            } catch (IOException e) {
+                System.err.println("Peer " + peerId + ": error talking to tracker" + e.getMessage());
+                awaitVerification();
+                return;
+            }
+        }
+
+        try (Socket socket = new Socket(trackerHost, trackerPort)) {
+            LineCodec io = new LineCodec(socket);
 
-            // # of chunks
-            resp = readLine(in);
-            totalChunks = Integer.parseInt(resp);
-            sendLine(out, resp);
-            System.out.println("Peer " + peerId + ": totalChunks=" + totalChunks);
+            if (!trackerHandshake(io)) {
+                return;
+            }
+            if (askTracker(io, "shards", "SHARDS ")) {
+                setShards(ShardMap.parse(io.line()));
+            }
+            if (askTracker(io, "version " + version, "VERSION ")) {
+                noteVersion(FileVersion.parse(io.line()));
+            }
 
-            // ready to download
-            sendLine(out, "rdyD");
+            if (manifest == null && askTracker(io, "manifest", "MANIFEST ")) {
+                readManifest(io);
+            }
+            requestAvailability(io);
 
             // choose indices
-            List<Integer> chosen = chooseInitialChunkIndices(totalChunks, initialChunksFromTracker);
-            System.out.println("Peer " + peerId + ": initial chunk indices " + chosen);
+            Collection<Integer> chosen = pick.apply(totalChunks);
+            System.out.println("Peer " + peerId + ": chunk indices from tracker " + chosen);
+
+            requestChunksFromTracker(new ArrayList<>(chosen), io);
+
+            io.sendLine("close");
+
+        } catch (IOException e) {
+            System.err.println("Peer " + peerId + ": error talking to tracker" + e.getMessage());
+        }
+        awaitVerification();
+    }
+
+    // false if the tracker doesn't speak v2, see Frames
+    private boolean downloadFromTrackerV2(IntFunction<Collection<Integer>> pick) {
+        boolean connected = false;
+        boolean confirmed = false;
+        try (Socket socket = new Socket(trackerHost, trackerPort)) {
+            connected = true;
+            LineCodec io = new LineCodec(socket);
+
+            // everything that doesn't need an answer first goes out together with
+            // rdy2, so metadata costs one round trip (a tracker without v2 drops it)
+            io.writeLine(wantedFile != null ? "rdy2 " + wantedFile : "rdy2");
+            io.write(Frames.frame(Frames.ENCODING, ChunkCompression.OFFER.getBytes(StandardCharsets.UTF_8)));
+            io.write(Frames.frame(Frames.SHARDS, new byte[0]));
+            io.write(Frames.varintFrame(Frames.VERSION, version));
+
+            // announce what we have, so HAVE frames count for us
+            BitSet have = new BitSet();
+            for (int id : ownedChunks) {
+                have.set(id);
+            }
+            io.write(Frames.bitfield(socket.getLocalAddress().getHostAddress(), uploadPort, have));
+            boolean askManifest = manifest == null;
+            if (askManifest) {
+                io.write(Frames.frame(Frames.META, new byte[0]));
+            }
+            io.write(Frames.frame(Frames.AVAIL, new byte[0]));
+
+            // chunk count known from an earlier session: the first REQUEST goes along too
+            List<Integer> chosen = null;
+            boolean firstSent = false;
+            if (totalChunks > 0) {
+                chosen = new ArrayList<>(pick.apply(totalChunks));
+                if (!chosen.isEmpty() && !usesBlocks()) {
+                    io.write(Frames.request(chosen.subList(0, Math.min(chosen.size(), ChunkBatch.MAX_CHUNKS))));
+                    firstSent = true;
+                }
+            }
+            io.flush();
 
-            for (int idx : chosen) {
-                requestChunkFromTracker(idx, in, out);
-                sendLine(out, "next");
+            String resp = io.readLine();
+            if ("unknown file".equals(resp)) {
+                System.err.println("Peer " + peerId + ": tracker doesn't have " + wantedFile);
+                return true;
+            }
+            if (!"rdy2".equals(resp)) {
+                System.out.println("Peer " + peerId + ": tracker has no protocol v2 (" + resp + "), using text");
+                trackerSpeaksV2 = false;
+                return false;
+            }
+            confirmed = true;
+
+            // frames are written through the same buffer, flushed when an answer is due
+            Frames.Reader in = new Frames.Reader(io.input());
+
+            // HELLO: # of chunks, chunk (piece) size, file name
+            expectFrame(in, Frames.HELLO);
+            ByteBuffer hello = in.payload();
+            totalChunks = Frames.getVarint(hello);
+            pieceSize = Frames.getVarint(hello);
+            fileName = StandardCharsets.UTF_8.decode(hello).toString();
+            System.out.println("Peer " + peerId + ": tracker fileName=" + fileName + ", totalChunks=" + totalChunks + " (v2)");
+
+            expectFrame(in, Frames.ENCODING);
+            System.out.println("Peer " + peerId + ": chunk encoding " + StandardCharsets.UTF_8.decode(in.payload()));
+
+            expectFrame(in, Frames.SHARDS);
+            setShards(ShardMap.parse(StandardCharsets.UTF_8.decode(in.payload()).toString()));
+
+            expectFrame(in, Frames.VERSION);
+            noteVersion(FileVersion.parse(StandardCharsets.UTF_8.decode(in.payload()).toString()));
+
+            if (askManifest) {
+                expectFrame(in, Frames.META);
+                if (in.payload().hasRemaining()) {
+                    setManifest(ChunkManifest.parseBinary(in.payload()));
+                } else {
+                    System.out.println("Peer " + peerId + ": tracker manifest not ready yet");
+                }
             }
 
-            sendLine(out, "close");
+            expectFrame(in, Frames.AVAIL);
+            int[] counts = new int[totalChunks];
+            for (int i = 0; i < totalChunks && in.payload().hasRemaining(); i++) {
+                counts[i] = Frames.getVarint(in.payload());
+            }
+            selector.update(counts);
+
+            if (chosen == null) {
+                chosen = new ArrayList<>(pick.apply(totalChunks));
+            }
+            System.out.println("Peer " + peerId + ": chunk indices from tracker " + chosen);
+
+            trackerRetryMs = fetchChunks(in, io, chosen, firstSent, "tracker");
+            if (trackerRetryMs > 0) {
+                return true;
+            }
+
+            io.write(Frames.frame(Frames.CLOSE, new byte[0]));
+            io.flush();
 
         } catch (IOException e) {
             System.err.println("Peer " + peerId + ": error talking to tracker" + e.getMessage());
+            if (connected && !confirmed) {
+                // an old tracker may reset the connection over the frames it didn't expect
+                trackerSpeaksV2 = false;
+                return false;
+            }
+            trackerDown = !connected;
+        }
+        return true;
+    }
+
+    // pieces larger than a block are fetched in blocks (see PieceBlocks);
+    // content defined chunks are small enough to come whole
+    private boolean usesBlocks() {
+        ChunkManifest m = manifest;
+        return pieceSize > PieceBlocks.BLOCK_SIZE && (m == null || m.layout() == null);
+    }
+
+    // indices over a v2 session, REQUEST by REQUEST or in blocks; firstSent: the
+    // first REQUEST already went out with the handshake. Returns a BUSY retry time, 0 if all came
+    private long fetchChunks(Frames.Reader in, LineCodec io, List<Integer> indices, boolean firstSent,
+                             String source) throws IOException {
+        if (!firstSent && usesBlocks()) {
+            return readBlocks(in, io, indices, source);
+        }
+        for (int from = 0; from < indices.size(); from += ChunkBatch.MAX_CHUNKS) {
+            List<Integer> batch = indices.subList(from, Math.min(indices.size(), from + ChunkBatch.MAX_CHUNKS));
+            if (from > 0 || !firstSent) {
+                io.write(Frames.request(batch));
+                io.flush();
+            }
+            long retryMs = readChunkFrames(in, io, batch.size(), source);
+            if (retryMs > 0) {
+                return retryMs;
+            }
+        }
+        return 0;
+    }
+
+    // the missing blocks of each piece, a BLOCKS frame at a time; a piece goes
+    // to the verifier once all of its blocks are here
+    private long readBlocks(Frames.Reader in, LineCodec io, List<Integer> indices, String source) throws IOException {
+        List<int[]> wanted = new ArrayList<>();
+        for (int index : indices) {
+            PieceBlocks piece = partial.computeIfAbsent(index, i -> new PieceBlocks(pieceSize));
+            for (int offset : piece.missing()) {
+                wanted.add(new int[] { index, offset, piece.blockLength(offset) });
+            }
+        }
+        for (int from = 0; from < wanted.size(); from += PieceBlocks.MAX_BLOCKS) {
+            List<int[]> batch = wanted.subList(from, Math.min(wanted.size(), from + PieceBlocks.MAX_BLOCKS));
+            io.write(Frames.blocks(batch));
+            io.flush();
+            for (int i = 0; i < batch.size(); i++) {
+                int type = in.next();
+                if (type == Frames.BUSY) {
+                    return Math.max(1, Frames.getVarint(in.payload()));
+                }
+                if (type != Frames.BLOCK) {
+                    throw new IOException("expected frame " + Frames.BLOCK + ", got " + type);
+                }
+                ByteBuffer data = in.payload();
+                int index = Frames.getVarint(data);
+                int offset = Frames.getVarint(data);
+                int pieceLength = Frames.getVarint(data);
+                PieceBlocks piece = partial.get(index);
+                if (piece == null) {
+                    continue; // dropped for a new version
+                }
+                if (!piece.put(offset, pieceLength, data)) {
+                    System.err.println("Peer " + peerId + ": " + source + " has no chunk " + index);
+                    partial.remove(index);
+                    continue;
+                }
+                if (piece.complete() && partial.remove(index) != null) {
+                    acceptChunk(index, piece.bytes(), null);
+                    // sent with the next BLOCKS / CLOSE
+                    io.write(Frames.varintFrame(Frames.HAVE, index));
+                    System.out.println("Peer " + peerId + ": got chunk " + index + " from " + source
+                            + " (" + pieceLength + " bytes in blocks)");
+                }
+            }
+        }
+        return 0;
+    }
+
+    // the answer to one REQUEST: a DATA frame, or ENCODED for a deflated chunk,
+    // per chunk. Returns the retry time (ms) of a BUSY frame, 0 if all came
+    private long readChunkFrames(Frames.Reader in, LineCodec io, int count, String source) throws IOException {
+        for (int i = 0; i < count; i++) {
+            int type = in.next();
+            if (type == Frames.BUSY) {
+                return Math.max(1, Frames.getVarint(in.payload()));
+            }
+            if (type != Frames.DATA && type != Frames.ENCODED) {
+                throw new IOException("expected frame " + Frames.DATA + ", got " + type);
+            }
+            ByteBuffer data = in.payload();
+            int index = Frames.getVarint(data);
+            int decodedLength = type == Frames.ENCODED ? Frames.getVarint(data) : -1;
+            if (!data.hasRemaining()) {
+                System.err.println("Peer " + peerId + ": " + source + " has no chunk " + index);
+                trackerRefusedUntil = System.currentTimeMillis() + SEED_BACKOFF_MS;
+                trackerSeeds = true;
+                continue;
+            }
+            byte[] buf = new byte[data.remaining()];
+            data.get(buf);
+            acceptChunk(index, buf, decodedLength, null);
+            // sent with the next REQUEST / CLOSE
+            io.write(Frames.varintFrame(Frames.HAVE, index));
+            System.out.println("Peer " + peerId + ": got chunk " + index + " from " + source);
+        }
+        return 0;
+    }
+
+    // TRACKER CLUSTER
+
+    private void setShards(ShardMap map) {
+        if (map != null && shards == null) {
+            System.out.println("Peer " + peerId + ": tracker is " + map);
+        }
+        shards = map;
+        if (map != null) {
+            trackerNode = map.self();
+        }
+    }
+
+    // the first owner of a chunk that isn't known to be down, null if none is up
+    private String liveOwner(ShardMap map, int index) {
+        long now = System.currentTimeMillis();
+        for (String node : map.owners(fileName, index)) {
+            Long until = downNodes.get(node);
+            if (until == null || until < now) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    // what to ask our own tracker for: without a cluster everything, otherwise
+    // the chunks it is first in line for; the rest go to `elsewhere`
+    private Collection<Integer> routeToShards(Collection<Integer> chosen, List<Integer> elsewhere) {
+        elsewhere.clear();
+        ShardMap map = shards;
+        if (map == null) {
+            return chosen;
+        }
+        List<Integer> home = new ArrayList<>();
+        for (int index : chosen) {
+            if (trackerNode.equals(liveOwner(map, index))) {
+                home.add(index);
+            } else {
+                elsewhere.add(index);
+            }
+        }
+        return home;
+    }
+
+    // each chunk from its first live owner; chunks of a node that can't be
+    // reached go to the next replica
+    private void fetchFromShards(List<Integer> indices) {
+        ShardMap map = shards;
+        List<Integer> left = indices;
+        while (map != null && !left.isEmpty()) {
+            Map<String, List<Integer>> byNode = new LinkedHashMap<>();
+            for (int index : left) {
+                String node = liveOwner(map, index);
+                if (node == null) {
+                    System.err.println("Peer " + peerId + ": no tracker node up for chunk " + index);
+                    continue;
+                }
+                byNode.computeIfAbsent(node, n -> new ArrayList<>()).add(index);
+            }
+            List<Integer> retry = new ArrayList<>();
+            for (Map.Entry<String, List<Integer>> e : byNode.entrySet()) {
+                if (fetchFromNode(e.getKey(), e.getValue())) {
+                    continue;
+                }
+                downNodes.put(e.getKey(), System.currentTimeMillis() + NODE_RETRY_MS);
+                System.err.println("Peer " + peerId + ": tracker node " + e.getKey() + " is down, trying other replicas");
+                for (int index : e.getValue()) {
+                    if (!ownedChunks.contains(index) && !verifying.contains(index)) {
+                        retry.add(index);
+                    }
+                }
+            }
+            left = retry;
+        }
+        awaitVerification();
+    }
+
+    // protocol v2 session with another node, just for chunks; false if it can't be reached
+    private boolean fetchFromNode(String node, List<Integer> indices) {
+        int sep = node.lastIndexOf(':');
+        try (Socket socket = new Socket(node.substring(0, sep), Integer.parseInt(node.substring(sep + 1)))) {
+            LineCodec io = new LineCodec(socket);
+            io.writeLine("rdy2 " + fileName);
+            io.write(Frames.frame(Frames.ENCODING, ChunkCompression.OFFER.getBytes(StandardCharsets.UTF_8)));
+            boolean firstSent = !usesBlocks();
+            if (firstSent) {
+                io.write(Frames.request(indices.subList(0, Math.min(indices.size(), ChunkBatch.MAX_CHUNKS))));
+            }
+            io.flush();
+
+            String resp = io.readLine();
+            if (!"rdy2".equals(resp)) {
+                throw new IOException("expected 'rdy2', got " + resp);
+            }
+            Frames.Reader in = new Frames.Reader(io.input());
+            expectFrame(in, Frames.HELLO);
+            expectFrame(in, Frames.ENCODING);
+            System.out.println("Peer " + peerId + ": chunks " + indices + " from tracker node " + node);
+
+            if (fetchChunks(in, io, indices, firstSent, "tracker node " + node) > 0) {
+                // the chunks we still miss are asked for again later
+                System.out.println("Peer " + peerId + ": tracker node " + node + " busy");
+                return true;
+            }
+            io.write(Frames.frame(Frames.CLOSE, new byte[0]));
+            io.flush();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Peer " + peerId + ": error talking to tracker node " + node + " - " + e.getMessage());
+            return false;
+        }
+    }
+
+    // our tracker didn't answer: talk to another live node from now on
+    private boolean failOverTracker() {
+        ShardMap map = shards;
+        if (map == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        downNodes.put(trackerNode, now + NODE_RETRY_MS);
+        for (String node : map.nodes()) {
+            Long until = downNodes.get(node);
+            if (until == null || until < now) {
+                int sep = node.lastIndexOf(':');
+                trackerHost = node.substring(0, sep);
+                trackerPort = Integer.parseInt(node.substring(sep + 1));
+                trackerNode = node;
+                System.out.println("Peer " + peerId + ": tracker unreachable, switching to node " + node);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void expectFrame(Frames.Reader in, byte type) throws IOException {
+        int got = in.next();
+        if (got != type) {
+            throw new IOException("expected frame " + type + ", got " + got);
+        }
+    }
+
+    // one round trip instead of handshake + manifest + availability; with a
+    // resumed session the chunks come back in that round trip too.
+    // false if the tracker doesn't know "hello"
+    private boolean downloadWithHello(LineCodec io, IntFunction<Collection<Integer>> pick) throws IOException {
+        List<Integer> chosen = null;
+        StringBuilder hello = new StringBuilder("hello");
+        if (trackerToken != null && totalChunks > 0) {
+            hello.append(" resume=").append(trackerToken);
+            chosen = new ArrayList<>(pick.apply(totalChunks));
+        }
+        boolean askManifest = manifest == null;
+        if (askManifest) {
+            hello.append(" manifest");
+        }
+        hello.append(" avail");
+        if (chosen != null) {
+            hello.append(" want=").append(Hello.wantList(chosen));
+        }
+        hello.append(" enc=").append(ChunkCompression.OFFER).append(" shards version=").append(version);
+        if (wantedFile != null) {
+            hello.append(" file=").append(wantedFile); // in case the token has expired
+        }
+        io.sendLine(hello.toString());
+
+        if (!readTrackerHello(io)) {
+            return trackerSpeaksHello; // still true if it only lacks our file
+        }
+        if (nextReply(io, "encoding ")) {
+            System.out.println("Peer " + peerId + ": chunk " + io.line());
+        }
+        if (nextReply(io, "SHARDS ")) {
+            setShards(ShardMap.parse(io.line()));
+        }
+        if (nextReply(io, "VERSION ")) {
+            noteVersion(FileVersion.parse(io.line()));
+        }
+        if (askManifest && nextReply(io, "MANIFEST ")) {
+            readManifest(io);
+        }
+        readAvailability(io);
+
+        if (chosen == null) {
+            chosen = new ArrayList<>(pick.apply(totalChunks));
+        } else {
+            // the first batch is already on its way
+            int first = Math.min(chosen.size(), ChunkBatch.MAX_CHUNKS);
+            for (int index : chosen.subList(0, first)) {
+                readChunkFromTracker(index, io);
+            }
+            chosen = chosen.subList(first, chosen.size());
+        }
+        System.out.println("Peer " + peerId + ": chunk indices from tracker " + chosen);
+        requestChunksFromTracker(chosen, io);
+
+        io.sendLine("close");
+        return true;
+    }
+
+    // "hello <token> <totalChunks> <fileName>"; false if it is something else,
+    // clearing trackerSpeaksHello unless the tracker just doesn't have our file
+    private boolean readTrackerHello(LineCodec io) throws IOException {
+        String line = io.readLine();
+        String[] reply = Hello.parseTrackerReply(line);
+        if (reply == null) {
+            if ("unknown file".equals(line)) {
+                System.err.println("Peer " + peerId + ": tracker doesn't have " + wantedFile);
+                return false;
+            }
+            System.out.println("Peer " + peerId + ": tracker doesn't know hello (" + line + "), using rdy");
+            trackerSpeaksHello = false;
+            return false;
+        }
+        if (!reply[1].equals(trackerToken)) {
+            System.out.println("Peer " + peerId + ": new tracker session " + reply[1]);
+        }
+        trackerToken = reply[1];
+        totalChunks = Integer.parseInt(reply[2]);
+        fileName = reply[3];
+        return true;
+    }
+
+    // rdy -> fileName echo -> # of chunks echo -> rdyD
+    private boolean trackerHandshake(LineCodec io) throws IOException {
+        // rdy / rdy, naming the file if the tracker serves a catalog
+        io.sendLine(wantedFile != null ? "rdy " + wantedFile : "rdy");
+        String resp = io.readLine();
+        if (!"rdy".equals(resp)) {
+            System.err.println("Peer " + peerId + ": expected 'rdy' " + resp);
+            return false;
         }
+
+        // fName
+        resp = io.readLine();
+        fileName = resp;
+        io.sendLine(resp);
+
+        System.out.println("Peer " + peerId + ": tracker fileName=" + fileName);
+
+        // # of chunks
+        resp = io.readLine();
+        totalChunks = Integer.parseInt(resp);
+        System.out.println("Peer " + peerId + ": totalChunks=" + totalChunks);
+
+        // echo and ready to download in one packet, then ask for compressed chunks
+        io.writeLine(resp).writeLine("rdyD");
+        if (askTracker(io, "encoding " + ChunkCompression.OFFER, "encoding ")) {
+            System.out.println("Peer " + peerId + ": chunk " + io.line());
+        }
+        return true;
     }
 
-    private void requestChunkFromTracker(int index,
-                                        InputStream in,
-                                        OutputStream out) throws IOException {
-        sendLine(out, "chunk index " + index);
+    // sends a text protocol command older trackers (and Group_Tracker) ignore
+    // and reads its answer, a line starting with prefix, into io.line().
+    // false if the tracker is known not to have the command (its first word)
+    // or doesn't answer it within EXTENSION_TIMEOUT_MS; it isn't asked again then
+    private boolean askTracker(LineCodec io, String command, String prefix) throws IOException {
+        String name = command.split(" ", 2)[0];
+        if (trackerLacks.contains(name)) {
+            return false;
+        }
+        io.sendLine(command);
+        io.setTimeout(EXTENSION_TIMEOUT_MS);
+        try {
+            if (nextReply(io, prefix)) {
+                return true;
+            }
+        } catch (SocketTimeoutException e) {
+            // no answer, it doesn't know the command
+        } finally {
+            io.setTimeout(0);
+        }
+        System.out.println("Peer " + peerId + ": tracker doesn't answer '" + name + "', not asking it again");
+        trackerLacks.add(name);
+        return false;
+    }
 
-        String szLine = readLine(in); // "chunk size X"
-        if (szLine == null || !szLine.startsWith("chunk size")) {
-            System.err.println("Peer " + peerId + ": invalid size line for chunk " + index + ": " + szLine);
+    // the next line, if it starts with prefix; otherwise it is left for the
+    // next read (a tracker that doesn't know the option leaves the answer out)
+    private static boolean nextReply(LineCodec io, String prefix) throws IOException {
+        if (!io.nextLine()) {
+            throw new EOFException("tracker closed the connection");
+        }
+        if (io.startsWith(prefix)) {
+            return true;
+        }
+        io.keepLine();
+        return false;
+    }
+
+    // io.line() is the "MANIFEST ..." header
+    private void readManifest(LineCodec io) throws IOException {
+        String header = io.line();
+        if (ChunkManifest.isBusy(header)) {
+            System.out.println("Peer " + peerId + ": tracker manifest not ready yet");
             return;
         }
-        int size = Integer.parseInt(szLine.split("\\s+")[2]);
+
+        String[] parts = header.split("\\s+");
+        try {
+            int n = parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+            if (n < 0) {
+                throw new IOException("bad manifest header: " + header);
+            }
+            List<String> leaves = new ArrayList<>(Math.min(n, ChunkBatch.MAX_CHUNKS));
+            String line;
+            while ((line = io.readLine()) != null && !"END".equals(line)) {
+                leaves.add(line);
+            }
+            setManifest(ChunkManifest.parse(header, leaves));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("bad manifest: " + e.getMessage()); // a number or hash that doesn't parse
+        }
+    }
+
+    // without the manifest neighbors' chunks can't be checked, so only the
+    // tracker is asked. That stops after MANIFEST_WAIT_MS, or right away if
+    // the tracker has no manifests: chunks are then taken unchecked
+    private boolean waitingForManifest() {
+        if (manifest != null) {
+            return false;
+        }
+        if (trackerLacks.contains("manifest")) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (manifestWaitSince == 0) {
+            manifestWaitSince = now;
+        }
+        if (now - manifestWaitSince <= MANIFEST_WAIT_MS) {
+            return true;
+        }
+        if (manifestWaitSince > 0) {
+            System.out.println("Peer " + peerId + ": no manifest after " + MANIFEST_WAIT_MS / 1000
+                    + " s, taking neighbors' chunks unchecked until it comes");
+            manifestWaitSince = -1; // said so, don't wait again
+        }
+        return false;
+    }
+
+    private synchronized void setManifest(ChunkManifest m) {
+        if (pendingVersion > 0) {
+            switchVersion(previousManifest, m, pendingChanged);
+            version = pendingVersion;
+            pendingVersion = 0;
+            previousManifest = null;
+        }
+        manifest = m;
+        manifestWaitSince = 0;
+        System.out.println("Peer " + peerId + ": manifest root=" + m.rootHex());
+        reusePreviousVersion(m);
+    }
+
+    // VERSIONS
+
+    // the tracker's version of the file; a newer one than ours is switched to
+    // once its manifest is here, until then neighbors' chunks aren't taken
+    private synchronized void noteVersion(FileVersion v) {
+        if (v.number == version || v.number == pendingVersion) {
+            return;
+        }
+        if (version == 0 && manifest == null) {
+            version = v.number; // everything we get from here on is of this version
+            return;
+        }
+        if (v.busy) {
+            return; // picked up once it has been hashed, with its diff
+        }
+        epoch++;
+        partial.clear();
+        pendingVersion = v.number;
+        pendingChanged = v.number == version + 1 ? v.changed : null;
+        if (manifest != null) {
+            previousManifest = manifest;
+        }
+        manifest = null;
+        downloadSessions.clear();
+        System.out.println("Peer " + peerId + ": tracker published version " + v.number + " of " + fileName
+                + " (we have " + version + "), " + (pendingChanged != null
+                ? pendingChanged.length + " chunks changed" : "comparing chunk hashes"));
+    }
+
+    // moves our chunks over to the version of manifest m: a chunk outside
+    // `changed` stays as it is; any other index is filled from a chunk we hold
+    // with the right hash (under any index), or fetched again
+    private void switchVersion(ChunkManifest previous, ChunkManifest m, int[] changed) {
+        Set<Integer> old = new HashSet<>(ownedChunks);
+        Set<Integer> stale = new HashSet<>();
+        if (changed != null) {
+            for (int i : changed) {
+                stale.add(i);
+            }
+        }
+        Map<String, Integer> byHash = new HashMap<>();
+        if (previous != null) {
+            for (int j : old) {
+                if (j < previous.size()) {
+                    byHash.putIfAbsent(ChunkManifest.hex(previous.leaves()[j]), j);
+                }
+            }
+        }
+
+        Set<Integer> keep = new HashSet<>();
+        Map<Integer, Integer> copies = new HashMap<>();
+        for (int i = 0; i < m.size(); i++) {
+            boolean same = changed != null ? !stale.contains(i)
+                    : previous != null && i < previous.size()
+                    && MessageDigest.isEqual(previous.leaves()[i], m.leaves()[i]);
+            if (same && old.contains(i)) {
+                keep.add(i);
+                continue;
+            }
+            Integer j = byHash.get(ChunkManifest.hex(m.leaves()[i]));
+            if (j != null) {
+                copies.put(i, j);
+            }
+        }
+
+        // copy first, as a source may be replaced itself
+        Set<Integer> moved = new HashSet<>();
+        for (Map.Entry<Integer, Integer> c : copies.entrySet()) {
+            try {
+                Files.copy(chunkPath(c.getValue()), chunkDir.resolve("chunk_" + c.getKey() + ".dat.next"),
+                        StandardCopyOption.REPLACE_EXISTING);
+                moved.add(c.getKey());
+            } catch (IOException e) {
+                System.err.println("Peer " + peerId + ": could not copy chunk " + c.getValue() + " - " + e.getMessage());
+            }
+        }
+        ownedChunks.retainAll(keep);
+        corrupt.clear();
+        for (int j : old) {
+            if (!keep.contains(j)) {
+                try {
+                    Files.deleteIfExists(chunkPath(j));
+                } catch (IOException ignored) {}
+            }
+        }
+        for (int i : moved) {
+            try {
+                Files.move(chunkDir.resolve("chunk_" + i + ".dat.next"), chunkPath(i),
+                        StandardCopyOption.REPLACE_EXISTING);
+                ownedChunks.add(i);
+            } catch (IOException e) {
+                System.err.println("Peer " + peerId + ": could not move chunk " + i + " - " + e.getMessage());
+            }
+        }
+        System.out.println("Peer " + peerId + ": switched to version " + pendingVersion + ", kept "
+                + keep.size() + " chunks, reused " + moved.size() + " under a new index, "
+                + (m.size() - ownedChunks.size()) + " to fetch");
+    }
+
+    private Path chunkPath(int index) {
+        return chunkDir.resolve("chunk_" + index + ".dat");
+    }
+
+    // A file reconstructed earlier (an older version, say) is cut the way the
+    // manifest says and every chunk whose hash is in the new manifest is kept,
+    // so only the chunks that changed are downloaded. With content defined
+    // chunks an insert or delete only changes the chunks around it.
+    private void reusePreviousVersion(ChunkManifest m) {
+        Path previous = chunkDir.resolve("RECONSTRUCTED_" + fileName);
+        if (!Files.exists(previous) || m.size() == 0) {
+            return;
+        }
+        Map<String, List<Integer>> wanted = m.indicesByHash();
+        int[] reused = { 0 };
+        ContentChunker.ChunkConsumer keep = (data, offset, length) -> {
+            MessageDigest sha = ChunkSplitter.sha256();
+            sha.update(data, offset, length);
+            List<Integer> indices = wanted.remove(ChunkManifest.hex(sha.digest()));
+            if (indices == null) {
+                return;
+            }
+            byte[] chunk = Arrays.copyOfRange(data, offset, offset + length);
+            for (int i : indices) {
+                if (!ownedChunks.contains(i)) {
+                    saveChunkToDisk(i, chunk);
+                    ownedChunks.add(i);
+                    reused[0]++;
+                }
+            }
+        };
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(previous))) {
+            ChunkLayout layout = m.layout();
+            if (layout != null) {
+                layout.chunker().forEachChunk(in, keep);
+            } else {
+                byte[] buf = new byte[pieceSize > 0 ? pieceSize : SharedFile.CHUNK_SIZE];
+                int n;
+                while ((n = in.readNBytes(buf, 0, buf.length)) > 0) {
+                    keep.accept(buf, 0, n);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Peer " + peerId + ": could not reuse " + previous + " - " + e.getMessage());
+        }
+        System.out.println("Peer " + peerId + ": reused " + reused[0] + " of " + m.size() + " chunks from " + previous);
+    }
+
+    // "chunks <list>": the tracker streams them back to back, one round trip per batch.
+    // A tracker without it (the old Tracker) doesn't answer the first batch within
+    // EXTENSION_TIMEOUT_MS; the rest is then asked for one "chunk index" at a time
+    private void requestChunksFromTracker(List<Integer> indices, LineCodec io) throws IOException {
+        int from = 0;
+        while (from < indices.size() && !trackerLacks.contains("chunks")) {
+            List<Integer> batch = indices.subList(from, Math.min(indices.size(), from + ChunkBatch.MAX_CHUNKS));
+            io.sendLine("chunks " + ChunkBatch.encode(batch));
+            if (!trackerBatches && !batchAnswered(io)) {
+                break;
+            }
+            for (int index : batch) {
+                readChunkFromTracker(index, io);
+            }
+            from += batch.size();
+        }
+        for (int index : indices.subList(from, indices.size())) {
+            io.writeLine("chunk index ", index).flush();
+            readChunkFromTracker(index, io);
+            io.writeLine("next"); // goes out with the next request or "close"
+        }
+
+        // what we were given instead of refused chunks, on the same connection
+        List<Integer> offers = new ArrayList<>();
+        for (int index : trackerOffers) {
+            trackerOffers.remove(index);
+            if (index < totalChunks && !ownedChunks.contains(index) && !verifying.contains(index)) {
+                offers.add(index);
+            }
+        }
+        if (!offers.isEmpty()) {
+            requestChunksFromTracker(offers, io);
+        }
+    }
+
+    // waits for the first reply to a batch, which is left for readChunkFromTracker
+    private boolean batchAnswered(LineCodec io) throws IOException {
+        io.setTimeout(EXTENSION_TIMEOUT_MS);
+        try {
+            if (!io.nextLine()) {
+                throw new EOFException("tracker closed the connection");
+            }
+            io.keepLine();
+            trackerBatches = true;
+            return true;
+        } catch (SocketTimeoutException e) {
+            System.out.println("Peer " + peerId + ": tracker doesn't answer 'chunks', asking for one chunk at a time");
+            trackerLacks.add("chunks");
+            return false;
+        } finally {
+            io.setTimeout(0);
+        }
+    }
+
+    private void readChunkFromTracker(int index, LineCodec io) throws IOException {
+        // "chunk size X", or "chunk size X deflate Y" with Y deflated bytes;
+        // "busy <ms>" if there was no slot for us, the tracker then hangs up
+        boolean got = io.nextLine();
+        if (got && io.startsWith("busy ")) {
+            trackerRetryMs = Math.max(1, io.intField(1));
+            throw new IOException("tracker busy");
+        }
+        if (!got || !io.startsWith("chunk size")) {
+            System.err.println("Peer " + peerId + ": invalid size line for chunk " + index + ": " + io.line());
+            return;
+        }
+        int size = io.intField(2);
         if (size <= 0) {
+            trackerSeeds = true;
+            if (io.startsWith("chunk size 0 instead ")) {
+                int other = io.intField(4);
+                trackerOffers.add(other);
+                System.out.println("Peer " + peerId + ": tracker sends chunk " + other + " instead of " + index);
+                return;
+            }
+            trackerRefusedUntil = System.currentTimeMillis() + SEED_BACKOFF_MS;
             System.err.println("Peer " + peerId + ": chunk " + index + " has size " + size);
             return;
         }
+        int decodedLength = -1;
+        if (io.startsWith("chunk size " + size + " " + ChunkCompression.DEFLATE + " ")) {
+            decodedLength = size;
+            size = io.intField(4);
+        }
 
-        byte[] buf = rawRead(in, size);
-        saveChunkToDisk(index, buf);
-        ownedChunks.add(index);
+        byte[] buf = io.readBytes(size);
+        acceptChunk(index, buf, decodedLength, null);
 
         System.out.println("Peer " + peerId + ": got chunk " + index + " from tracker");
     }
 
+    // SWARM
+
+    private void runAnnouncer() {
+        while (true) {
+            boolean helloRefused = false;
+            try (Socket socket = new Socket(trackerHost, trackerPort)) {
+                LineCodec io = new LineCodec(socket);
+
+                BitSet have = new BitSet();
+                for (int id : ownedChunks) {
+                    have.set(id);
+                }
+                // the address we reach the tracker from is the one other peers can use
+                String myHost = socket.getLocalAddress().getHostAddress();
+
+                if (trackerSpeaksHello) {
+                    // announce + peers + availability in one round trip
+                    io.sendLine("hello" + (trackerToken != null ? " resume=" + trackerToken : "")
+                            + " host=" + myHost + " port=" + uploadPort + " have=" + SwarmRegistry.encode(have)
+                            + " version=" + version + " avail peers=" + MAX_SWARM_PEERS
+                            + (wantedFile != null ? " file=" + wantedFile : ""));
+                    if (readTrackerHello(io)) {
+                        if (nextReply(io, "VERSION ")) {
+                            noteVersion(FileVersion.parse(io.line()));
+                        }
+                        readAvailability(io);
+                        swarmPeers = nextReply(io, "PEERS") ? receivePeerList(io) : Collections.emptyList();
+                        drained.clear();
+                        tookShare = false;
+                        trackerRefusedUntil = 0;
+                        io.sendLine("close");
+                    } else {
+                        helloRefused = !trackerSpeaksHello;
+                    }
+                } else if (trackerHandshake(io)) {
+                    askTracker(io, "announce " + myHost + " " + uploadPort + " " + SwarmRegistry.encode(have), "ok");
+                    if (askTracker(io, "version " + version, "VERSION ")) {
+                        noteVersion(FileVersion.parse(io.line()));
+                    }
+
+                    // no swarm at a tracker without "peers": everything comes from it
+                    swarmPeers = askTracker(io, "peers " + MAX_SWARM_PEERS, "PEERS")
+                            ? receivePeerList(io) : Collections.emptyList();
+                    drained.clear();
+                    tookShare = false;
+                    trackerRefusedUntil = 0;
+                    requestAvailability(io);
+                    io.sendLine("close");
+                }
+            } catch (ConnectException e) {
+                System.err.println("Peer " + peerId + ": announce failed - " + e.getMessage());
+                if (failOverTracker()) {
+                    continue; // again right away with the next node
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Peer " + peerId + ": announce failed - " + e.getMessage());
+            }
+            if (helloRefused) {
+                continue; // again right away with rdy
+            }
+            try { awaitNextAnnounce(); } catch (InterruptedException e) { return; }
+        }
+    }
+
+    // ANNOUNCE_INTERVAL_MS, or MIN_ANNOUNCE_GAP_MS if announceSoon is called meanwhile
+    private void awaitNextAnnounce() throws InterruptedException {
+        long due = System.currentTimeMillis() + ANNOUNCE_INTERVAL_MS;
+        Thread.sleep(MIN_ANNOUNCE_GAP_MS);
+        synchronized (announceWake) {
+            long now;
+            while (!announceRequested && (now = System.currentTimeMillis()) < due) {
+                announceWake.wait(due - now);
+            }
+            announceRequested = false;
+        }
+    }
+
+    // a super-seeding tracker sends a peer new chunks only once it sees that
+    // the ones it sent have spread: after taking some from a neighbor we tell
+    // it right away instead of at the next regular announce, and with no
+    // neighbor left to ask we get a fresh peer list the same way
+    private void announceSoon() {
+        synchronized (announceWake) {
+            announceRequested = true;
+            announceWake.notifyAll();
+        }
+    }
+
+    private void requestAvailability(LineCodec io) throws IOException {
+        if (askTracker(io, "availability", "AVAIL")) {
+            selector.update(PieceSelector.parseAvailability(io.line()));
+        }
+    }
+
+    private void readAvailability(LineCodec io) throws IOException {
+        if (nextReply(io, "AVAIL")) {
+            selector.update(PieceSelector.parseAvailability(io.line()));
+        }
+    }
+
+    // "PEERS n", n x "<host> <port> <useful>", "END"; io.line() is the header
+    private List<SwarmPeer> receivePeerList(LineCodec io) throws IOException {
+        List<SwarmPeer> peers = new ArrayList<>();
+        String line;
+        while ((line = io.readLine()) != null && !"END".equals(line)) {
+            String[] parts = line.split("\\s+");
+            peers.add(new SwarmPeer(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+        }
+        return peers;
+    }
+
+    // "host:port" to download from this round, null if there is no usable one.
+    // downloadNeighborPort 0 means: take the best peer from the swarm registry
+    private String chooseNeighbor() {
+        if (downloadNeighborPort != 0) {
+            String neighbor = downloadNeighborHost + ":" + downloadNeighborPort;
+            return blacklist.contains(neighbor) ? null : neighbor;
+        }
+        List<SwarmPeer> peers = swarmPeers;
+        if (peers == null) return null;
+        for (SwarmPeer p : peers) {
+            String neighbor = p.host + ":" + p.port;
+            if (p.useful > 0 && !blacklist.contains(neighbor) && !drained.contains(neighbor)) {
+                return neighbor;
+            }
+        }
+        return null;
+    }
+
+    // CHUNK VERIFICATION
+
+    // hash check + save on the verifier pool. neighbor is "host:port", null for the tracker
+    private void acceptChunk(int index, byte[] data, String neighbor) {
+        acceptChunk(index, data, -1, neighbor);
+    }
+
+    // decodedLength >= 0: data is deflated, inflated on the verifier pool too.
+    // A copy of a chunk that is still being checked is dropped: only one task
+    // per index, so awaitVerification waits for it and nothing else writes the file
+    private void acceptChunk(int index, byte[] encoded, int decodedLength, String neighbor) {
+        if (!verifying.add(index)) {
+            System.out.println("Peer " + peerId + ": chunk " + index + " is being checked already, dropping this copy");
+            return;
+        }
+        int receivedIn = epoch;
+        verifier.execute(() -> {
+            try {
+                if (receivedIn != epoch || (manifest == null && pendingVersion != 0)) {
+                    // of a version we no longer have, or can't tell which one
+                    System.out.println("Peer " + peerId + ": dropping chunk " + index + ", the file has changed");
+                    return;
+                }
+                byte[] data = encoded;
+                if (decodedLength >= 0) {
+                    try {
+                        data = ChunkCompression.inflate(encoded, decodedLength);
+                    } catch (IOException e) {
+                        System.err.println("Peer " + peerId + ": chunk " + index + " - " + e.getMessage());
+                        corrupt.add(index);
+                        return;
+                    }
+                }
+                ChunkManifest m = manifest;
+                if (m != null && !m.verify(index, data)) {
+                    String source = neighbor != null ? neighbor : "tracker";
+                    System.err.println("Peer " + peerId + ": chunk " + index + " from " + source + " failed hash check");
+                    corrupt.add(index);
+                    if (neighbor != null && blacklist.add(neighbor)) {
+                        System.err.println("Peer " + peerId + ": blacklisting neighbor " + neighbor);
+                    }
+                    return;
+                }
+                saveChunkToDisk(index, data);
+                ownedChunks.add(index);
+                corrupt.remove(index);
+            } catch (IOException e) {
+                System.err.println("Peer " + peerId + ": could not save chunk " + index + " - " + e.getMessage());
+            } finally {
+                verifying.remove(index);
+            }
+        });
+    }
+
+    private void awaitVerification() {
+        while (!verifying.isEmpty()) {
+            try { Thread.sleep(10); } catch (InterruptedException e) { return; }
+        }
+    }
+
+    // what to get from the tracker when no neighbor has anything for us. In a
+    // swarm the others are usually stuck the same way, so each takes a share
+    // and they trade the rest: of the chunks nobody has yet (the tracker counts
+    // them as they are sent), or, if all have a holder, once per peer list.
+    // After a refusal nothing until the next announce (or SEED_BACKOFF_MS), and from a tracker that
+    // refuses (super-seeds) only the SEED_REQUEST rarest chunks at a time
+    private List<Integer> trackerShare() {
+        if (System.currentTimeMillis() < trackerRefusedUntil) {
+            return Collections.emptyList();
+        }
+        List<Integer> share = swarmShare();
+        if (trackerSeeds && share.size() > SEED_REQUEST) {
+            share = selector.rarestFirst(share).subList(0, SEED_REQUEST);
+        }
+        return share;
+    }
+
+    private List<Integer> swarmShare() {
+        List<Integer> missing = missingChunks();
+        List<SwarmPeer> peers = swarmPeers;
+        if (downloadNeighborPort != 0 || peers == null || peers.isEmpty()) {
+            return missing;
+        }
+        List<Integer> order = selector.rarestFirst(missing);
+        int unheld = 0;
+        while (unheld < order.size() && selector.holders(order.get(unheld)) == 0) {
+            unheld++;
+        }
+        if (unheld == 0) {
+            if (tookShare) {
+                return Collections.emptyList();
+            }
+            tookShare = true;
+            unheld = order.size();
+        }
+        return order.subList(0, (unheld + peers.size()) / (peers.size() + 1));
+    }
+
+    private List<Integer> missingChunks() {
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < totalChunks; i++) {
+            if (!ownedChunks.contains(i) && !verifying.contains(i)) {
+                missing.add(i);
+            }
+        }
+        return missing;
+    }
+
 
 
 
@@ -170,10 +1369,25 @@ public class Peer {
 
     private List<Integer> chooseInitialChunkIndices(int total, int count) {
         List<Integer> result = new ArrayList<>();
+
+        // once the swarm has announced anything, start with its rarest chunks
+        if (selector.hasData()) {
+            List<Integer> all = new ArrayList<>(total);
+            for (int i = 0; i < total; i++) {
+                if (!ownedChunks.contains(i)) { // some may be left from a previous version
+                    all.add(i);
+                }
+            }
+            result.addAll(selector.rarestFirst(all).subList(0, Math.min(count, all.size())));
+            System.out.println("Peer " + peerId + ": initial chunk indices (rarest first) " + result);
+            return result;
+        }
+
+        // otherwise split the file between the ring by index
         int myIdx = getPeerIndexFromId(); 
 
         for (int i = 0; i < total && result.size() < count; i++) {
-            if (i % NUM_PEERS_IN_RING == myIdx) {
+            if (i % NUM_PEERS_IN_RING == myIdx && !ownedChunks.contains(i)) {
                 result.add(i);
             }
         }
@@ -191,8 +1405,12 @@ public class Peer {
                 Socket neighbor = serverSocket.accept();
                 System.out.println("Peer " + peerId + ": upload neighbor connected from "
                         + neighbor.getRemoteSocketAddress());
-                new Thread(() -> handleUploadNeighbor(neighbor),
-                        "UploadHandler-" + peerId).start();
+                try {
+                    uploadHandlers.execute(() -> handleUploadNeighbor(neighbor));
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    System.err.println("Peer " + peerId + ": no thread for upload neighbor - " + e);
+                    neighbor.close();
+                }
             }
         } catch (IOException e) {
             System.err.println("Peer " + peerId + ": upload server error - " + e.getMessage());
@@ -201,29 +1419,33 @@ public class Peer {
 
     private void handleUploadNeighbor(Socket socket) {
     try {
-        InputStream in = socket.getInputStream();
-        OutputStream out = socket.getOutputStream();
+        LineCodec io = new LineCodec(socket);
 
-        // handshake rdy / rdy
-        String line = readLine(in);
+        // handshake rdy / rdy, or one round trip "hello" (see Hello)
+        String line = io.readLine();
+        if (line != null && Hello.isHello(line)) {
+            serveNeighborHello(line, io);
+            serveNeighborRequests(io);
+            return;
+        }
         if (!"rdy".equals(line)) {
             System.out.println("Peer " + peerId + " UPeer: expected 'rdy', got " + line);
             return;
         }
-        sendLine(out, "rdy");
+        io.sendLine("rdy");
 
         // wait for "chunkIDList"
-        line = readLine(in);
+        line = io.readLine();
         if (!"chunkIDList".equals(line)) {
             System.out.println("Peer " + peerId + " UPeer: expected 'chunkIDList', got " + line);
             return;
         }
 
         // send our chunk ID list
-        sendChunkIdList(out);
+        sendChunkIdList(io);
 
         
-        line = readLine(in);
+        line = io.readLine();
         if ("close".equals(line)) {
             // neighbor doesn't need anything after seeing our list
             System.out.println("Peer " + peerId + " UPeer: neighbor closed after list");
@@ -234,48 +1456,96 @@ public class Peer {
             return;
         }
 
-        // respond to requests
-        while ((line = readLine(in)) != null) {
-            if (line.startsWith("chunk index")) {
-                int idx = Integer.parseInt(line.split("\\s+")[2]);
-                sendChunkToNeighbor(idx, out);
-            } else if ("close".equals(line)) {
-                System.out.println("Peer " + peerId + " UPeer: neighbor closed");
-                break;
-            } else {
-                // ignore other stuff for now
-            }
-        }
+        serveNeighborRequests(io);
 
-    } catch (IOException e) {
+    } catch (IOException | IllegalArgumentException e) {
         System.err.println("Peer " + peerId + " UPeer: error - " + e.getMessage());
     } finally {
         try { socket.close(); } catch (IOException ignored) {}
     }
 }
 
+// respond to requests
+private void serveNeighborRequests(LineCodec io) throws IOException {
+    while (io.nextLine()) {
+        if (io.startsWith("chunk index")) {
+            sendChunkToNeighbor(io.intField(2), io);
+        } else if (io.is("close")) {
+            System.out.println("Peer " + peerId + " UPeer: neighbor closed");
+            break;
+        } else {
+            // ignore other stuff for now
+        }
+    }
+}
+
+// "hello [resume=<token>] [want=<list>]": answer with the wanted chunks we
+// have, right away. The token remembers the rest for the next round.
+private void serveNeighborHello(String line, LineCodec io) throws IOException {
+    Hello hello = Hello.parse(line);
+    String token = hello.resume;
+    Set<Integer> wanted = uploadSessions.resume(token);
+    if (wanted == null) {
+        wanted = new LinkedHashSet<>(); // keeps the neighbor's (rarest first) order
+        token = uploadSessions.create(wanted);
+    }
+    synchronized (wanted) {
+        serveWanted(token, hello, wanted, io);
+    }
+}
+
+private void serveWanted(String token, Hello hello, Set<Integer> wanted, LineCodec io) throws IOException {
+    if (hello.want != null) {
+        wanted.clear();
+        for (int index : Hello.indices(hello.want)) {
+            wanted.add(index);
+        }
+    }
+
+    List<Integer> sending = new ArrayList<>();
+    // chunks of another version of the file would fail the neighbor's hash check
+    boolean sameVersion = hello.version <= 0 || version == 0 || hello.version == version;
+    for (int index : wanted) {
+        if (sameVersion && ownedChunks.contains(index) && sending.size() < ChunkBatch.MAX_CHUNKS) {
+            sending.add(index);
+        }
+    }
+    wanted.removeAll(sending);
+
+    // the reply line leaves with the first chunk
+    io.writeLine("hello " + token + " " + Hello.wantList(sending));
+    for (int index : sending) {
+        sendChunkToNeighbor(index, io);
+    }
+    io.flush();
+    System.out.println("Peer " + peerId + " UPeer: hello, sent " + sending.size() + " chunks, "
+            + wanted.size() + " still wanted");
+}
+
 
-private void sendChunkIdList(OutputStream out) throws IOException {
-    sendLine(out, "LIST " + ownedChunks.size());
-    for (int id : ownedChunks) {
-        sendLine(out, Integer.toString(id));
+private void sendChunkIdList(LineCodec io) throws IOException {
+    // one write for the whole list
+    List<Integer> ids = new ArrayList<>(ownedChunks);
+    io.writeLine("LIST ", ids.size());
+    for (int id : ids) {
+        io.writeLine("", id);
     }
-    sendLine(out, "END");
+    io.writeLine("END").flush();
     System.out.println("Peer " + peerId + " UPeer: sent chunk ID list " + ownedChunks);
 }
 
-private void sendChunkToNeighbor(int index, OutputStream out) throws IOException {
+private void sendChunkToNeighbor(int index, LineCodec io) throws IOException {
     Path path = chunkDir.resolve("chunk_" + index + ".dat");
     if (!Files.exists(path)) {
-        sendLine(out, "chunk size 0");
+        io.sendLine("chunk size 0");
         System.out.println("Peer " + peerId + " UPeer: requested chunk " + index +
                 " but do not have it");
         return;
     }
     byte[] data = Files.readAllBytes(path);
-    sendLine(out, "chunk size " + data.length);
-    out.write(data);
-    out.flush();
+    io.writeLine("chunk size ", data.length);
+    io.write(data, 0, data.length);
+    io.flush();
 
     System.out.println("Peer " + peerId + " UPeer: sent chunk " + index);
 }
@@ -285,65 +1555,55 @@ private void runDownloadClient() {
     try { Thread.sleep(1000); } catch (InterruptedException ignored) {}
 
     while (true) {
-        try (Socket socket = new Socket(downloadNeighborHost, downloadNeighborPort)) {
-            InputStream in = socket.getInputStream();
-            OutputStream out = socket.getOutputStream();
-
-            System.out.println("Peer " + peerId + " DPeer: connected to "
-                    + downloadNeighborHost + ":" + downloadNeighborPort);
-
-            // handshake
-            sendLine(out, "rdy");
-            String line = readLine(in);
-            if (!"rdy".equals(line)) {
-                System.err.println("Peer " + peerId + " DPeer: expected 'rdy', got " + line);
-                continue;
-            }
+        // chunks that failed the hash check come from the tracker instead
+        if (!corrupt.isEmpty()) {
+            List<Integer> again = new ArrayList<>(corrupt);
+            downloadFromTracker(total -> again);
+        }
 
-            // request chunk ID list
-            sendLine(out, "chunkIDList");
-            Set<Integer> neighborChunks = receiveChunkIdList(in);
-            System.out.println("Peer " + peerId + " DPeer: neighbor has " + neighborChunks);
+        // without hashes we can't check what the neighbor sends, keep asking the tracker
+        // (for a while, see waitingForManifest). With no usable neighbor (blacklisted,
+        // or nobody in the swarm has what we miss) the tracker is our only source
+        String neighbor = chooseNeighbor();
+        boolean trackerOnly = neighbor == null && (downloadNeighborPort != 0 || swarmPeers != null);
+        boolean waiting = waitingForManifest();
+        if (waiting || neighbor == null) {
+            if (waiting || trackerOnly) {
+                downloadFromTracker(total -> trackerOnly ? trackerShare() : Collections.emptyList());
+            }
+            if (trackerSeeds && ownedChunks.size() < totalChunks) {
+                announceSoon(); // the chunks the tracker holds back are with someone, find out who
+            }
+            if (totalChunks > 0 && ownedChunks.size() >= totalChunks) {
+                System.out.println("Peer " + peerId + " DPeer: have all chunks!");
+                reconstructFileIfComplete();
+            }
+            try { Thread.sleep(1000); } catch (InterruptedException ignored) {}
+            continue;
+        }
 
-            // compute missing
-            Set<Integer> missing = new HashSet<>(neighborChunks);
-            missing.removeAll(ownedChunks);
-            System.out.println("Peer " + peerId + " DPeer: missing from neighbor: " + missing);
+        int sep = neighbor.lastIndexOf(':');
+        String neighborHost = neighbor.substring(0, sep);
+        int neighborPort = Integer.parseInt(neighbor.substring(sep + 1));
 
-            if (missing.isEmpty()) {
-                sendLine(out, "close");
+        int owned = ownedChunks.size();
+        try (Socket socket = new Socket(neighborHost, neighborPort)) {
+            LineCodec io = new LineCodec(socket);
 
-                // if already have the whole file, done
-                if (totalChunks > 0 && ownedChunks.size() >= totalChunks) {
-                    System.out.println("Peer " + peerId + " DPeer: have all chunks!");
-                    reconstructFileIfComplete();
-                }
+            System.out.println("Peer " + peerId + " DPeer: connected to " + neighbor);
 
-                // otherwise, wait a bit and try again later
-                try { Thread.sleep(1000); } catch (InterruptedException ignored) {}
+            if (legacyNeighbors.contains(neighbor)) {
+                downloadFromNeighborLegacy(neighbor, io);
+            } else if (!downloadFromNeighborHello(neighbor, io)) {
+                System.out.println("Peer " + peerId + " DPeer: " + neighbor + " doesn't know hello, using rdy");
+                legacyNeighbors.add(neighbor);
+                continue;
             }
-
-            // ready to download chunks
-            sendLine(out, "rdyD");
-
-            for (int idx : missing) {
-                sendLine(out, "chunk index " + idx);
-                String szLine = readLine(in); // "chunk size X"
-                if (szLine == null || !szLine.startsWith("chunk size")) {
-                    System.err.println("Peer " + peerId + " DPeer: invalid size line for chunk "
-                            + idx + ": " + szLine);
-                    break;
-                }
-                int size = Integer.parseInt(szLine.split("\\s+")[2]);
-                if (size <= 0) continue;
-                byte[] data = rawRead(in, size);
-                saveChunkToDisk(idx, data);
-                ownedChunks.add(idx);
-                System.out.println("Peer " + peerId + " DPeer: downloaded chunk " + idx);
+            awaitVerification();
+            if (trackerSeeds && ownedChunks.size() > owned) {
+                announceSoon();
             }
 
-            sendLine(out, "close");
-
             if (totalChunks > 0 && ownedChunks.size() >= totalChunks) {
                 System.out.println("Peer " + peerId + " DPeer: have all chunks!");
                 reconstructFileIfComplete();
@@ -360,14 +1620,116 @@ private void runDownloadClient() {
     }
 }
 
-private Set<Integer> receiveChunkIdList(InputStream in) throws IOException {
+// one round trip: what we miss goes in the hello, the neighbor answers with
+// the chunks it has of those. With a resumed session the list is left out
+// unless it changed. false if the neighbor doesn't know "hello"
+private boolean downloadFromNeighborHello(String neighbor, LineCodec io) throws IOException {
+    List<Integer> missing = selector.rarestFirst(missingChunks());
+    List<Integer> want = missing.subList(0, Math.min(missing.size(), ChunkBatch.MAX_CHUNKS));
+    NeighborSession session = downloadSessions.get(neighbor);
+
+    StringBuilder hello = new StringBuilder("hello");
+    if (session != null) {
+        hello.append(" resume=").append(session.token);
+    }
+    boolean sendWant = session == null || !session.outstanding.equals(new HashSet<>(want));
+    if (sendWant) {
+        hello.append(" want=").append(Hello.wantList(want));
+    }
+    if (version > 0) {
+        hello.append(" version=").append(version);
+    }
+    io.sendLine(hello.toString());
+
+    // "hello <token> <list it sends>"
+    String line = io.readLine();
+    String[] reply = line != null ? line.split(" ") : null;
+    if (reply == null || reply.length != 3 || !"hello".equals(reply[0])) {
+        return false;
+    }
+    int[] sending = Hello.indices(reply[2]);
+    System.out.println("Peer " + peerId + " DPeer: neighbor sends " + sending.length + " chunks");
+    if (sending.length == 0 && downloadNeighborPort == 0) {
+        drained.add(neighbor); // its "useful" is out of date (e.g. a super-seeded swarm)
+    }
+
+    for (int idx : sending) {
+        // "chunk size X"
+        if (!io.nextLine() || !io.startsWith("chunk size")) {
+            System.err.println("Peer " + peerId + " DPeer: invalid size line for chunk "
+                    + idx + ": " + io.line());
+            break;
+        }
+        int size = io.intField(2);
+        if (size <= 0) continue;
+        byte[] data = io.readBytes(size);
+        acceptChunk(idx, data, neighbor);
+        System.out.println("Peer " + peerId + " DPeer: downloaded chunk " + idx);
+    }
+    io.sendLine("close");
+
+    // what the neighbor will still send us next round without a new list
+    Set<Integer> outstanding = new HashSet<>(sendWant ? want : session.outstanding);
+    for (int idx : sending) {
+        outstanding.remove(idx);
+    }
+    downloadSessions.put(neighbor, new NeighborSession(reply[1], outstanding));
+    return true;
+}
+
+// rdy -> chunkIDList -> LIST ... END -> rdyD -> chunk index ... -> close
+private void downloadFromNeighborLegacy(String neighbor, LineCodec io) throws IOException {
+    // handshake
+    io.sendLine("rdy");
+    String line = io.readLine();
+    if (!"rdy".equals(line)) {
+        System.err.println("Peer " + peerId + " DPeer: expected 'rdy', got " + line);
+        return;
+    }
+
+    // request chunk ID list
+    io.sendLine("chunkIDList");
+    Set<Integer> neighborChunks = receiveChunkIdList(io);
+    System.out.println("Peer " + peerId + " DPeer: neighbor has " + neighborChunks);
+
+    // compute missing
+    Set<Integer> missing = new HashSet<>(neighborChunks);
+    missing.removeAll(ownedChunks);
+    missing.removeAll(verifying);
+    System.out.println("Peer " + peerId + " DPeer: missing from neighbor: " + missing);
+
+    if (missing.isEmpty()) {
+        // nothing new here, try again next round
+        io.sendLine("close");
+        return;
+    }
+
+    // ready to download chunks
+    io.sendLine("rdyD");
+
+    for (int idx : selector.rarestFirst(missing)) {
+        io.writeLine("chunk index ", idx).flush();
+        // "chunk size X"
+        if (!io.nextLine() || !io.startsWith("chunk size")) {
+            System.err.println("Peer " + peerId + " DPeer: invalid size line for chunk "
+                    + idx + ": " + io.line());
+            break;
+        }
+        int size = io.intField(2);
+        if (size <= 0) continue;
+        byte[] data = io.readBytes(size);
+        acceptChunk(idx, data, neighbor);
+        System.out.println("Peer " + peerId + " DPeer: downloaded chunk " + idx);
+    }
+    io.sendLine("close");
+}
+
+private Set<Integer> receiveChunkIdList(LineCodec io) throws IOException {
     Set<Integer> ids = new HashSet<>();
-    String header = readLine(in); // "LIST n"
+    String header = io.readLine(); // "LIST n"
     if (header == null || !header.startsWith("LIST")) return ids;
-    String line;
-    while ((line = readLine(in)) != null) {
-        if ("END".equals(line)) break;
-        ids.add(Integer.parseInt(line.trim()));
+    while (io.nextLine() && !io.is("END")) {
+        ids.add(io.intField(0));
     }
     return ids;
 }
@@ -391,6 +1753,7 @@ private Set<Integer> receiveChunkIdList(InputStream in) throws IOException {
 
     private void reconstructFileIfComplete() {
         if (totalChunks <= 0) return;
+        if (pendingVersion != 0) return; // our chunks are about to change
         if (ownedChunks.size() < totalChunks) return;
 
         try {
@@ -412,47 +1775,23 @@ private Set<Integer> receiveChunkIdList(InputStream in) throws IOException {
         }
     }
 
-    // HELPERS
-
-    private static void sendLine(OutputStream out, String msg) throws IOException {
-        out.write((msg + "\n").getBytes("UTF-8"));
-        out.flush();
-    }
-
-    private static String readLine(InputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while ((ch = in.read()) != -1) {
-            if (ch == '\n') break;
-            if (ch != '\r') sb.append((char) ch);
-        }
-        if (sb.length() == 0 && ch == -1) {
-            return null; // EOF
-        }
-        return sb.toString();
-    }
-
-    private static byte[] rawRead(InputStream in, int size) throws IOException {
-        byte[] buf = new byte[size];
-        int off = 0;
-        while (off < size) {
-            int r = in.read(buf, off, size - off);
-            if (r == -1) throw new EOFException("Unexpected EOF");
-            off += r;
-        }
-        return buf;
-    }
-
     // MAIN
 
     // how to use:
     // java Peer <peerId> <trackerIP> <trackerPort> <uploadPort>
     //           <downloadNeighborIP> <downloadNeighborPort>
-    //           <chunkDir> <initialChunksFromTracker>
+    //           <chunkDir> <initialChunksFromTracker> [fileName]
+    // downloadNeighborPort 0 picks neighbors from the tracker's swarm registry instead
+    // fileName picks a file when the tracker shares a directory
+    // threads=platform|virtual and maxSessions=n pick how upload neighbors are served (see SessionExecutor)
     public static void main(String[] args) throws Exception {
-        if (args.length != 8) {
+        List<String> rest = new ArrayList<>();
+        SessionExecutor uploadHandlers = SessionExecutor.fromArgs(args, rest, "UploadHandler");
+        args = rest.toArray(new String[0]);
+        if (args.length != 8 && args.length != 9) {
             System.err.println("Usage: java Peer <peerId> <trackerHost> <trackerPort> <uploadPort> " +
-                    "<downloadNeighborHost> <downloadNeighborPort> <chunkDir> <initialChunksFromTracker>");
+                    "<downloadNeighborHost> <downloadNeighborPort> <chunkDir> <initialChunksFromTracker> [fileName]" +
+                    " [threads=platform|virtual] [maxSessions=n]");
             System.exit(1);
         }
 
@@ -464,10 +1803,12 @@ private Set<Integer> receiveChunkIdList(InputStream in) throws IOException {
         int downloadPort = Integer.parseInt(args[5]);
         String chunkDir = args[6];
         int initialFromTracker = Integer.parseInt(args[7]);
+        String wantedFile = args.length > 8 ? args[8] : null;
 
         Peer peer = new Peer(peerId, trackerHost, trackerPort,
                              uploadPort, downloadHost, downloadPort,
-                             chunkDir, initialFromTracker);
+                             chunkDir, initialFromTracker, wantedFile);
+        peer.setUploadHandlers(uploadHandlers);
         peer.start();
     }
 }
\ No newline at end of file
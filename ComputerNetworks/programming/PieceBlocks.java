@@ -0,0 +1,74 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+// One large piece being fetched BLOCK_SIZE bytes at a time (BLOCKS / BLOCK
+// frames, see Frames), so a piece of a few MB doesn't go out as one frame
+// that has to be redone whole when the connection drops. Blocks that arrived
+// stay here across sessions and only the rest is asked for again; the
+// finished piece is hash checked like any other chunk.
+// The peer sizes a piece by the tracker's piece size until the first BLOCK
+// brings the real length (the last piece is shorter).
+class PieceBlocks {
+
+    static final int BLOCK_SIZE = 16 * 1024;
+    // (index, offset, length) triples in one BLOCKS frame
+    static final int MAX_BLOCKS = 256;
+
+    private byte[] data;
+    private int length = -1; // -1 until the first block says
+    private final BitSet received = new BitSet();
+
+    PieceBlocks(int pieceSize) {
+        this.data = new byte[pieceSize];
+    }
+
+    private int size() {
+        return length >= 0 ? length : data.length;
+    }
+
+    // offsets of the blocks still missing
+    List<Integer> missing() {
+        List<Integer> offsets = new ArrayList<>();
+        for (int offset = 0; offset < size(); offset += BLOCK_SIZE) {
+            if (!received.get(offset / BLOCK_SIZE)) {
+                offsets.add(offset);
+            }
+        }
+        return offsets;
+    }
+
+    int blockLength(int offset) {
+        return Math.min(BLOCK_SIZE, size() - offset);
+    }
+
+    // one BLOCK; false if the sender doesn't have the piece (pieceLength 0)
+    boolean put(int offset, int pieceLength, ByteBuffer bytes) {
+        if (pieceLength <= 0) {
+            return false;
+        }
+        if (length < 0) {
+            length = pieceLength;
+            if (length != data.length) {
+                data = Arrays.copyOf(data, length);
+            }
+        }
+        if (offset < 0 || offset >= length || offset % BLOCK_SIZE != 0
+                || bytes.remaining() != blockLength(offset)) {
+            return true; // past the end of the piece, or not a block we asked for
+        }
+        bytes.get(data, offset, bytes.remaining());
+        received.set(offset / BLOCK_SIZE);
+        return true;
+    }
+
+    boolean complete() {
+        return length >= 0 && received.cardinality() == (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    byte[] bytes() {
+        return data;
+    }
+}
@@ -0,0 +1,114 @@
+import java.util.*;
+
+// Round based swarm simulation comparing chunk selection strategies:
+//   in-order -> lowest missing index first (what HashSet iteration over
+//               small Integers gives runDownloadClient today)
+//   rarest   -> PieceSelector, fewest holders first, random tie-break
+//
+// Each round the tracker uploads TRACKER_SLOTS chunks to random peers and
+// every peer downloads up to PEER_SLOTS chunks from one random other peer.
+// Holder counts are the ones announced at the end of the previous round.
+// Reports the rounds until the whole swarm has the file and how many chunks
+// the tracker had to upload.
+//
+// How to run: java PieceSelectionBench [peers] [chunks] [trials]
+public class PieceSelectionBench {
+
+    private static final int TRACKER_SLOTS = 4;
+    private static final int PEER_SLOTS = 2;
+
+    public static void main(String[] args) {
+        int peers = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int chunks = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+        int trials = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.println("peers=" + peers + " chunks=" + chunks + " trials=" + trials
+                + " trackerSlots=" + TRACKER_SLOTS + " peerSlots=" + PEER_SLOTS);
+        for (boolean rarest : new boolean[] { false, true }) {
+            long rounds = 0;
+            long trackerUploads = 0;
+            long meanDone = 0;
+            for (int t = 0; t < trials; t++) {
+                long[] r = simulate(peers, chunks, rarest, new Random(t));
+                rounds += r[0];
+                trackerUploads += r[1];
+                meanDone += r[2];
+            }
+            System.out.printf("%-8s swarm done after %6.1f rounds, mean peer done %6.1f, tracker uploads %7.1f%n",
+                    rarest ? "rarest" : "in-order",
+                    (double) rounds / trials, (double) meanDone / trials, (double) trackerUploads / trials);
+        }
+    }
+
+    // {rounds until every peer is complete, tracker uploads, mean completion round}
+    private static long[] simulate(int peers, int chunks, boolean rarest, Random random) {
+        boolean[][] have = new boolean[peers][chunks];
+        int[] owned = new int[peers];
+        int[] doneAt = new int[peers];
+        int[] holders = new int[chunks];
+        PieceSelector selector = new PieceSelector(random);
+
+        int complete = 0;
+        int round = 0;
+        long trackerUploads = 0;
+        while (complete < peers) {
+            round++;
+            selector.update(holders.clone());
+            List<int[]> transfers = new ArrayList<>(); // {peer, chunk}
+
+            // tracker: the chosen peer asks for its first pick among everything it lacks
+            for (int s = 0; s < TRACKER_SLOTS; s++) {
+                int p = random.nextInt(peers);
+                List<Integer> wanted = missing(have[p], null);
+                if (!wanted.isEmpty()) {
+                    transfers.add(new int[] { p, pick(wanted, rarest, selector) });
+                    trackerUploads++;
+                }
+            }
+
+            // peers: one random neighbor each, up to PEER_SLOTS chunks from it
+            for (int p = 0; p < peers; p++) {
+                if (owned[p] == chunks) continue;
+                int n = random.nextInt(peers - 1);
+                if (n >= p) n++;
+                List<Integer> wanted = missing(have[p], have[n]);
+                List<Integer> order = rarest ? selector.rarestFirst(wanted) : wanted;
+                for (int k = 0; k < PEER_SLOTS && k < order.size(); k++) {
+                    transfers.add(new int[] { p, order.get(k) });
+                }
+            }
+
+            for (int[] t : transfers) {
+                int p = t[0];
+                int c = t[1];
+                if (!have[p][c]) {
+                    have[p][c] = true;
+                    holders[c]++;
+                    if (++owned[p] == chunks) {
+                        doneAt[p] = round;
+                        complete++;
+                    }
+                }
+            }
+        }
+
+        long sum = 0;
+        for (int d : doneAt) sum += d;
+        return new long[] { round, trackerUploads, sum / peers };
+    }
+
+    // chunks `mine` lacks that `theirs` has (theirs == null: the tracker, has everything), ascending
+    private static List<Integer> missing(boolean[] mine, boolean[] theirs) {
+        List<Integer> result = new ArrayList<>();
+        for (int c = 0; c < mine.length; c++) {
+            if (!mine[c] && (theirs == null || theirs[c])) {
+                result.add(c);
+            }
+        }
+        return result;
+    }
+
+    private static int pick(List<Integer> wanted, boolean rarest, PieceSelector selector) {
+        return rarest ? selector.rarestFirst(wanted).get(0) : wanted.get(0);
+    }
+}
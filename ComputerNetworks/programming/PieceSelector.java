@@ -0,0 +1,56 @@
+import java.util.*;
+
+// Rarest-first chunk selection. Holds how many known peers have each chunk
+// (from the tracker's "availability" reply) and orders the chunks we still
+// need so the ones with the fewest holders are requested first. Chunks with
+// the same count come out in random order, so peers don't all go for the
+// same one.
+class PieceSelector {
+
+    private final Random random;
+    private volatile int[] holders = new int[0];
+
+    PieceSelector() {
+        this(new Random());
+    }
+
+    PieceSelector(Random random) {
+        this.random = random;
+    }
+
+    void update(int[] counts) {
+        holders = counts;
+    }
+
+    // false until some peer has announced anything
+    boolean hasData() {
+        for (int c : holders) {
+            if (c > 0) return true;
+        }
+        return false;
+    }
+
+    int holders(int index) {
+        int[] h = holders;
+        return index < h.length ? h[index] : 0;
+    }
+
+    List<Integer> rarestFirst(Collection<Integer> candidates) {
+        List<Integer> order = new ArrayList<>(candidates);
+        Collections.shuffle(order, random);
+        int[] h = holders;
+        // List.sort is stable, so equal counts keep the shuffled order
+        order.sort(Comparator.comparingInt(i -> i < h.length ? h[i] : 0));
+        return order;
+    }
+
+    // "AVAIL c0 c1 ... c(n-1)"
+    static int[] parseAvailability(String line) {
+        String[] parts = line.trim().split("\\s+");
+        int[] counts = new int[parts.length - 1];
+        for (int i = 1; i < parts.length; i++) {
+            counts[i - 1] = Integer.parseInt(parts[i]);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Thread per session models of Tracker.startServer under many concurrent peers.
+//
+// For every mode and connection count a Tracker is started in its own JVM
+// (so it has its own thread and file limits) on a throwaway file. N peers
+// connect at once from one selector thread here, each sends
+//   hello want=0-<CHUNKS_PER_PEER - 1>
+// reads the reply and the chunks, holds the session open for holdMs like a
+// slow peer would and then sends close. Reports wall time, session latency
+// (connect to last chunk byte), failed sessions and the tracker's peak
+// thread count and resident memory from /proc.
+//
+// Modes are Tracker options: "platform", "virtual" (a pool of platform
+// threads before Java 21, see SessionExecutor) and e.g. "platform/1000" for
+// maxSessions=1000.
+//
+// How to run: java SessionBench [connections,...] [modes,...] [holdMs] [port]
+//   e.g. java -Xss256k SessionBench 1000,10000 platform,virtual,platform/1000 1000
+public class SessionBench {
+
+    private static final int CHUNK_SIZE = SharedFile.CHUNK_SIZE;
+    private static final int FILE_CHUNKS = 64;
+    private static final int CHUNKS_PER_PEER = 2;
+    private static final long TIMEOUT_MS = 120_000;
+
+    public static void main(String[] args) throws Exception {
+        String[] counts = (args.length > 0 ? args[0] : "1000,10000").split(",");
+        String[] modes = (args.length > 1 ? args[1] : "platform,virtual").split(",");
+        long holdMs = args.length > 2 ? Long.parseLong(args[2]) : 1000;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 21000;
+
+        Path dir = Files.createTempDirectory("sessionbench");
+        Path file = dir.resolve("bench.dat");
+        byte[] data = new byte[FILE_CHUNKS * CHUNK_SIZE];
+        new Random(1).nextBytes(data);
+        Files.write(file, data);
+
+        System.out.println("java " + Runtime.version().feature() + ", virtual threads "
+                + (SessionExecutor.virtualThreadsAvailable() ? "available" : "not available (pool fallback)")
+                + ", hold " + holdMs + " ms, " + CHUNKS_PER_PEER + " chunks per peer");
+        System.out.printf("%-16s %6s %9s %9s %9s %9s %7s %8s %8s%n",
+                "mode", "conns", "wall ms", "p50 ms", "p99 ms", "max ms", "failed", "threads", "rss MB");
+        try {
+            for (String count : counts) {
+                for (String mode : modes) {
+                    run(mode, Integer.parseInt(count), holdMs, port++, file);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static void run(String mode, int connections, long holdMs, int port, Path file) throws Exception {
+        String[] m = mode.split("/");
+        List<String> cmd = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xss256k", "-cp", System.getProperty("java.class.path"),
+                "Tracker", String.valueOf(port), file.toString(), "mmap", "threads=" + m[0]));
+        if (m.length > 1) {
+            cmd.add("maxSessions=" + m[1]);
+        }
+        Process tracker = new ProcessBuilder(cmd)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try {
+            waitForPort(port, tracker);
+            ProcStats stats = new ProcStats(tracker.pid());
+            stats.start();
+
+            long[] latencies = new long[connections];
+            long start = System.nanoTime();
+            int failed = drive(port, connections, holdMs, latencies);
+            long wallMs = (System.nanoTime() - start) / 1_000_000;
+            stats.stop();
+
+            long[] ok = Arrays.stream(latencies).filter(l -> l > 0).sorted().toArray();
+            System.out.printf("%-16s %6d %9d %9.1f %9.1f %9.1f %7d %8d %8d%n",
+                    mode, connections, wallMs,
+                    percentile(ok, 0.50), percentile(ok, 0.99), percentile(ok, 1.0),
+                    failed, stats.peakThreads, stats.peakRssKb / 1024);
+        } finally {
+            tracker.destroy();
+            tracker.waitFor();
+        }
+    }
+
+    private static void waitForPort(int port, Process tracker) throws Exception {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (true) {
+            try (Socket s = new Socket("127.0.0.1", port)) {
+                s.getOutputStream().write("close\n".getBytes(StandardCharsets.US_ASCII));
+                return;
+            } catch (IOException e) {
+                if (!tracker.isAlive() || System.currentTimeMillis() > deadline) {
+                    throw new IOException("tracker did not start on port " + port);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    // CLIENT SIDE
+
+    private static final class Conn {
+        final int id;
+        final long startNs;
+        final ByteBuffer out;
+        ByteBuffer in = ByteBuffer.allocate(CHUNK_SIZE * CHUNKS_PER_PEER + 1024);
+        long doneNs;   // all chunks read
+        long closeAtNs;
+
+        Conn(int id, String request) {
+            this.id = id;
+            this.startNs = System.nanoTime();
+            this.out = ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        // reply line, then "chunk size N" + N bytes per chunk
+        boolean complete() {
+            int pos = 0;
+            int lim = in.position();
+            byte[] b = in.array();
+            pos = lineEnd(b, pos, lim);
+            if (pos < 0) return false;
+            for (int c = 0; c < CHUNKS_PER_PEER; c++) {
+                int header = pos;
+                pos = lineEnd(b, pos, lim);
+                if (pos < 0) return false;
+                String line = new String(b, header, pos - header - 1, StandardCharsets.US_ASCII).trim();
+                pos += Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+                if (pos > lim) return false;
+            }
+            return true;
+        }
+
+        private static int lineEnd(byte[] b, int from, int lim) {
+            for (int i = from; i < lim; i++) {
+                if (b[i] == '\n') return i + 1;
+            }
+            return -1;
+        }
+    }
+
+    // opens all connections, returns # failed; latencies[i] = 0 for a failed one
+    private static int drive(int port, int connections, long holdMs, long[] latencies) throws IOException {
+        String request = "hello want=0-" + (CHUNKS_PER_PEER - 1) + "\n";
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        int failed = 0;
+        int open = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+
+        try (Selector selector = Selector.open()) {
+            for (int i = 0; i < connections; i++) {
+                try {
+                    SocketChannel ch = SocketChannel.open();
+                    ch.configureBlocking(false);
+                    ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    Conn c = new Conn(i, request);
+                    int ops = ch.connect(address) ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT;
+                    ch.register(selector, ops, c);
+                    open++;
+                } catch (IOException e) {
+                    failed++; // e.g. out of file descriptors
+                }
+            }
+
+            while (open > 0 && System.currentTimeMillis() < deadline) {
+                selector.select(10);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Conn c = (Conn) key.attachment();
+                    SocketChannel ch = (SocketChannel) key.channel();
+                    try {
+                        if (key.isConnectable()) {
+                            ch.finishConnect();
+                            key.interestOps(SelectionKey.OP_WRITE);
+                        } else if (key.isWritable()) {
+                            ch.write(c.out);
+                            if (!c.out.hasRemaining()) key.interestOps(SelectionKey.OP_READ);
+                        } else if (key.isReadable()) {
+                            if (!c.in.hasRemaining()) throw new IOException("reply too long");
+                            if (ch.read(c.in) < 0) throw new IOException("closed early");
+                            if (c.complete()) {
+                                c.doneNs = System.nanoTime();
+                                c.closeAtNs = c.doneNs + holdMs * 1_000_000;
+                                latencies[c.id] = c.doneNs - c.startNs;
+                                key.interestOps(0);
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        key.cancel();
+                        ch.close();
+                        latencies[c.id] = 0;
+                        failed++;
+                        open--;
+                    }
+                }
+
+                // sessions done holding: close them, which frees their tracker thread
+                long now = System.nanoTime();
+                for (SelectionKey key : selector.keys()) {
+                    Conn c = (Conn) key.attachment();
+                    if (c.doneNs > 0 && now >= c.closeAtNs && key.isValid()) {
+                        SocketChannel ch = (SocketChannel) key.channel();
+                        try {
+                            ch.write(ByteBuffer.wrap("close\n".getBytes(StandardCharsets.US_ASCII)));
+                        } catch (IOException ignored) {
+                        }
+                        key.cancel();
+                        ch.close();
+                        open--;
+                    }
+                }
+            }
+
+            // timed out
+            for (SelectionKey key : selector.keys()) {
+                Conn c = (Conn) key.attachment();
+                if (key.isValid() && c.doneNs == 0) {
+                    latencies[c.id] = 0;
+                    failed++;
+                }
+                key.channel().close();
+            }
+        }
+        return failed;
+    }
+
+    private static double percentile(long[] sortedNs, double p) {
+        if (sortedNs.length == 0) return 0;
+        int i = (int) Math.ceil(p * sortedNs.length) - 1;
+        return sortedNs[Math.max(0, i)] / 1e6;
+    }
+
+    // TRACKER SIDE
+
+    // peak Threads / VmRSS of a process, sampled from /proc every 20 ms (Linux only, 0 elsewhere)
+    private static final class ProcStats implements Runnable {
+        private final Path status;
+        private final Thread sampler = new Thread(this, "ProcStats");
+        private volatile boolean running = true;
+        volatile int peakThreads;
+        volatile long peakRssKb;
+
+        ProcStats(long pid) {
+            this.status = Paths.get("/proc", String.valueOf(pid), "status");
+        }
+
+        void start() {
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            sampler.join();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    for (String line : Files.readAllLines(status)) {
+                        if (line.startsWith("Threads:")) {
+                            peakThreads = Math.max(peakThreads, Integer.parseInt(line.substring(8).trim()));
+                        } else if (line.startsWith("VmRSS:")) {
+                            String kb = line.substring(6).trim().split("\\s+")[0];
+                            peakRssKb = Math.max(peakRssKb, Long.parseLong(kb));
+                        }
+                    }
+                    Thread.sleep(20);
+                } catch (IOException | InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the handler of every accepted connection, for the thread per
+// connection servers (Tracker.startServer, Peer / revisedClient upload
+// servers, Jaden):
+//   platform -> a new platform thread per connection, as before
+//   virtual  -> a virtual thread per connection (Java 21+). Looked up by
+//               reflection so this still builds on Java 17; there it falls
+//               back to a pool of reused platform threads.
+// maxSessions > 0 caps the sessions running at once: execute() holds up the
+// accept loop until one ends, and new connects wait in the listen backlog.
+// shutdown() waits for the sessions still running, so a server that stops
+// doesn't leave handlers behind.
+//
+// Picked at startup with threads=platform|virtual and maxSessions=n.
+class SessionExecutor {
+
+    // pool size when virtual threads are missing and no maxSessions was given
+    private static final int FALLBACK_POOL = 512;
+
+    private final String name;
+    private final ExecutorService executor; // null -> new platform thread per session
+    private final Semaphore slots;          // null -> no cap
+    private final String description;
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+
+    SessionExecutor(String mode, int maxSessions, String name) {
+        this.name = name;
+        this.slots = maxSessions > 0 ? new Semaphore(maxSessions) : null;
+        String cap = maxSessions > 0 ? ", at most " + maxSessions + " sessions" : "";
+
+        switch (mode) {
+            case "platform":
+                this.executor = null;
+                this.description = "platform thread per session" + cap;
+                break;
+            case "virtual":
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual != null) {
+                    this.executor = virtual;
+                    this.description = "virtual thread per session" + cap;
+                } else {
+                    int size = maxSessions > 0 ? maxSessions : FALLBACK_POOL;
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(), r -> new Thread(r, name + "-" + threadCount.incrementAndGet()));
+                    pool.allowCoreThreadTimeOut(true);
+                    this.executor = pool;
+                    this.description = "no virtual threads on Java " + Runtime.version().feature()
+                            + ", pool of " + size + " platform threads" + cap;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("threads=" + mode + ", expected platform or virtual");
+        }
+    }
+
+    // threads=... / maxSessions=... taken out of args; everything else goes to `rest`
+    static SessionExecutor fromArgs(String[] args, List<String> rest, String name) {
+        String mode = "platform";
+        int maxSessions = 0;
+        for (String arg : args) {
+            if (arg.startsWith("threads=")) {
+                mode = arg.substring(8);
+            } else if (arg.startsWith("maxSessions=")) {
+                maxSessions = Integer.parseInt(arg.substring(12));
+            } else {
+                rest.add(arg);
+            }
+        }
+        return new SessionExecutor(mode, maxSessions, name);
+    }
+
+    static boolean virtualThreadsAvailable() {
+        return Runtime.version().feature() >= 21;
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() if this JVM has it
+    private static ExecutorService newVirtualThreadExecutor() {
+        if (!virtualThreadsAvailable()) {
+            return null;
+        }
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // runs session on its own thread, once a slot is free
+    void execute(Runnable session) throws InterruptedIOException {
+        if (slots != null) {
+            try {
+                slots.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted waiting for a session slot");
+            }
+        }
+        peak.accumulateAndGet(active.incrementAndGet(), Math::max);
+
+        Runnable task = () -> {
+            try {
+                session.run();
+            } finally {
+                active.decrementAndGet();
+                if (slots != null) {
+                    slots.release();
+                }
+            }
+        };
+        try {
+            if (executor != null) {
+                executor.execute(task);
+            } else {
+                new Thread(task, name + "-" + threadCount.incrementAndGet()).start();
+            }
+        } catch (RuntimeException | OutOfMemoryError e) {
+            // no thread for it (e.g. the OS thread limit): give the slot back
+            active.decrementAndGet();
+            if (slots != null) {
+                slots.release();
+            }
+            throw e;
+        }
+    }
+
+    int active() {
+        return active.get();
+    }
+
+    int peak() {
+        return peak.get();
+    }
+
+    // stop taking sessions, wait up to timeoutMs for the running ones
+    void shutdown(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        while (active.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+}
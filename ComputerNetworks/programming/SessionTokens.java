@@ -0,0 +1,67 @@
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Resume tokens handed out in the "hello" reply (see Hello), each naming
+// whatever a reconnecting peer would otherwise have to send again.
+// At most maxTokens are kept (least recently used dropped first), and a
+// token not used for ttlMs is gone.
+class SessionTokens<T> {
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int maxTokens;
+    private final long ttlMs;
+
+    private static final class Entry<T> {
+        final T state;
+        long lastUsed;
+
+        Entry(T state) {
+            this.state = state;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    // access order -> eldest entry is the least recently used token
+    private final LinkedHashMap<String, Entry<T>> tokens;
+
+    SessionTokens(int maxTokens, long ttlMs) {
+        this.maxTokens = maxTokens;
+        this.ttlMs = ttlMs;
+        this.tokens = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+                return size() > SessionTokens.this.maxTokens;
+            }
+        };
+    }
+
+    synchronized String create(T state) {
+        String token = Long.toHexString(RANDOM.nextLong() | Long.MIN_VALUE);
+        tokens.put(token, new Entry<>(state));
+        return token;
+    }
+
+    // state of a live token, null if it is unknown or expired
+    synchronized T resume(String token) {
+        if (token == null) {
+            return null;
+        }
+        Entry<T> e = tokens.get(token);
+        if (e == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - e.lastUsed > ttlMs) {
+            tokens.remove(token);
+            return null;
+        }
+        e.lastUsed = now;
+        return e.state;
+    }
+
+    synchronized int size() {
+        return tokens.size();
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+// Which tracker nodes of a cluster serve which chunks. Every node and every
+// chunk ("<fileName>#<index>") is hashed onto a ring; a chunk belongs to the
+// first `replicas` distinct nodes clockwise from it. Each node is put on the
+// ring VNODES times, so chunks spread evenly and adding or removing a node
+// only moves the chunks next to it.
+//
+// Trackers and peers build the same map from the same list, sent as
+//
+//   SHARDS <replicas> <self> <host:port> <host:port> ...
+//
+// (self: the node answering) or "SHARDS 0" from a tracker that isn't part
+// of a cluster. Peers ask with "shards", "hello ... shards" or a SHARDS frame.
+class ShardMap {
+
+    private static final int VNODES = 100;
+
+    private final List<String> nodes;
+    private final int replicas;
+    private final String self;
+    private final long[] ring;      // sorted hashes
+    private final int[] ringNodes;  // node index for each ring position
+
+    // nodes as "host:port"; self is this node on a tracker, the node that sent the map on a peer
+    ShardMap(List<String> nodes, int replicas, String self) {
+        if (nodes.isEmpty() || replicas < 1) {
+            throw new IllegalArgumentException("cluster needs nodes and replicas >= 1");
+        }
+        if (self != null && !nodes.contains(self)) {
+            throw new IllegalArgumentException(self + " is not one of the cluster nodes " + nodes);
+        }
+        this.nodes = List.copyOf(nodes);
+        this.replicas = Math.min(replicas, nodes.size());
+        this.self = self;
+
+        long[][] points = new long[nodes.size() * VNODES][];
+        for (int n = 0; n < nodes.size(); n++) {
+            for (int v = 0; v < VNODES; v++) {
+                points[n * VNODES + v] = new long[] { hash(nodes.get(n) + "#" + v), n };
+            }
+        }
+        Arrays.sort(points, Comparator.comparingLong(p -> p[0]));
+        this.ring = new long[points.length];
+        this.ringNodes = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            ring[i] = points[i][0];
+            ringNodes[i] = (int) points[i][1];
+        }
+    }
+
+    List<String> nodes() {
+        return nodes;
+    }
+
+    int replicas() {
+        return replicas;
+    }
+
+    String self() {
+        return self;
+    }
+
+    // the nodes responsible for a chunk, the first one preferred
+    List<String> owners(String fileName, int index) {
+        long h = hash(fileName + "#" + index);
+        int i = Arrays.binarySearch(ring, h);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        List<String> owners = new ArrayList<>(replicas);
+        for (int step = 0; step < ring.length && owners.size() < replicas; step++) {
+            String node = nodes.get(ringNodes[(i + step) % ring.length]);
+            if (!owners.contains(node)) {
+                owners.add(node);
+            }
+        }
+        return owners;
+    }
+
+    // chunks of the file this node (self) is one of the owners of
+    BitSet owned(String fileName, int totalChunks) {
+        BitSet owned = new BitSet(totalChunks);
+        for (int i = 0; i < totalChunks; i++) {
+            if (owners(fileName, i).contains(self)) {
+                owned.set(i);
+            }
+        }
+        return owned;
+    }
+
+    private static long hash(String key) {
+        MessageDigest sha = ChunkSplitter.sha256();
+        return ByteBuffer.wrap(sha.digest(key.getBytes(StandardCharsets.UTF_8))).getLong();
+    }
+
+    // WIRE FORMAT
+
+    // "SHARDS ..." without the newline; "SHARDS 0" for no map
+    static String encode(ShardMap map) {
+        if (map == null) {
+            return "SHARDS 0";
+        }
+        return "SHARDS " + map.replicas + " " + map.self + " " + String.join(" ", map.nodes);
+    }
+
+    // null for "SHARDS 0", and for a map without the answering node among
+    // its nodes (e.g. "SHARDS 2"): a peer can't route chunks by that
+    static ShardMap parse(String line) {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length < 2 || !parts[0].equals("SHARDS")) {
+            throw new IllegalArgumentException("expected SHARDS, got " + line);
+        }
+        int replicas = Integer.parseInt(parts[1]);
+        if (replicas == 0) {
+            return null;
+        }
+        List<String> nodes = parts.length > 3 ? Arrays.asList(parts).subList(3, parts.length) : List.of();
+        if (replicas < 0 || parts.length < 4 || !nodes.contains(parts[2])) {
+            return null;
+        }
+        return new ShardMap(nodes, replicas, parts[2]);
+    }
+
+    // this node in a cluster= list when self= isn't given: the only entry with
+    // our port, or if several have it the only one naming a local address
+    static String findSelf(List<String> nodes, int port) {
+        List<String> withPort = new ArrayList<>();
+        for (String node : nodes) {
+            if (node.endsWith(":" + port)) {
+                withPort.add(node);
+            }
+        }
+        if (withPort.size() == 1) {
+            return withPort.get(0);
+        }
+        List<String> local = new ArrayList<>();
+        for (String node : withPort) {
+            if (isLocal(node.substring(0, node.lastIndexOf(':')))) {
+                local.add(node);
+            }
+        }
+        if (local.size() != 1) {
+            throw new IllegalArgumentException((withPort.isEmpty() ? "no node" : withPort.size() + " nodes")
+                    + " in cluster= with port " + port + (local.size() > 1 ? " on this host" : "")
+                    + ", name this one with self=");
+        }
+        return local.get(0);
+    }
+
+    private static boolean isLocal(String host) {
+        try {
+            InetAddress address = InetAddress.getByName(host);
+            return address.isLoopbackAddress() || address.isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(address) != null;
+        } catch (IOException e) {
+            return false; // unknown host or no interface list, not us
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "node " + self + " of " + nodes.size() + ", " + replicas + " replicas";
+    }
+}
@@ -0,0 +1,553 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Chunk index of one file the tracker shares: either chunk_N.dat files
+// written by a ChunkSplitter (split mode) or slices of the mapped file
+// (mmap mode), plus the chunk manifest once it has been hashed.
+// In split mode chunks can also be served from the tracker's ChunkCache, and
+// cut content defined instead of every CHUNK_SIZE bytes (see ChunkLayout).
+// Fixed chunks (pieces) grow with the file, see pieceSize(); peers fetch
+// large ones in blocks (see PieceBlocks).
+// Peers that negotiated compression get deflated copies, kept per chunk.
+// On a node of a tracker cluster only the chunks the ShardMap gives this node
+// are served (and written to disk); the manifest still covers every chunk.
+// When the source changes the catalog loads it again as the next version
+// (see FileVersion), which knows the chunks that differ from this one. The
+// old version keeps serving the sessions it has; its chunk files are deleted
+// after the last of them ends (see release).
+// In super-seed mode each chunk is uploaded about once, see SuperSeed.
+class SharedFile {
+
+    static final int CHUNK_SIZE = 10 * 1024; // 10 kB, the smallest piece size
+    // files with more pieces than this get bigger ones
+    static final int TARGET_PIECES = 2048;
+    // a whole piece still fits in one v2 frame (Frames.MAX_FRAME)
+    static final int MAX_PIECE_SIZE = 8 << 20;
+
+    private final String fileName;
+    private final Path sourcePath;
+    private final Path chunkDir;          // split mode: this version's chunk_N.dat files, null in mmap mode
+    private final ChunkSplitter splitter; // split mode: writes chunk_N.dat in the background
+    private final MappedChunks mapped;    // mmap mode: slices of the original file, null in split mode
+    private final ChunkCache cache;       // split mode: hot chunk payloads, null if caching is off
+    private final long fileSize;
+    private final ChunkLayout layout;
+    private final int totalChunks;
+
+    // deflated chunks for peers that negotiated it (ChunkCompression.RAW if a
+    // chunk doesn't shrink), null if compression is off
+    private final ChunkCompression compression;
+    private final AtomicReferenceArray<ByteBuffer> deflated;
+    // stored while a chunk is deflated in the background
+    private static final ByteBuffer DEFLATING = ByteBuffer.allocate(0);
+
+    // cluster mode: the chunks this node serves, null for all of them
+    private final ShardMap shards;
+    private final BitSet owned;
+
+    // null unless super-seeding
+    private final SuperSeed superSeed;
+
+    // chunk hashes + Merkle root, null until every chunk has been hashed
+    private volatile ChunkManifest manifest;
+
+    // see FileVersion
+    private final int version;
+    private final byte[][] previousHashes;   // of version - 1, null if unknown
+    private volatile List<Integer> changed;  // since version - 1, set with the manifest; null if unknown
+    private final String sourceStamp;        // size/mtime of the source this version was made from
+    private volatile String lastSeen;
+    // the version this one replaced, until our split no longer reads its files
+    private volatile SharedFile previous;
+    // sessions serving this version, +1 until a newer version is done with it,
+    // +1 while splitting; at 0 the chunk files go
+    private final AtomicInteger holds = new AtomicInteger(1);
+    // a newer version replaced this one in the catalog
+    private volatile boolean retired;
+
+    // peers that announced themselves for this file
+    private final SwarmRegistry swarm = new SwarmRegistry();
+
+    // split mode: a byte range of a file on disk that holds one chunk
+    static final class ChunkLocation {
+        final Path file;
+        final long offset;
+        final int length;
+
+        ChunkLocation(Path file, long offset, int length) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // chunker: content defined chunks in split mode, null for fixed size chunks
+    // pieceSize: bytes per fixed size chunk, 0 to pick it from the file size
+    // compression: budget for deflated chunks, shared by every file
+    // shards: this node's share of a tracker cluster, null if it serves everything
+    // superSeed: chunks a peer may hold alone before it gets new ones (see SuperSeed), 0 = off
+    // previous: the version this one replaces, null when first loaded
+    SharedFile(Path path, boolean mmap, ChunkCache cache, ContentChunker chunker, int pieceSize,
+               ChunkCompression compression, ShardMap shards, int superSeed,
+               SharedFile previous) throws IOException {
+        this.fileName = path.getFileName().toString();
+        this.shards = shards;
+        this.sourcePath = path;
+        this.cache = mmap ? null : cache; // the mapping already lives in the page cache
+        this.sourceStamp = stamp(path);
+        this.lastSeen = sourceStamp;
+        this.fileSize = Files.size(path);
+        ChunkManifest before = previous != null ? previous.manifest : null;
+        if (pieceSize <= 0) {
+            pieceSize = pieceSize(fileSize);
+        }
+
+        if (mmap) {
+            // nothing written to disk, chunk i is served from offset i * pieceSize
+            this.chunkDir = null;
+            this.splitter = null;
+            this.mapped = new MappedChunks(path, pieceSize);
+            this.layout = ChunkLayout.fixed(fileSize, pieceSize);
+            this.totalChunks = mapped.totalChunks();
+            this.version = previous != null ? previous.version + 1 : 1;
+            this.previousHashes = before != null ? before.leaves() : null;
+            if (previous != null) {
+                previous.release(); // nothing of it on disk to keep
+            }
+            new Thread(() -> published(new ChunkManifest(mapped.hashAll())), "TrackerHasher-" + fileName).start();
+        } else {
+            // nodes of a cluster on one host each keep their own share
+            String dirName = shards == null ? fileName + "_chunks"
+                    : fileName + "_chunks_" + shards.self().replace(':', '_');
+            Path chunkRoot = path.toAbsolutePath().getParent().resolve(dirName);
+            Files.createDirectories(chunkRoot);
+            this.mapped = null;
+
+            // chunk files on disk, written in parallel while we already accept peers.
+            // The split manifest on disk knows the version, even across restarts
+            this.splitter = new ChunkSplitter(path, chunkRoot, pieceSize, chunker,
+                    previous != null ? previous.version + 1 : 1,
+                    shards == null ? null : n -> shards.owned(fileName, n));
+            this.chunkDir = splitter.chunkDir();
+            this.layout = splitter.layout();
+            this.totalChunks = splitter.totalChunks();
+            this.version = splitter.version();
+            if (splitter.previousHashes() != null) {
+                this.previousHashes = splitter.previousHashes();
+            } else {
+                this.previousHashes = before != null && previous.version == version - 1 ? before.leaves() : null;
+            }
+            // unchanged chunks are linked from the previous version's files
+            this.previous = previous;
+            holds.incrementAndGet();
+            splitter.start(() -> published(new ChunkManifest(splitter.hashes(), layout)), this::splitFinished);
+        }
+        this.compression = compression.enabled() ? compression : null;
+        this.deflated = this.compression != null ? new AtomicReferenceArray<>(totalChunks) : null;
+        this.owned = shards != null ? shards.owned(fileName, totalChunks) : null;
+        this.superSeed = superSeed > 0 ? new SuperSeed(this, superSeed) : null;
+        System.out.println("Tracker: file=" + fileName + ", total chunks=" + totalChunks
+                + (mmap ? " (mmap)" : "") + (layout.isContentDefined() ? " (" + layout.spec() + ")" : "")
+                + (layout.maxChunkSize() != CHUNK_SIZE && !layout.isContentDefined()
+                        ? ", piece size " + layout.maxChunkSize() : "")
+                + (version > 1 ? ", version " + version : ""));
+        if (owned != null) {
+            System.out.println("Tracker: " + shards + ", owns " + owned.cardinality() + " of " + totalChunks + " chunks");
+        }
+    }
+
+    // fixed chunk size for a file: CHUNK_SIZE up to TARGET_PIECES pieces, above
+    // that the smallest power of two that keeps it at TARGET_PIECES (up to MAX_PIECE_SIZE)
+    static int pieceSize(long fileSize) {
+        if (fileSize <= (long) CHUNK_SIZE * TARGET_PIECES) {
+            return CHUNK_SIZE;
+        }
+        long size = Long.highestOneBit((fileSize + TARGET_PIECES - 1) / TARGET_PIECES - 1) << 1;
+        return (int) Math.min(size, MAX_PIECE_SIZE);
+    }
+
+    // every chunk hashed: the manifest (and the chunks changed since the last version) can go out
+    private void published(ChunkManifest m) {
+        if (previousHashes != null) {
+            changed = FileVersion.diff(previousHashes, m.leaves());
+        }
+        manifest = m;
+        System.out.println("Tracker: " + fileName + " manifest ready, root=" + m.rootHex());
+        if (changed != null) {
+            System.out.println("Tracker: " + fileName + " version " + version + " published, "
+                    + changed.size() + " of " + totalChunks + " chunks changed");
+        }
+    }
+
+    // the split no longer reads the previous version's files
+    private void splitFinished() {
+        SharedFile p = previous;
+        previous = null;
+        if (p != null) {
+            p.release();
+        }
+        release();
+    }
+
+    // a session serving this version; TrackerCatalog.get takes one for the caller
+    void retain() {
+        holds.incrementAndGet();
+    }
+
+    // the session is done with it. Once a newer version is done with this one
+    // too, its chunk files are deleted
+    void release() {
+        if (holds.decrementAndGet() == 0) {
+            discard();
+        }
+    }
+
+    // held by a session or the split, not just by the catalog
+    boolean inUse() {
+        return holds.get() > 1;
+    }
+
+    // a newer version replaced this one in the catalog. In mmap mode the
+    // file it maps is the changed source, so it serves no chunks any more
+    void retire() {
+        retired = true;
+        unload();
+    }
+
+    private void discard() {
+        if (chunkDir == null) {
+            return;
+        }
+        try {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(chunkDir, "chunk_*.dat")) {
+                for (Path file : files) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(chunkDir);
+        } catch (IOException e) {
+            System.out.println("Tracker: could not delete " + chunkDir + " - " + e.getMessage());
+            return;
+        }
+        System.out.println("Tracker: deleted the chunk files of " + fileName + " version " + version);
+    }
+
+    String fileName() {
+        return fileName;
+    }
+
+    int version() {
+        return version;
+    }
+
+    // reply to "version <n>" from a peer on version n, see FileVersion
+    String versionReply(int peerVersion) {
+        if (peerVersion == version) {
+            return FileVersion.encode(version, List.of(), false) + "\n";
+        }
+        List<Integer> diff = peerVersion == version - 1 ? changed : null;
+        return FileVersion.encode(version, diff, manifest == null) + "\n";
+    }
+
+    // true once the source on disk is no longer what this version was made
+    // from and hasn't changed since the last call (so it isn't still being written)
+    boolean sourceChanged() {
+        String now;
+        try {
+            now = stamp(sourcePath);
+        } catch (IOException e) {
+            return false; // gone for now, keep serving this version
+        }
+        boolean stable = now.equals(lastSeen);
+        lastSeen = now;
+        return stable && !now.equals(sourceStamp);
+    }
+
+    private static String stamp(Path path) throws IOException {
+        return Files.size(path) + "/" + SplitManifest.mtime(path);
+    }
+
+    int totalChunks() {
+        return totalChunks;
+    }
+
+    // the longest chunk: the piece size unless chunks are content defined
+    int maxChunkSize() {
+        return layout.maxChunkSize();
+    }
+
+    // reply to "manifest", see ChunkManifest
+    String manifestReply() {
+        ChunkManifest m = manifest;
+        return m != null ? m.encode() : "MANIFEST busy\n";
+    }
+
+    // protocol v2 META payload, empty while hashing
+    byte[] manifestFrame() {
+        ChunkManifest m = manifest;
+        return m != null ? m.encodeBinary() : new byte[0];
+    }
+
+    SwarmRegistry swarm() {
+        return swarm;
+    }
+
+    // null unless super-seeding
+    SuperSeed superSeed() {
+        return superSeed;
+    }
+
+    // false for chunks another node of the cluster serves
+    boolean owns(int index) {
+        return owned == null || owned.get(index);
+    }
+
+    // true if chunks are handed out as buffers (mmap mode or chunk cache),
+    // false if they are sent from a ChunkLocation
+    boolean hasChunkBuffers() {
+        return mapped != null || cache != null;
+    }
+
+    // frees this file's cached chunks, called when the catalog unloads it
+    void unload() {
+        if (cache != null) {
+            cache.invalidate(cacheKey(""));
+        }
+        if (deflated != null) {
+            for (int i = 0; i < totalChunks; i++) {
+                ByteBuffer d = deflated.getAndSet(i, null);
+                if (d != null) {
+                    compression.release(d.capacity());
+                }
+            }
+        }
+    }
+
+    // bytes in chunk index, 0 if the index is out of range or another node serves it
+    int chunkLength(int index) {
+        if (index < 0 || index >= totalChunks || !owns(index)) {
+            return 0;
+        }
+        return layout.length(index);
+    }
+
+    private boolean validIndex(int index) {
+        if (index < 0 || index >= totalChunks) {
+            System.out.println("Tracker: invalid chunk index " + index + " for " + fileName);
+            return false;
+        }
+        if (!owns(index)) {
+            System.out.println("Tracker: chunk " + index + " of " + fileName + " is not in this node's shard");
+            return false;
+        }
+        return true;
+    }
+
+    // mmap mode or chunk cache: null if the index is out of range
+    ByteBuffer chunkBuffer(int index) throws IOException {
+        if (!validIndex(index)) {
+            return null;
+        }
+        if (mapped != null) {
+            return retired ? null : mapped.chunk(index);
+        }
+        ChunkLocation chunk = locate(index);
+        if (chunk == null) {
+            return null;
+        }
+        return cache.get(cacheKey(Integer.toString(index)), chunk.file, chunk.offset, chunk.length);
+    }
+
+    // like chunkBuffer, but never reads the disk on the calling thread (a
+    // selector thread, see TrackerSession): null on a chunk cache miss, the
+    // chunk is then read into the cache in the background and the caller
+    // sends this one from chunkLocation. Also null if the index is out of range
+    ByteBuffer loadedChunkBuffer(int index) {
+        if (!validIndex(index)) {
+            return null;
+        }
+        if (mapped != null) {
+            return retired ? null : mapped.chunk(index);
+        }
+        String key = cacheKey(Integer.toString(index));
+        ByteBuffer chunk = cache.getIfLoaded(key);
+        if (chunk == null) {
+            ChunkLocation location = locate(index);
+            if (location != null) {
+                cache.loadLater(key, location.file, location.offset, location.length);
+            }
+        }
+        return chunk;
+    }
+
+    // the block out of loadedChunkBuffer, null if that is null
+    ByteBuffer loadedBlockBuffer(int index, int offset, int length) {
+        ByteBuffer chunk = loadedChunkBuffer(index);
+        if (chunk == null) {
+            return null;
+        }
+        int size = blockLength(index, offset, length);
+        return chunk.slice(chunk.position() + (size > 0 ? offset : 0), size);
+    }
+
+    // bytes of a block (see PieceBlocks) inside chunk index, 0 if none are
+    int blockLength(int index, int offset, int length) {
+        if (offset < 0 || length < 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(length, chunkLength(index) - offset));
+    }
+
+    // a block of the chunk as a buffer (mmap mode or chunk cache), null if the index is out of range
+    ByteBuffer blockBuffer(int index, int offset, int length) throws IOException {
+        ByteBuffer chunk = chunkBuffer(index);
+        if (chunk == null) {
+            return null;
+        }
+        int size = blockLength(index, offset, length);
+        return chunk.slice(chunk.position() + (size > 0 ? offset : 0), size);
+    }
+
+    // split mode: where a block of the chunk is, null if the index is out of range
+    ChunkLocation blockLocation(int index, int offset, int length) {
+        ChunkLocation chunk = chunkLocation(index);
+        if (chunk == null) {
+            return null;
+        }
+        int size = blockLength(index, offset, length);
+        return new ChunkLocation(chunk.file, chunk.offset + (size > 0 ? offset : 0), size);
+    }
+
+    // versions of a file don't share cache entries
+    private String cacheKey(String index) {
+        return fileName + "@" + version + "#" + index;
+    }
+
+    // deflated chunk for a peer that negotiated it; null if it goes raw (the
+    // chunk doesn't shrink, index out of range, compression off, budget used
+    // up, a newer version replaced this one). Deflated the first time and
+    // kept while the compression budget lasts.
+    ByteBuffer deflatedChunk(int index) throws IOException {
+        if (!deflatable(index)) {
+            return null;
+        }
+        ByteBuffer d = deflated.get(index);
+        if (d == null || d == DEFLATING) {
+            if (compression.full()) {
+                return null; // it couldn't be kept, don't deflate it for every peer
+            }
+            ByteBuffer raw = rawChunk(index);
+            if (raw == null) {
+                return null;
+            }
+            d = compression.compress(raw);
+            keep(index, null, d);
+        }
+        return d == ChunkCompression.RAW ? null : d.duplicate();
+    }
+
+    // same as deflatedChunk, but never reads or deflates on the calling thread
+    // (a selector thread, see TrackerSession): a chunk not kept yet goes raw
+    // this time and is deflated in the background for the next peer
+    ByteBuffer keptDeflatedChunk(int index) {
+        if (!deflatable(index)) {
+            return null;
+        }
+        ByteBuffer d = deflated.get(index);
+        if (d == null) {
+            if (!compression.full() && deflated.compareAndSet(index, null, DEFLATING)
+                    && !compression.inBackground(() -> deflateInBackground(index))) {
+                deflated.compareAndSet(index, DEFLATING, null);
+            }
+            return null;
+        }
+        return d == ChunkCompression.RAW || d == DEFLATING ? null : d.duplicate();
+    }
+
+    private void deflateInBackground(int index) {
+        ByteBuffer d = null;
+        try {
+            ByteBuffer raw = compression.full() ? null : rawChunk(index);
+            if (raw != null) {
+                d = compression.compress(raw);
+            }
+        } catch (IOException e) {
+            System.out.println("Tracker: could not deflate chunk " + index + " - " + e.getMessage());
+        }
+        if (d == null || !keep(index, DEFLATING, d)) {
+            deflated.compareAndSet(index, DEFLATING, null);
+        }
+    }
+
+    // stores d in place of expected if it fits the budget
+    private boolean keep(int index, ByteBuffer expected, ByteBuffer d) {
+        if (!compression.reserve(d.capacity())) {
+            return false;
+        }
+        if (!deflated.compareAndSet(index, expected, d)) {
+            compression.release(d.capacity()); // another thread got there first, or unloaded
+            return false;
+        }
+        return true;
+    }
+
+    private boolean deflatable(int index) {
+        return deflated != null && !retired && index >= 0 && index < totalChunks && owns(index);
+    }
+
+    private ByteBuffer rawChunk(int index) throws IOException {
+        if (hasChunkBuffers()) {
+            return chunkBuffer(index);
+        }
+        ChunkLocation chunk = locate(index);
+        if (chunk == null) {
+            return null;
+        }
+        ByteBuffer data = ByteBuffer.allocate(chunk.length);
+        try (FileChannel source = FileChannel.open(chunk.file, StandardOpenOption.READ)) {
+            while (data.hasRemaining()) {
+                if (source.read(data, chunk.offset + data.position()) < 0) {
+                    throw new EOFException("chunk " + index + " ends early in " + chunk.file);
+                }
+            }
+        }
+        return data.flip();
+    }
+
+    // split mode: null if the index is out of range (always in mmap mode).
+    // Until the splitter has written chunk_N.dat, the same bytes are read from
+    // the source file.
+    ChunkLocation chunkLocation(int index) {
+        return splitter != null && validIndex(index) ? locate(index) : null;
+    }
+
+    // null for a chunk not written yet once the source has changed (or a newer
+    // version replaced this one): its bytes there may be the next version's
+    private ChunkLocation locate(int index) {
+        long offset = layout.offset(index);
+        int length = chunkLength(index);
+        if (splitter.isReady(index)) {
+            return new ChunkLocation(chunkDir.resolve("chunk_" + index + ".dat"), 0, length);
+        }
+        if (retired || sourceMoved()) {
+            System.out.println("Tracker: chunk " + index + " of " + fileName + " version " + version
+                    + " isn't split yet and the file changed, not sending it");
+            return null;
+        }
+        return new ChunkLocation(sourcePath, offset, length);
+    }
+
+    private boolean sourceMoved() {
+        try {
+            return !stamp(sourcePath).equals(sourceStamp);
+        } catch (IOException e) {
+            return true; // gone
+        }
+    }
+}
@@ -0,0 +1,180 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.BitSet;
+import java.util.HexFormat;
+import java.util.List;
+
+// What a finished split wrote, saved as <file>_chunks.manifest next to the
+// chunk directory so the next tracker start can skip splitting:
+//
+//   splitmanifest 1
+//   size <source bytes>
+//   mtime <source last modified, ms>
+//   version <n>            (see FileVersion)
+//   chunking fixed <chunkSize> | cdc <min> <avg> <max>
+//   chunks <n>
+//   <SHA-256 of chunk 0 hex> <length>
+//   ...
+//   END
+//
+// Each version's chunk_N.dat files are in their own directory,
+// <file>_chunks/v<n> (see chunkDir), so a new version never rewrites a file
+// an older one is still being served from. A manifest in any other format
+// is ignored, so the file is split again.
+// It only counts if size, mtime and chunking still match and every
+// chunk_N.dat has its length (every one this node keeps, see ShardMap). It
+// is written last (temp file + rename) and deleted before a new split
+// starts, so a split that died halfway never looks finished.
+class SplitManifest {
+
+    private static final String MAGIC = "splitmanifest 1";
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final long size;
+    private final long mtime;
+    private final int version;
+    private final String chunking;
+    private final byte[][] hashes;
+    private final int[] lengths;
+
+    SplitManifest(long size, long mtime, int version, ChunkLayout layout, byte[][] hashes) {
+        this.size = size;
+        this.mtime = mtime;
+        this.version = version;
+        this.chunking = layout.spec();
+        this.hashes = hashes;
+        this.lengths = new int[hashes.length];
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = layout.length(i);
+        }
+    }
+
+    private SplitManifest(long size, long mtime, int version, String chunking, byte[][] hashes, int[] lengths) {
+        this.size = size;
+        this.mtime = mtime;
+        this.version = version;
+        this.chunking = chunking;
+        this.hashes = hashes;
+        this.lengths = lengths;
+    }
+
+    static Path pathFor(Path chunkRoot) {
+        return chunkRoot.resolveSibling(chunkRoot.getFileName() + ".manifest");
+    }
+
+    // where version's chunk files go under <file>_chunks
+    static Path versionDir(Path chunkRoot, int version) {
+        return chunkRoot.resolve("v" + version);
+    }
+
+    // where this split's chunk files are
+    Path chunkDir(Path chunkRoot) {
+        return versionDir(chunkRoot, version);
+    }
+
+    // last modified time as stored in the manifest
+    static long mtime(Path src) throws IOException {
+        return Files.getLastModifiedTime(src).toMillis();
+    }
+
+    byte[][] hashes() {
+        return hashes;
+    }
+
+    int version() {
+        return version;
+    }
+
+    ChunkLayout layout() {
+        if (chunking.startsWith("fixed ")) {
+            return ChunkLayout.fixed(size, Integer.parseInt(chunking.substring(6)));
+        }
+        return ChunkLayout.contentDefined(lengths, ContentChunker.parseSpec(chunking));
+    }
+
+    // still describes src split this way (ChunkLayout.spec()), and the chunk files
+    // are all there; keep: the chunks that have files, null for all of them
+    boolean matches(long size, long mtime, String chunking, Path chunkRoot, BitSet keep) {
+        if (size != this.size || mtime != this.mtime || !chunking.equals(this.chunking)) {
+            return false;
+        }
+        Path chunkDir = chunkDir(chunkRoot);
+        for (int i = 0; i < hashes.length; i++) {
+            if (keep != null && !keep.get(i)) {
+                continue;
+            }
+            try {
+                if (Files.size(chunkDir.resolve("chunk_" + i + ".dat")) != lengths[i]) {
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // null if there is none or it can't be read
+    static SplitManifest load(Path file) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.US_ASCII);
+            String magic = lines.isEmpty() ? "" : lines.get(0);
+            if (!magic.equals(MAGIC) || lines.size() < 7) {
+                return null;
+            }
+            long size = Long.parseLong(value(lines.get(1), "size"));
+            long mtime = Long.parseLong(value(lines.get(2), "mtime"));
+            int version = Integer.parseInt(value(lines.get(3), "version"));
+            String chunking = value(lines.get(4), "chunking");
+            int n = Integer.parseInt(value(lines.get(5), "chunks"));
+            if (n < 0 || lines.size() != n + 7 || !lines.get(n + 6).equals("END")) {
+                return null;
+            }
+            byte[][] hashes = new byte[n][];
+            int[] lengths = new int[n];
+            long total = 0;
+            for (int i = 0; i < n; i++) {
+                String[] parts = lines.get(i + 6).split(" ");
+                hashes[i] = HEX.parseHex(parts[0]);
+                lengths[i] = Integer.parseInt(parts[1]);
+                total += lengths[i];
+            }
+            if (total != size) {
+                return null;
+            }
+            return new SplitManifest(size, mtime, version, chunking, hashes, lengths);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Tracker: ignoring " + file + " - " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static String value(String line, String key) {
+        if (!line.startsWith(key + " ")) {
+            throw new IllegalArgumentException("expected '" + key + "', got '" + line + "'");
+        }
+        return line.substring(key.length() + 1);
+    }
+
+    void save(Path file) throws IOException {
+        StringBuilder sb = new StringBuilder(hashes.length * 72 + 100);
+        sb.append(MAGIC).append('\n')
+                .append("size ").append(size).append('\n')
+                .append("mtime ").append(mtime).append('\n')
+                .append("version ").append(version).append('\n')
+                .append("chunking ").append(chunking).append('\n')
+                .append("chunks ").append(hashes.length).append('\n');
+        for (int i = 0; i < hashes.length; i++) {
+            sb.append(HEX.formatHex(hashes[i])).append(' ').append(lengths[i]).append('\n');
+        }
+        sb.append("END\n");
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, sb.toString().getBytes(StandardCharsets.US_ASCII));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Super-seeding (tracker option superseed): the tracker uploads each chunk
+// about once and leaves the rest to the swarm.
+//   - a chunk nobody has been sent goes to whoever asks for it first
+//   - a chunk already sent is refused (empty DATA / BLOCK, "chunk size 0");
+//     for a REQUEST the tracker sends a chunk nobody has been sent instead,
+//     for "chunks" / "chunk index" it names one ("chunk size 0 instead <i>")
+//     that is kept for the peer, so peers asking at the same time end up
+//     with disjoint sets
+//   - a peer that holds maxUnspread chunks from us that no other member has
+//     yet gets nothing new until it has shared them
+//   - a chunk that no member holds GRACE_MS after it was sent (its peer
+//     left) is sent again
+// Peers are known by their announce (BITFIELD, hello announce=, see
+// SwarmRegistry); one that didn't announce only gets chunks nobody has.
+class SuperSeed {
+
+    // long enough for the peer to announce what it got
+    static final long GRACE_MS = 15_000;
+
+    private final SharedFile file;
+    private final int maxUnspread;
+
+    // everything below is guarded by this
+    private final String[] owner;  // who chunk i was sent to, null if nobody / not announced
+    private final long[] sentAt;   // 0 -> never sent
+    private final Map<String, List<Integer>> unspread = new HashMap<>();
+    private int next; // where the search for an unsent chunk starts
+    private int sent;
+    private long uploads;
+    private long refused;
+    private long resent;
+
+    SuperSeed(SharedFile file, int maxUnspread) {
+        this.file = file;
+        this.maxUnspread = maxUnspread;
+        this.owner = new String[file.totalChunks()];
+        this.sentAt = new long[file.totalChunks()];
+    }
+
+    // may chunk index go to peer (its swarm key, null if it hasn't announced)?
+    synchronized boolean allow(int index, String peer) {
+        if (index < 0 || index >= sentAt.length || !file.owns(index)) {
+            return true; // refused the usual way
+        }
+        if (sentAt[index] == 0) {
+            return !mustShare(peer) && claim(index, peer);
+        }
+        if (peer != null && peer.equals(owner[index])) {
+            return claim(index, peer); // the rest of a piece, or a chunk that failed its hash check
+        }
+        if (System.currentTimeMillis() - sentAt[index] > GRACE_MS && file.swarm().holders(index, null) == 0
+                && !mustShare(peer)) {
+            resent++;
+            System.out.println("Tracker: superseed, chunk " + index + " of " + file.fileName()
+                    + " was lost, sending it again");
+            return claim(index, peer);
+        }
+        refused++;
+        return false;
+    }
+
+    // a chunk nobody has been sent, for peer instead of a refused one (not one
+    // of `batch`, the rest of its request); -1 if there is none left or peer has to share first
+    synchronized int substitute(String peer, int[] batch) {
+        if (mustShare(peer)) {
+            return -1;
+        }
+        for (int n = 0; n < sentAt.length; n++) {
+            int i = (next + n) % sentAt.length;
+            if (sentAt[i] == 0 && file.owns(i) && !file.swarm().has(peer, i) && !contains(batch, i)) {
+                next = i + 1;
+                claim(i, peer);
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean contains(int[] batch, int index) {
+        for (int i : batch) {
+            if (i == index) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // peer still holds maxUnspread of our chunks alone
+    private boolean mustShare(String peer) {
+        List<Integer> held = peer != null ? unspread.get(peer) : null;
+        if (held == null) {
+            return false;
+        }
+        held.removeIf(i -> file.swarm().holders(i, peer) > 0);
+        return held.size() >= maxUnspread;
+    }
+
+    private boolean claim(int index, String peer) {
+        uploads++;
+        if (sentAt[index] == 0 && ++sent == sentAt.length) {
+            System.out.println("Tracker: superseed, every chunk of " + file.fileName() + " sent once ("
+                    + uploads + " uploads, " + refused + " refused)");
+        }
+        if (peer != null && !peer.equals(owner[index])) {
+            unspread.computeIfAbsent(peer, p -> new ArrayList<>()).add(index);
+        }
+        owner[index] = peer;
+        sentAt[index] = System.currentTimeMillis();
+        return true;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "superseed " + sent + "/" + sentAt.length + " chunks sent, " + uploads + " uploads, "
+                + refused + " refused, " + resent + " resent";
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Who is downloading one shared file and which chunks they hold.
+// Peers send, after rdyD on a tracker connection:
+//
+//   announce <host> <uploadPort> <bitfield>   -> "ok"
+//   peers <max>                               -> "PEERS n", n x "<host> <port> <useful>", "END"
+//   availability                              -> "AVAIL c0 c1 ... c(n-1)"
+//
+// <bitfield> is the Base64 of BitSet.toByteArray() ("-" for no chunks).
+// "peers" lists live members other than the asking peer, ranked by how many
+// chunks they hold that the asking peer (as of its last announce) doesn't.
+// "availability" gives, per chunk, how many live members hold it (used for
+// rarest-first selection, see PieceSelector).
+// "hello" can carry the announce and ask for the other two, see Hello.
+// Protocol v2 has BITFIELD / HAVE / AVAIL frames for the same, see Frames.
+// A member that hasn't announced for TTL_MS is dropped.
+class SwarmRegistry {
+
+    static final long TTL_MS = 30_000;
+
+    private static final class Member {
+        final String host;
+        final int port;
+        volatile BitSet have;
+        volatile long lastSeen;
+
+        Member(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    // "host:port" -> member
+    private final Map<String, Member> members = new ConcurrentHashMap<>();
+
+    // returns the member key, so the connection knows who "peers" is for
+    String announce(String line) {
+        String[] parts = line.split("\\s+");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("malformed announce: " + line);
+        }
+        return announce(parts[1], Integer.parseInt(parts[2]), decode(parts[3]));
+    }
+
+    // BITFIELD frame: upload port, host length, host, BitSet bytes
+    String announce(ByteBuffer payload) throws IOException {
+        int port = Frames.getVarint(payload);
+        int hostLen = Frames.getVarint(payload);
+        if (hostLen > payload.remaining()) {
+            throw new IOException("bad BITFIELD frame");
+        }
+        String host = new String(payload.array(), payload.arrayOffset() + payload.position(), hostLen, StandardCharsets.UTF_8);
+        payload.position(payload.position() + hostLen);
+        return announce(host, port, BitSet.valueOf(payload));
+    }
+
+    String announce(String host, int port, BitSet have) {
+        String key = host + ":" + port;
+        Member m = members.computeIfAbsent(key, k -> new Member(host, port));
+        m.have = have;
+        m.lastSeen = System.currentTimeMillis();
+        return key;
+    }
+
+    // HAVE frame from a member that announced on this connection; an index
+    // past the file's totalChunks is dropped, it would only grow the BitSet
+    void have(String key, int index, int totalChunks) {
+        Member m = members.get(key);
+        if (m != null && index >= 0 && index < totalChunks) {
+            BitSet have = (BitSet) m.have.clone();
+            have.set(index);
+            m.have = have;
+            m.lastSeen = System.currentTimeMillis();
+        }
+    }
+
+    // a resumed "hello" session is still a member: refresh it, false if it was dropped
+    boolean touch(String key) {
+        Member m = members.get(key);
+        if (m == null || System.currentTimeMillis() - m.lastSeen > TTL_MS) {
+            return false;
+        }
+        m.lastSeen = System.currentTimeMillis();
+        return true;
+    }
+
+    // self is the key returned by this connection's announce, or null
+    String peersReply(String line, String self) {
+        String[] parts = line.split("\\s+");
+        int max = parts.length > 1 ? Integer.parseInt(parts[1]) : 10;
+
+        long now = System.currentTimeMillis();
+        members.values().removeIf(m -> now - m.lastSeen > TTL_MS);
+
+        Member me = self != null ? members.get(self) : null;
+        BitSet mine = me != null ? me.have : new BitSet();
+
+        List<Member> live = new ArrayList<>();
+        Map<Member, Integer> useful = new HashMap<>();
+        for (Map.Entry<String, Member> e : members.entrySet()) {
+            if (e.getKey().equals(self)) {
+                continue;
+            }
+            BitSet extra = (BitSet) e.getValue().have.clone();
+            extra.andNot(mine);
+            live.add(e.getValue());
+            useful.put(e.getValue(), extra.cardinality());
+        }
+        live.sort((a, b) -> useful.get(b) - useful.get(a));
+
+        int n = Math.min(max, live.size());
+        StringBuilder sb = new StringBuilder("PEERS " + n + "\n");
+        for (int i = 0; i < n; i++) {
+            Member m = live.get(i);
+            sb.append(m.host).append(' ').append(m.port).append(' ').append(useful.get(m)).append('\n');
+        }
+        sb.append("END\n");
+        return sb.toString();
+    }
+
+    String availabilityReply(int totalChunks) {
+        int[] counts = availability(totalChunks);
+        StringBuilder sb = new StringBuilder(6 + 2 * totalChunks).append("AVAIL");
+        for (int c : counts) {
+            sb.append(' ').append(c);
+        }
+        return sb.append('\n').toString();
+    }
+
+    // AVAIL frame payload: one varint per chunk
+    byte[] availabilityFrame(int totalChunks) {
+        int[] counts = availability(totalChunks);
+        ByteBuffer buf = ByteBuffer.allocate(5 * totalChunks);
+        for (int c : counts) {
+            Frames.putVarint(buf, c);
+        }
+        return Arrays.copyOf(buf.array(), buf.position());
+    }
+
+    private int[] availability(int totalChunks) {
+        long now = System.currentTimeMillis();
+        members.values().removeIf(m -> now - m.lastSeen > TTL_MS);
+
+        int[] counts = new int[totalChunks];
+        for (Member m : members.values()) {
+            BitSet have = m.have;
+            for (int i = have.nextSetBit(0); i >= 0 && i < totalChunks; i = have.nextSetBit(i + 1)) {
+                counts[i]++;
+            }
+        }
+        return counts;
+    }
+
+    int size() {
+        return members.size();
+    }
+
+    // chunks a member held as of its last announce / HAVE, 0 if unknown (key null)
+    int chunksHeld(String key) {
+        Member m = key != null ? members.get(key) : null;
+        return m != null ? m.have.cardinality() : 0;
+    }
+
+    // live members other than `except` (a key, or null) holding chunk index
+    int holders(int index, String except) {
+        long now = System.currentTimeMillis();
+        int n = 0;
+        for (Map.Entry<String, Member> e : members.entrySet()) {
+            Member m = e.getValue();
+            if (!e.getKey().equals(except) && now - m.lastSeen <= TTL_MS && m.have.get(index)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    // as of the member's last announce / HAVE, false if unknown (key null)
+    boolean has(String key, int index) {
+        Member m = key != null ? members.get(key) : null;
+        return m != null && m.have.get(index);
+    }
+
+    // UTILITIES
+
+    static String encode(BitSet have) {
+        byte[] bytes = have.toByteArray();
+        return bytes.length == 0 ? "-" : Base64.getEncoder().encodeToString(bytes);
+    }
+
+    static BitSet decode(String text) {
+        return "-".equals(text) ? new BitSet() : BitSet.valueOf(Base64.getDecoder().decode(text));
+    }
+}
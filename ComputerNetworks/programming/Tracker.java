@@ -1,182 +1,781 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Tracker {
 
-    private static final int CHUNK_SIZE = 10 * 1024; // 10 kB
+    private static final int DEFAULT_MAX_FILES = 256;
+    private static final int DEFAULT_CACHE_MB = 64;
+    private static final int DEFAULT_ZCACHE_MB = 64;
 
-    private final String fileName;
-    private final Path chunkDir;
-    private final int totalChunks;
+    private final TrackerCatalog catalog;
+    private final BandwidthScheduler scheduler; // null -> no rate= / peerRate= cap, chunks go right away
+    private final ChunkCompression compression;
+    private final AdmissionControl admission; // null -> every batch is served right away
+    private final ShardMap shards; // this node's share of a tracker cluster, null if not in one
+    private final SessionTokens<Hello.TrackerState> sessions =
+            new SessionTokens<>(Hello.MAX_TOKENS, Hello.TOKEN_TTL_MS);
+    private final TrackerMetrics metrics;
 
     public Tracker(String filePath) throws IOException {
-        Path path = Paths.get(filePath);
-        this.fileName = path.getFileName().toString();
+        this(filePath, false, DEFAULT_MAX_FILES, DEFAULT_CACHE_MB * 1024L * 1024, 0, 0, null, 0,
+                DEFAULT_ZCACHE_MB * 1024L * 1024, null, null, 0);
+    }
 
-        this.chunkDir = path.getParent().resolve(fileName + "_chunks");
-        Files.createDirectories(chunkDir);
+    // filePath is one file, or a directory whose files are all shared.
+    // cacheBytes is the budget for hot chunks kept in memory, 0 turns the cache off.
+    // rate / peerRate cap the total and per peer egress in bytes/s, 0 = no cap
+    // chunker cuts content defined chunks in split mode, null for fixed size chunks (pieces)
+    // pieceSize is the fixed chunk size, 0 picks it from each file's size (see SharedFile.pieceSize)
+    // deflateBytes is the budget for deflated chunks, 0 never offers compression
+    // admission caps the sessions served at once, null for no cap
+    // shards splits the chunks between the nodes of a cluster, null to serve them all
+    // superSeed > 0 uploads each chunk about once (see SuperSeed), 0 serves every request
+    public Tracker(String filePath, boolean mmap, int maxFiles, long cacheBytes, long rate, long peerRate,
+                   ContentChunker chunker, int pieceSize, long deflateBytes, AdmissionControl admission,
+                   ShardMap shards, int superSeed) throws IOException {
+        ChunkCache cache = null;
+        if (cacheBytes > 0 && !mmap) {
+            cache = new ChunkCache(cacheBytes);
+            cache.startStatsLog(30_000);
+        }
+        this.compression = new ChunkCompression(deflateBytes);
+        this.shards = shards;
+        this.scheduler = rate > 0 || peerRate > 0 ? new BandwidthScheduler(rate, peerRate) : null;
+        this.admission = admission;
+        this.metrics = new TrackerMetrics(cache, scheduler, sessions, compression, admission);
+        this.catalog = new TrackerCatalog(Paths.get(filePath), mmap, maxFiles, cache, chunker, pieceSize,
+                compression, shards, superSeed, metrics);
+    }
 
-        // chunk files on disk 
-        this.totalChunks = splitIntoChunks(path, CHUNK_SIZE);
-        System.out.println("Tracker: file=" + fileName + ", total chunks=" + totalChunks);
+    TrackerCatalog catalog() {
+        return catalog;
     }
 
-    private static void sendLine(OutputStream out, String msg) throws IOException {
-        out.write((msg + "\n").getBytes("UTF-8"));
-        out.flush();
+    // null if neither rate= nor peerRate= is set
+    BandwidthScheduler scheduler() {
+        return scheduler;
     }
 
-    private static String readLine(InputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while ((ch = in.read()) != -1) {
-            if (ch == '\n') break;
-            if (ch != '\r'){
-                sb.append((char) ch);
-            }
-        }
-        if (sb.length() == 0 && ch == -1) {
-            return null; // end of file
-        }
-        return sb.toString();
+    ChunkCompression compression() {
+        return compression;
+    }
+
+    // null if there is no cap
+    AdmissionControl admission() {
+        return admission;
+    }
+
+    // null if not in a cluster
+    ShardMap shards() {
+        return shards;
+    }
+
+    SessionTokens<Hello.TrackerState> sessions() {
+        return sessions;
+    }
+
+    TrackerMetrics metrics() {
+        return metrics;
     }
 
     // STARTUP
 
     public void startServer(int port) throws IOException {
-        ServerSocket serverSocket = new ServerSocket(port);
-        System.out.println("Tracker listening on TCP port " + port);
+        startServer(port, new SessionExecutor("platform", 0, "TrackerSession"), 1);
+    }
+
+    // one handler per peer, run by `sessions` (see SessionExecutor);
+    // `acceptors` threads accept connections, see TrackerAcceptor
+    public void startServer(int port, SessionExecutor sessions, int acceptors) throws IOException {
+        // accept through a (blocking) channel so each socket has a SocketChannel for transferTo
+        TrackerAcceptor.run(port, acceptors, sessions + (admission != null ? ", " + admission : ""), i -> peer -> {
+            Socket peerSocket = peer.socket();
+            long acceptedAt = System.nanoTime();
+            try {
+                sessions.execute(() -> handlePeer(peerSocket, acceptedAt));
+            } catch (RuntimeException | OutOfMemoryError e) {
+                System.out.println("Tracker: no thread for " + peerSocket.getRemoteSocketAddress() + ": " + e);
+                peerSocket.close();
+            }
+        });
+    }
 
-        while (true) {
-            Socket peerSocket = serverSocket.accept();
-            System.out.println("Tracker: peer connected from " + peerSocket.getRemoteSocketAddress());
-            new Thread(() -> handlePeer(peerSocket)).start();
+    // Selector based alternative to startServer: `loops` event loop threads
+    // share every peer session instead of one thread per connection.
+    // Acceptor i hands its peers round robin to loops i, i + acceptors, ...
+    // (mod loops), so with acceptors == loops each loop has its own acceptor.
+    public void startNioServer(int port, int loops, int acceptors) throws IOException {
+        TrackerEventLoop[] eventLoops = new TrackerEventLoop[loops];
+        for (int i = 0; i < loops; i++) {
+            eventLoops[i] = new TrackerEventLoop(this);
+            new Thread(eventLoops[i], "TrackerLoop-" + i).start();
         }
+
+        TrackerAcceptor.run(port, acceptors, "nio, " + loops + " loops" + (admission != null ? ", " + admission : ""),
+                i -> new TrackerAcceptor.Handoff() {
+                    private int next = i % loops;
+
+                    @Override
+                    public void accept(SocketChannel peer) throws IOException {
+                        peer.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                        eventLoops[next].register(peer);
+                        next = (next + acceptors) % loops;
+                    }
+                });
     }
 
     // PROTOCOL HANDLING
 
-    private void handlePeer(Socket socket) {
+    // acceptedAt: System.nanoTime() at accept, for the handshake latency
+    private void handlePeer(Socket socket, long acceptedAt) {
+        BandwidthScheduler.Flow flow = scheduler != null
+                ? scheduler.register(socket.getRemoteSocketAddress().toString()) : null;
+        metrics.sessionOpened();
+        SharedFile file = null; // held until the session ends
         try {
-            InputStream in = socket.getInputStream();
-            OutputStream out = socket.getOutputStream();
+            LineCodec io = new LineCodec(socket);
 
-            // 1 rdy / rdy
-            String line = readLine(in);
-            if (!"rdy".equals(line)) {
+            // 1 rdy / rdy  ("rdy <fileName>" picks a file from the catalog,
+            //   "rdy2" switches to protocol v2 frames, see Frames,
+            //   "hello ..." does steps 1-4 and more in one round trip, see Hello)
+            String line = io.readLine();
+            String announcedAs = null;
+            if (line != null && Hello.isHello(line)) {
+                Hello.Accepted hello = Hello.accept(line, catalog, sessions, compression, shards);
+                file = hello.file;
+                if (file == null) {
+                    System.out.println("Tracker: no such file, peer sent '" + line + "'");
+                    io.sendLine("unknown file");
+                    return;
+                }
+                announcedAs = hello.announcedAs;
+                io.write(hello.reply).flush();
+                metrics.handshake(System.nanoTime() - acceptedAt);
+                boolean deflate = hello.encoding.equals(ChunkCompression.DEFLATE);
+                if (!serveBatch(file, hello.want, socket.getChannel(), flow, false, deflate, announcedAs)) {
+                    return;
+                }
+                serveCommands(file, socket, io, flow, announcedAs, deflate);
+                return;
+            }
+
+            boolean v2 = line != null && (line.equals("rdy2") || line.startsWith("rdy2 "));
+            if (line == null || !(v2 || line.equals("rdy") || line.startsWith("rdy "))) {
                 System.out.println("Tracker: expected 'rdy' got " + line);
                 return;
             }
-            sendLine(out, "rdy");
+            file = catalog.select(line);
+            if (file == null) {
+                System.out.println("Tracker: no such file, peer sent '" + line + "'");
+                io.sendLine("unknown file");
+                return;
+            }
+            if (v2) {
+                io.sendLine("rdy2");
+                metrics.handshake(System.nanoTime() - acceptedAt);
+                serveFrames(file, socket, io, flow);
+                return;
+            }
 
-            // 2 file name exchange
-            sendLine(out, fileName);
-            line = readLine(in);
+            // 2 file name exchange (rdy and the name go out together)
+            String fileName = file.fileName();
+            io.writeLine("rdy").writeLine(fileName).flush();
+            line = io.readLine();
             if (!fileName.equals(line)) {
                 System.out.println("Tracker: expected file name '" + fileName + "', got '" + line + "'");
                 return;
             }
 
             // 3. # of chunks
-            sendLine(out, "" + totalChunks);
-            line = readLine(in);
-            if (!line.equals("" + totalChunks)) {
-                System.out.println("Tracker: expected '# of chunks " + totalChunks + "', got " + line);
+            int totalChunks = file.totalChunks();
+            io.writeLine("", totalChunks).flush();
+            if (!io.nextLine() || !io.is(Integer.toString(totalChunks))) {
+                System.out.println("Tracker: expected '# of chunks " + totalChunks + "', got " + io.line());
                 return;
             }
 
             // 4. rdyD
-            line = readLine(in);
-            if (!"rdyD".equals(line)) {
-                System.out.println("Tracker: expected 'rdyD', got " + line);
+            if (!io.nextLine() || !io.is("rdyD")) {
+                System.out.println("Tracker: expected 'rdyD', got " + io.line());
                 return;
             }
+            metrics.handshake(System.nanoTime() - acceptedAt);
 
-            // 5. loop chunk index -> next -> close
-            while ((line = readLine(in)) != null) {
-                if (line.startsWith("chunk index")) {
-                    int index = Integer.parseInt(line.split("\\s+")[2]);
-                    handleChunkRequest(index, out);
-                } else if ("next".equals(line)) {
-                    continue;
-                } else if ("close".equals(line)) {
-                    System.out.println("Tracker: closed connection");
-                    break;
-                } else {
-                    System.out.println("Tracker: wrong command " + line);
-                }
-            }
+            serveCommands(file, socket, io, flow, announcedAs, false);
 
-        } catch (IOException e) {
+        } catch (IOException | IllegalArgumentException e) {
             System.out.println("Tracker: error peer - " + e.getMessage());
         } finally {
+            if (file != null) {
+                file.release();
+            }
+            metrics.sessionClosed();
+            if (flow != null) {
+                flow.close();
+            }
             try { socket.close(); } catch (IOException ignored) {}
         }
     }
 
-    private void handleChunkRequest(int index, OutputStream out) throws IOException {
-        if (index < 0 || index >= totalChunks) {
-            System.out.println("Tracker: invalid chunk index " + index);
-            sendLine(out, "chunk size 0");
-            return;
+    // 5. loop manifest / announce / peers / availability / encoding / shards / version / chunk index -> next / chunks -> close
+    // (replies are flushed before anything goes to the channel directly)
+    private void serveCommands(SharedFile file, Socket socket, LineCodec io, BandwidthScheduler.Flow flow,
+                               String announcedAs, boolean deflate) throws IOException {
+        while (io.nextLine()) {
+            if (io.startsWith("chunk index")) {
+                if (!serveBatch(file, new int[] { io.intField(2) }, socket.getChannel(), flow, false, deflate,
+                        announcedAs)) {
+                    break;
+                }
+            } else if (io.startsWith("chunks ")) {
+                // batch: every chunk back to back, no "next" in between
+                int[] indices;
+                try {
+                    indices = ChunkBatch.parse(io.line().substring(7));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Tracker: " + e.getMessage());
+                    break;
+                }
+                if (!serveBatch(file, indices, socket.getChannel(), flow, false, deflate, announcedAs)) {
+                    break;
+                }
+            } else if (io.is("manifest")) {
+                io.write(file.manifestReply()).flush();
+            } else if (io.startsWith("announce ")) {
+                announcedAs = file.swarm().announce(io.line());
+                io.sendLine("ok");
+            } else if (io.startsWith("peers")) {
+                io.write(file.swarm().peersReply(io.line(), announcedAs)).flush();
+            } else if (io.is("availability")) {
+                io.write(file.swarm().availabilityReply(file.totalChunks())).flush();
+            } else if (io.startsWith("encoding ")) {
+                String encoding = compression.negotiate(io.line().substring(9));
+                deflate = encoding.equals(ChunkCompression.DEFLATE);
+                io.sendLine("encoding " + encoding);
+            } else if (io.is("shards")) {
+                io.sendLine(ShardMap.encode(shards));
+            } else if (io.startsWith("version ")) {
+                io.write(file.versionReply(io.intField(1))).flush();
+            } else if (io.is("next")) {
+                continue;
+            } else if (io.is("close")) {
+                System.out.println("Tracker: closed connection");
+                break;
+            } else {
+                System.out.println("Tracker: wrong command " + io.line());
+            }
+        }
+    }
+
+    // one chunk request (chunks, chunk index, hello want=, REQUEST), sent once
+    // the session has a serving slot, see AdmissionControl. false -> no slot,
+    // the peer has been told to come back later and the connection should end
+    private boolean serveBatch(SharedFile file, int[] indices, SocketChannel channel, BandwidthScheduler.Flow flow,
+                               boolean binary, boolean deflate, String announcedAs) throws IOException {
+        if (indices.length == 0) {
+            return true;
         }
+        return withSlot(file, channel, binary, announcedAs, () -> {
+            for (int index : indices) {
+                int send = seedChunk(file, index, announcedAs, indices);
+                if (send < 0) {
+                    writeFully(channel, chunkHeader(binary, index, 0));
+                    continue;
+                }
+                if (send != index && !binary) {
+                    writeFully(channel, insteadReply(send));
+                    continue;
+                }
+                handleChunkRequest(file, send, channel, flow, binary, deflate);
+            }
+        });
+    }
 
-        Path chunkPath = chunkDir.resolve("chunk_" + index + ".dat");
-        if (!Files.exists(chunkPath)) {
-            System.out.println("Tracker: chunk file missing for index " + index);
-            sendLine(out, "chunk size 0");
-            return;
+    // the blocks of one BLOCKS frame, (index, offset, length) triples; like serveBatch
+    private boolean serveBlocks(SharedFile file, int[] blocks, SocketChannel channel, BandwidthScheduler.Flow flow,
+                                String announcedAs) throws IOException {
+        if (blocks.length == 0) {
+            return true;
         }
+        return withSlot(file, channel, true, announcedAs, () -> {
+            for (int i = 0; i < blocks.length; i += 3) {
+                if (seedChunk(file, blocks[i], announcedAs, null) < 0) {
+                    writeFully(channel, Frames.blockHeader(blocks[i], blocks[i + 1], 0, 0));
+                    continue;
+                }
+                handleBlockRequest(file, blocks[i], blocks[i + 1], blocks[i + 2], channel, flow);
+            }
+        });
+    }
 
-        long size = Files.size(chunkPath);
-        sendLine(out, "chunk size " + size);
+    private interface Batch {
+        void send() throws IOException;
+    }
 
-        // give this chunk file to peer
-        try (InputStream in = Files.newInputStream(chunkPath)) {
-            byte[] buffer = new byte[8192];
-            int n;
-            while ((n = in.read(buffer)) != -1) {
-                out.write(buffer, 0, n);
+    private boolean withSlot(SharedFile file, SocketChannel channel, boolean binary, String announcedAs,
+                             Batch batch) throws IOException {
+        AdmissionControl.Ticket ticket = null;
+        if (admission != null) {
+            ticket = admission.admit(file.swarm().chunksHeld(announcedAs));
+            if (ticket == null) {
+                System.out.println("Tracker: busy, peer told to retry in " + admission.retryMs() + " ms");
+                writeFully(channel, busyReply(binary, admission.retryMs()));
+                return false;
             }
         }
-        out.flush();
+        try {
+            batch.send();
+        } finally {
+            if (ticket != null) {
+                ticket.close();
+            }
+        }
+        return true;
+    }
+
+    // the chunk to send for a request of index, -1 to refuse it: super-seeding
+    // sends each chunk about once, and gives the peer one nobody has instead
+    // of a refused one, see SuperSeed. That one goes out where the reply names
+    // the chunk (DATA); a text reply only names it, see insteadReply. batch:
+    // the request index is part of, null where nothing can be sent instead
+    static int seedChunk(SharedFile file, int index, String announcedAs, int[] batch) {
+        SuperSeed seed = file.superSeed();
+        if (seed == null || seed.allow(index, announcedAs)) {
+            return index;
+        }
+        int other = batch != null ? seed.substitute(announcedAs, batch) : -1;
+        System.out.println("Tracker: superseed, chunk " + index + " already sent"
+                + (other >= 0 ? ", chunk " + other + " instead" : ", refused"));
+        return other;
+    }
+
+    // "chunk size 0 instead <index>": the text reply to a refused chunk when
+    // the peer has been given another one. It is kept for the peer, which asks
+    // for it next; older peers read a plain refusal (the chunk is sent to
+    // someone else after SuperSeed.GRACE_MS)
+    static ByteBuffer insteadReply(int index) {
+        return ByteBuffer.wrap(("chunk size 0 instead " + index + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // BUSY frame, or "busy <retryMs>"
+    static ByteBuffer busyReply(boolean binary, long retryMs) {
+        if (binary) {
+            return Frames.varintFrame(Frames.BUSY, (int) retryMs);
+        }
+        return ByteBuffer.wrap(("busy " + retryMs + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // binary -> protocol v2 DATA frame, else "chunk size N" + bytes.
+    // deflate -> the deflated copy instead, if the chunk has one (see ChunkCompression)
+    private void handleChunkRequest(SharedFile file, int index, SocketChannel channel,
+                                    BandwidthScheduler.Flow flow, boolean binary, boolean deflate) throws IOException {
+        long start = System.nanoTime();
+        metrics.chunkRequested(file.fileName(), file.totalChunks(), index);
+        ByteBuffer deflated = deflate ? file.deflatedChunk(index) : null;
+
+        // wait for this peer's turn on the uplink
+        if (flow != null) {
+            flow.acquire(deflated != null ? deflated.remaining() : file.chunkLength(index));
+        }
+
+        long sent;
+        if (deflated != null) {
+            sent = sendDeflated(file, index, deflated, channel, binary);
+        } else if (file.hasChunkBuffers()) {
+            sent = sendChunkBuffer(file, index, channel, binary);
+        } else {
+            sent = sendChunkFile(file, index, channel, binary);
+        }
+        metrics.chunkSent(sent, System.nanoTime() - start);
+    }
+
+    // split mode: returns the bytes sent
+    private long sendChunkFile(SharedFile file, int index, SocketChannel channel, boolean binary) throws IOException {
+        SharedFile.ChunkLocation chunk = file.chunkLocation(index);
+        if (chunk == null) {
+            writeFully(channel, chunkHeader(binary, index, 0));
+            return 0;
+        }
+
+        // give this chunk file to peer: header, then the file straight from
+        // the page cache to the socket (sendfile), no copy through the heap
+        long size = chunk.length;
+        try (FileChannel source = FileChannel.open(chunk.file, StandardOpenOption.READ)) {
+            writeFully(channel, chunkHeader(binary, index, chunk.length));
+            transferFully(source, chunk.offset, size, channel);
+        }
 
         System.out.println("Tracker: sent chunk " + index + " (" + size + " bytes)");
+        return size;
     }
 
-    // UTILITIES 
-    private int splitIntoChunks(Path src, int chunkSize) throws IOException {
-        int idx = 0;
-        byte[] buffer = new byte[chunkSize];
+    // mmap mode or chunk cache
+    private long sendChunkBuffer(SharedFile file, int index, SocketChannel channel, boolean binary) throws IOException {
+        ByteBuffer chunk = file.chunkBuffer(index);
+        if (chunk == null) {
+            writeFully(channel, chunkHeader(binary, index, 0));
+            return 0;
+        }
 
-        try (InputStream in = Files.newInputStream(src)) {
-            int read;
-            while ((read = in.read(buffer)) != -1) {
-                Path chunkPath = chunkDir.resolve("chunk_" + idx + ".dat");
-                try (OutputStream out = Files.newOutputStream(chunkPath)) {
-                    out.write(buffer, 0, read);
-                }
-                idx++;
+        // header and the mapped slice / cached chunk in one gather write
+        int size = chunk.remaining();
+        ByteBuffer[] reply = { chunkHeader(binary, index, size), chunk };
+        while (chunk.hasRemaining()) {
+            channel.write(reply);
+        }
+
+        System.out.println("Tracker: sent chunk " + index + " (" + size + " bytes)");
+        return size;
+    }
+
+    // deflated copy of a chunk, header with both lengths
+    private long sendDeflated(SharedFile file, int index, ByteBuffer deflated, SocketChannel channel,
+                              boolean binary) throws IOException {
+        int size = deflated.remaining();
+        int decoded = file.chunkLength(index);
+        ByteBuffer[] reply = { deflatedHeader(binary, index, decoded, size), deflated };
+        while (deflated.hasRemaining()) {
+            channel.write(reply);
+        }
+
+        System.out.println("Tracker: sent chunk " + index + " (" + size + " bytes, deflated from " + decoded + ")");
+        return size;
+    }
+
+    // BLOCK frame with `length` bytes of the chunk from offset, never deflated (see PieceBlocks)
+    private void handleBlockRequest(SharedFile file, int index, int offset, int length, SocketChannel channel,
+                                    BandwidthScheduler.Flow flow) throws IOException {
+        long start = System.nanoTime();
+        if (offset == 0) {
+            metrics.chunkRequested(file.fileName(), file.totalChunks(), index);
+        }
+        int size = file.blockLength(index, offset, length);
+        if (flow != null) {
+            flow.acquire(size);
+        }
+
+        if (file.hasChunkBuffers()) {
+            ByteBuffer block = file.blockBuffer(index, offset, length);
+            if (block == null) {
+                writeFully(channel, Frames.blockHeader(index, offset, 0, 0));
+                return;
+            }
+            ByteBuffer header = Frames.blockHeader(index, offset, file.chunkLength(index), size);
+            ByteBuffer[] reply = { header, block };
+            while (header.hasRemaining() || block.hasRemaining()) {
+                channel.write(reply);
+            }
+        } else {
+            SharedFile.ChunkLocation block = file.blockLocation(index, offset, length);
+            if (block == null) {
+                writeFully(channel, Frames.blockHeader(index, offset, 0, 0));
+                return;
+            }
+            try (FileChannel source = FileChannel.open(block.file, StandardOpenOption.READ)) {
+                writeFully(channel, Frames.blockHeader(index, offset, file.chunkLength(index), size));
+                transferFully(source, block.offset, size, channel);
+            }
+        }
+
+        System.out.println("Tracker: sent chunk " + index + " block at " + offset + " (" + size + " bytes)");
+        metrics.chunkSent(size, System.nanoTime() - start);
+    }
+
+    private static ByteBuffer chunkHeader(boolean binary, int index, int size) {
+        if (binary) {
+            return Frames.dataHeader(index, size);
+        }
+        return ByteBuffer.wrap(("chunk size " + size + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // ENCODED frame header, or "chunk size <decoded> deflate <encoded>"
+    static ByteBuffer deflatedHeader(boolean binary, int index, int decoded, int size) {
+        if (binary) {
+            return Frames.encodedHeader(index, decoded, size);
+        }
+        return ByteBuffer.wrap(("chunk size " + decoded + " " + ChunkCompression.DEFLATE + " " + size + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    // size bytes of source from position to a blocking channel; transferTo
+    // only returns 0 here at the end of the file, i.e. the file shrank
+    private static void transferFully(FileChannel source, long position, long size, SocketChannel channel) throws IOException {
+        long sent = 0;
+        while (sent < size) {
+            long n = source.transferTo(position + sent, size - sent, channel);
+            if (n == 0) {
+                throw new EOFException("chunk file shrank while sending it");
+            }
+            sent += n;
+        }
+    }
+
+    // PROTOCOL V2
+
+    // after "rdy2": HELLO, then frames until CLOSE, see Frames
+    private void serveFrames(SharedFile file, Socket socket, LineCodec io, BandwidthScheduler.Flow flow) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        writeFully(channel, Frames.hello(file));
+
+        Frames.Reader in = new Frames.Reader(io.input());
+        String announcedAs = null;
+        boolean deflate = false;
+        int type;
+        while ((type = in.next()) >= 0) {
+            ByteBuffer payload = in.payload();
+            switch (type) {
+                case Frames.REQUEST:
+                    if (!serveBatch(file, Frames.parseRequest(payload), channel, flow, true, deflate, announcedAs)) {
+                        return;
+                    }
+                    break;
+                case Frames.BLOCKS:
+                    if (!serveBlocks(file, Frames.parseBlocks(payload), channel, flow, announcedAs)) {
+                        return;
+                    }
+                    break;
+                case Frames.ENCODING:
+                    String encoding = compression.negotiate(StandardCharsets.UTF_8.decode(payload).toString());
+                    deflate = encoding.equals(ChunkCompression.DEFLATE);
+                    writeFully(channel, Frames.frame(Frames.ENCODING, encoding.getBytes(StandardCharsets.UTF_8)));
+                    break;
+                case Frames.SHARDS:
+                    writeFully(channel, Frames.frame(Frames.SHARDS,
+                            ShardMap.encode(shards).getBytes(StandardCharsets.UTF_8)));
+                    break;
+                case Frames.VERSION:
+                    writeFully(channel, Frames.frame(Frames.VERSION,
+                            file.versionReply(Frames.getVarint(payload)).trim().getBytes(StandardCharsets.UTF_8)));
+                    break;
+                case Frames.META:
+                    writeFully(channel, Frames.frame(Frames.META, file.manifestFrame()));
+                    break;
+                case Frames.AVAIL:
+                    writeFully(channel, Frames.frame(Frames.AVAIL, file.swarm().availabilityFrame(file.totalChunks())));
+                    break;
+                case Frames.BITFIELD:
+                    announcedAs = file.swarm().announce(payload);
+                    break;
+                case Frames.HAVE:
+                    if (announcedAs != null) {
+                        file.swarm().have(announcedAs, Frames.getVarint(payload), file.totalChunks());
+                    }
+                    break;
+                case Frames.CLOSE:
+                    System.out.println("Tracker: closed connection");
+                    return;
+                default:
+                    System.out.println("Tracker: unknown frame type " + type);
+                    return;
             }
         }
-        return idx;
     }
 
     // MAIN 
 
-    // How to run: java Tracker <port> <filePath>
+    // How to run: java Tracker <port> <filePath|directory> [options]
+    // a directory shares every file in it, peers pick one with "rdy <fileName>"
+    // options:
+    //   nio[=loops] -> serve peers from a few selector threads instead of a thread per peer
+    //                  (loops defaults to # of cores)
+    //   threads=platform|virtual -> thread per peer kind, see SessionExecutor (default platform)
+    //   maxSessions=n -> peers served at once in thread per peer mode, more wait (default no cap)
+    //   acceptors=n -> threads accepting connections, each on its own SO_REUSEPORT socket where
+    //                  the OS has it, for join bursts of thousands of peers (default 1, see TrackerAcceptor)
+    //   mmap        -> serve chunks straight from the mapped file, no chunk_N.dat files
+    //   cdc[=min/avg/max] -> content defined chunks instead of fixed size ones, so a new
+    //                  version of a file shares most chunks with the old one (see ContentChunker;
+    //                  sizes in bytes, default 2048/8192/32768, not with mmap)
+    //   piece=kb    -> fixed chunk size in KB (default picked per file: 10 kB, bigger for files
+    //                  of more than 2048 pieces, up to 8 MB, see SharedFile.pieceSize); peers
+    //                  fetch pieces over 16 kB in blocks (see PieceBlocks)
+    //   maxFiles=n  -> chunk indexes kept in memory at once (default 256)
+    //   cache=mb    -> memory for hot chunks in split mode (default 64, 0 = read every chunk from disk)
+    //   rate=kb     -> cap on the total upload rate in KB/s (default none)
+    //   peerRate=kb -> cap on each peer's download rate in KB/s (default none)
+    //   zcache=mb   -> memory for deflated chunks, for peers that negotiate compression
+    //                  (default 64, 0 = don't offer compression, see ChunkCompression)
+    //   admit=n[/queue[/retryMs]] -> send chunks to at most n peers at once; up to queue more
+    //                  wait (fewest chunks first, default 4n), the rest are told to retry
+    //                  after retryMs (default 500), see AdmissionControl (default no cap)
+    //   cluster=h:p,h:p,... -> this tracker is one node of a cluster sharing the chunks by
+    //                  consistent hashing; it serves (and writes) only its own chunks, peers
+    //                  get the map in the handshake (see ShardMap). Every node is started with
+    //                  the same list and file
+    //   replicas=r  -> nodes that serve each chunk in a cluster (default 2)
+    //   self=h:p    -> this node's entry in cluster= (default the one with this port; if several
+    //                  have it, the one with a local address)
+    //   watch=ms    -> how often to check shared files for changes; a changed file is chunked
+    //                  again and published as its next version (default 2000, 0 = off, see FileVersion)
+    //   superseed[=n] -> upload each chunk about once: a chunk already sent is refused (the peer
+    //                  gets one nobody has instead), and a peer holding n chunks from us that nobody
+    //                  else has yet gets no new ones until it shares them (default 2, see SuperSeed)
+    //   admin=port  -> Prometheus metrics on http://127.0.0.1:port/metrics (default off, see TrackerMetrics)
     public static void main(String[] args) throws Exception {
-        if (args.length != 2) {
-            System.err.println("java Tracker <port> <filePath>");
-            System.exit(1);
+        if (args.length < 2) {
+            usage();
         }
         int port = Integer.parseInt(args[0]);
         String filePath = args[1];
 
-        Tracker tracker = new Tracker(filePath);
-        tracker.startServer(port);
+        int loops = 0; // 0 -> thread per peer
+        boolean mmap = false;
+        ContentChunker chunker = null;
+        int pieceSize = 0;
+        int superSeed = 0;
+        int maxFiles = DEFAULT_MAX_FILES;
+        long cacheMb = DEFAULT_CACHE_MB;
+        long zcacheMb = DEFAULT_ZCACHE_MB;
+        long rateKb = 0;
+        long peerRateKb = 0;
+        String threads = "platform";
+        int maxSessions = 0;
+        int acceptors = 1;
+        int adminPort = 0;
+        long watchMs = 2000;
+        AdmissionControl admission = null;
+        List<String> cluster = null;
+        int replicas = 2;
+        String self = null;
+        for (int i = 2; i < args.length; i++) {
+            String opt = args[i];
+            String value = null;
+            int eq = opt.indexOf('=');
+            if (eq >= 0) {
+                value = opt.substring(eq + 1);
+                opt = opt.substring(0, eq);
+            }
+
+            switch (opt) {
+                case "nio":
+                    loops = value != null ? Integer.parseInt(value) : Runtime.getRuntime().availableProcessors();
+                    break;
+                case "mmap":
+                    mmap = true;
+                    break;
+                case "cdc":
+                    if (value == null) {
+                        chunker = new ContentChunker();
+                    } else {
+                        String[] sizes = value.split("/");
+                        if (sizes.length != 3) {
+                            usage();
+                        }
+                        chunker = new ContentChunker(Integer.parseInt(sizes[0]), Integer.parseInt(sizes[1]),
+                                Integer.parseInt(sizes[2]));
+                    }
+                    break;
+                case "piece":
+                    pieceSize = Integer.parseInt(value) * 1024;
+                    break;
+                case "superseed":
+                    superSeed = value != null ? Integer.parseInt(value) : 2;
+                    break;
+                case "maxFiles":
+                    maxFiles = Integer.parseInt(value);
+                    break;
+                case "cache":
+                    cacheMb = Long.parseLong(value);
+                    break;
+                case "zcache":
+                    zcacheMb = Long.parseLong(value);
+                    break;
+                case "rate":
+                    rateKb = Long.parseLong(value);
+                    break;
+                case "peerRate":
+                    peerRateKb = Long.parseLong(value);
+                    break;
+                case "threads":
+                    threads = value;
+                    break;
+                case "maxSessions":
+                    maxSessions = Integer.parseInt(value);
+                    break;
+                case "acceptors":
+                    acceptors = Integer.parseInt(value);
+                    break;
+                case "admit":
+                    String[] limits = value.split("/");
+                    int serving = Integer.parseInt(limits[0]);
+                    int queued = limits.length > 1 ? Integer.parseInt(limits[1]) : 4 * serving;
+                    long retryMs = limits.length > 2 ? Long.parseLong(limits[2]) : 500;
+                    if (serving < 1 || queued < 0 || retryMs < 0) {
+                        usage(); // admit=0 would admit nobody
+                    }
+                    admission = new AdmissionControl(serving, queued, retryMs);
+                    break;
+                case "cluster":
+                    cluster = Arrays.asList(value.split(","));
+                    break;
+                case "replicas":
+                    replicas = Integer.parseInt(value);
+                    break;
+                case "self":
+                    self = value;
+                    break;
+                case "watch":
+                    watchMs = Long.parseLong(value);
+                    break;
+                case "admin":
+                    adminPort = Integer.parseInt(value);
+                    break;
+                default:
+                    usage();
+            }
+        }
+
+        if (mmap && chunker != null) {
+            usage(); // mapped chunks are fixed size
+        }
+        if (acceptors < 1) {
+            usage();
+        }
+        if (pieceSize < 0 || pieceSize > SharedFile.MAX_PIECE_SIZE || (pieceSize > 0 && chunker != null)) {
+            usage();
+        }
+        ShardMap shards = null;
+        if (cluster != null) {
+            if (self == null) {
+                self = ShardMap.findSelf(cluster, port);
+            }
+            shards = new ShardMap(cluster, replicas, self);
+        }
+        Tracker tracker = new Tracker(filePath, mmap, maxFiles, cacheMb * 1024 * 1024,
+                rateKb * 1024, peerRateKb * 1024, chunker, pieceSize, zcacheMb * 1024 * 1024, admission, shards,
+                superSeed);
+        if (watchMs > 0) {
+            tracker.catalog().startWatching(watchMs);
+        }
+        if (adminPort > 0) {
+            tracker.metrics().startAdminServer(adminPort);
+        }
+        if (loops > 0) {
+            tracker.startNioServer(port, loops, acceptors);
+        } else {
+            tracker.startServer(port, new SessionExecutor(threads, maxSessions, "TrackerSession"), acceptors);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("java Tracker <port> <filePath|directory> [nio[=loops]] [mmap] [cdc[=min/avg/max]] [piece=kb]"
+                + " [maxFiles=n] [cache=mb] [zcache=mb]"
+                + " [rate=kb] [peerRate=kb] [threads=platform|virtual] [maxSessions=n] [acceptors=n]"
+                + " [admit=n[/queue[/retryMs]]] [cluster=h:p,... [replicas=r] [self=h:p]] [watch=ms]"
+                + " [superseed[=n]] [admin=port]");
+        System.exit(1);
     }
 }
\ No newline at end of file
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+
+// Accept threads for Tracker.startServer / startNioServer (acceptors=n).
+// Where the OS has SO_REUSEPORT (Linux, macOS, the BSDs) every thread gets
+// its own listening socket bound to the port and the kernel spreads new
+// connections over them, so the threads share no accept queue or lock;
+// elsewhere they all accept on one socket. Accepting no longer logs every
+// peer: the count is printed once per LOG_MS while peers keep coming
+// (tracker_sessions_total has the exact number, see TrackerMetrics).
+class TrackerAcceptor implements Runnable {
+
+    static final int BACKLOG = 1024;
+    private static final long LOG_MS = 5_000;
+    // after an accept error (e.g. out of file descriptors), so the loop doesn't spin
+    private static final long ERROR_PAUSE_MS = 100;
+
+    // what to do with one accepted connection; one per accept thread, so it
+    // may keep state of its own (like the next event loop)
+    interface Handoff {
+        void accept(SocketChannel peer) throws IOException;
+    }
+
+    private final ServerSocketChannel channel;
+    private final Handoff handoff;
+    private final Counter counter;
+
+    private TrackerAcceptor(ServerSocketChannel channel, Handoff handoff, Counter counter) {
+        this.channel = channel;
+        this.handoff = handoff;
+        this.counter = counter;
+    }
+
+    // binds `count` listening sockets to port (one if SO_REUSEPORT is missing)
+    // and accepts on them from `count` threads, the last one being the caller's,
+    // so this doesn't return. handoffs.apply(i) is the handoff of thread i.
+    // description goes in the "listening" line
+    static void run(int port, int count, String description, IntFunction<Handoff> handoffs) throws IOException {
+        ServerSocketChannel first = ServerSocketChannel.open();
+        boolean reusePort = count > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        ServerSocketChannel[] channels = new ServerSocketChannel[count];
+        for (int i = 0; i < count; i++) {
+            channels[i] = i == 0 ? first : reusePort ? ServerSocketChannel.open() : first;
+            if (i == 0 || reusePort) {
+                if (reusePort) {
+                    channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channels[i].bind(new InetSocketAddress(port), BACKLOG);
+            }
+        }
+        String acceptors = count == 1 ? ""
+                : ", " + count + " acceptors" + (reusePort ? " (SO_REUSEPORT)" : " on one socket");
+        System.out.println("Tracker listening on TCP port " + port + " (" + description + acceptors + ")");
+
+        Counter counter = new Counter();
+        for (int i = 0; i < count - 1; i++) {
+            new Thread(new TrackerAcceptor(channels[i], handoffs.apply(i), counter), "TrackerAccept-" + i).start();
+        }
+        new TrackerAcceptor(channels[count - 1], handoffs.apply(count - 1), counter).run();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            SocketChannel peer;
+            try {
+                peer = channel.accept();
+            } catch (IOException e) {
+                System.out.println("Tracker: accept failed - " + e.getMessage());
+                try {
+                    Thread.sleep(ERROR_PAUSE_MS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                continue;
+            }
+            counter.accepted();
+            try {
+                handoff.accept(peer);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Tracker: could not hand off a peer - " + e);
+                try {
+                    peer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // connections accepted by all threads, logged once per LOG_MS
+    private static final class Counter {
+        private final AtomicLong accepted = new AtomicLong();
+        private final AtomicLong logged = new AtomicLong();
+        private final AtomicLong lastLogMs = new AtomicLong(System.currentTimeMillis());
+
+        void accepted() {
+            long n = accepted.incrementAndGet();
+            long now = System.currentTimeMillis();
+            long last = lastLogMs.get();
+            // one thread prints it
+            if ((n == 1 || now - last >= LOG_MS) && lastLogMs.compareAndSet(last, now)) {
+                long before = logged.getAndSet(n);
+                System.out.println("Tracker: " + (n - before) + " peer(s) connected"
+                        + (n == 1 ? "" : " in the last " + (now - last) / 1000 + " s") + ", " + n + " in total");
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// The files one tracker serves: a single file (the old behavior) or every
+// regular file in a directory. A peer picks one with "rdy <fileName>";
+// plain "rdy" gets the single file.
+// A file's chunk index is only built the first time a peer asks for it, and
+// at most maxLoaded of them are kept; the least recently used one is dropped
+// when another file has to be loaded. One that sessions (or its split) still
+// use is taken back as it is when it is asked for again, so there is never a
+// second copy with its own splitter writing the same chunk files.
+// A loaded file whose source changes is loaded again as its next version
+// (see FileVersion); sessions already running keep the one they have. Every
+// file handed out is held for the session (SharedFile.retain), which
+// releases it when it ends.
+// A file is set up (split, or its content defined chunks cut) outside the
+// catalog's lock, so handing out the loaded ones never waits for it. The
+// nio sessions don't load files on their selector thread at all: they ask
+// loadLater first and are resumed once the loader thread is done.
+class TrackerCatalog {
+
+    private final Path dir;
+    private final String defaultName; // single file mode, null for a directory
+    private final boolean mmap;
+    private final int maxLoaded;
+    private final ChunkCache cache; // shared by every loaded file, null if off
+    private final ContentChunker chunker; // content defined chunks, null for fixed size
+    private final int pieceSize; // fixed chunk size, 0 -> picked per file (SharedFile.pieceSize)
+    private final ChunkCompression compression; // deflated chunk budget, shared by every loaded file
+    private final ShardMap shards; // this node's share of a cluster, null if not in one
+    private final int superSeed; // see SuperSeed, 0 = off
+    private final TrackerMetrics metrics; // per chunk demand is dropped with the file, null if none
+
+    // access order -> eldest entry is the least recently used file
+    private final LinkedHashMap<String, SharedFile> loaded;
+    // dropped from loaded while still in use
+    private final Map<String, SharedFile> evicted = new HashMap<>();
+    // one file is set up at a time, so it is only ever set up once
+    private final Object loadLock = new Object();
+    // loadLater: files queued for the loader thread, and who to resume after each
+    private final Map<String, List<Runnable>> waiting = new HashMap<>();
+    private ThreadPoolExecutor loader;
+
+    TrackerCatalog(Path path, boolean mmap, int maxLoaded, ChunkCache cache, ContentChunker chunker,
+                   int pieceSize, ChunkCompression compression, ShardMap shards, int superSeed,
+                   TrackerMetrics metrics) throws IOException {
+        this.mmap = mmap;
+        this.maxLoaded = maxLoaded;
+        this.cache = cache;
+        this.chunker = chunker;
+        this.pieceSize = pieceSize;
+        this.compression = compression;
+        this.shards = shards;
+        this.superSeed = superSeed;
+        this.metrics = metrics;
+        this.loaded = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SharedFile> eldest) {
+                if (size() > TrackerCatalog.this.maxLoaded) {
+                    System.out.println("Tracker: unloading chunk index of " + eldest.getKey());
+                    SharedFile file = eldest.getValue();
+                    file.unload();
+                    evicted.values().removeIf(f -> !f.inUse());
+                    if (file.inUse()) {
+                        evicted.put(eldest.getKey(), file);
+                    }
+                    if (metrics != null) {
+                        metrics.fileUnloaded(eldest.getKey());
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        if (Files.isDirectory(path)) {
+            this.dir = path;
+            this.defaultName = null;
+            long count;
+            try (Stream<Path> files = Files.list(path)) {
+                count = files.filter(Files::isRegularFile).count();
+            }
+            System.out.println("Tracker: catalog " + path + " with " + count + " files");
+        } else {
+            this.dir = path.toAbsolutePath().getParent();
+            this.defaultName = path.getFileName().toString();
+            // a single file starts chunking right away, like before
+            load(defaultName, false);
+        }
+    }
+
+    // "rdy" -> the single file, "rdy <fileName>" -> that file (same for "rdy2"); null if unknown.
+    // The caller releases the file when its session ends
+    SharedFile select(String rdyLine) throws IOException {
+        String name = nameIn(rdyLine);
+        return name != null ? get(name) : null;
+    }
+
+    // the file name select picks for a rdy line, null if there is none
+    String nameIn(String rdyLine) {
+        int space = rdyLine.indexOf(' ');
+        return space > 0 ? rdyLine.substring(space + 1).trim() : defaultName;
+    }
+
+    // null if unknown; the caller releases the file when its session ends
+    SharedFile get(String name) throws IOException {
+        SharedFile file = takeLoaded(name, true);
+        if (file != null) {
+            return file;
+        }
+        return contains(name) ? load(name, true) : null;
+    }
+
+    // retain: held for the caller before another load can drop it again
+    private SharedFile load(String name, boolean retain) throws IOException {
+        synchronized (loadLock) {
+            SharedFile file = takeLoaded(name, retain);
+            if (file != null) {
+                return file;
+            }
+            file = new SharedFile(dir.resolve(name), mmap, cache, chunker, pieceSize, compression, shards,
+                    superSeed, null);
+            synchronized (this) {
+                if (retain) {
+                    file.retain();
+                }
+                loaded.put(name, file);
+            }
+            return file;
+        }
+    }
+
+    // the loaded file, or one taken back from evicted; null if it has to be set up
+    private synchronized SharedFile takeLoaded(String name, boolean retain) {
+        SharedFile file = loaded.get(name);
+        if (file == null) {
+            file = evicted.remove(name);
+            if (file != null) {
+                loaded.put(name, file);
+            }
+        }
+        if (file != null && retain) {
+            file.retain();
+        }
+        return file;
+    }
+
+    // get(name) returns right away: the file is loaded, or unknown
+    boolean ready(String name) {
+        synchronized (this) {
+            if (loaded.containsKey(name) || evicted.containsKey(name)) {
+                return true;
+            }
+        }
+        return !contains(name);
+    }
+
+    // true if ready(name). Otherwise the file is loaded on the loader thread
+    // and whenLoaded runs after that, whether it worked or not
+    boolean loadLater(String name, Runnable whenLoaded) {
+        if (ready(name)) {
+            return true;
+        }
+        synchronized (this) {
+            List<Runnable> sessions = waiting.get(name);
+            if (sessions != null) {
+                sessions.add(whenLoaded);
+                return false;
+            }
+            sessions = new ArrayList<>();
+            sessions.add(whenLoaded);
+            waiting.put(name, sessions);
+        }
+        loaderPool().execute(() -> {
+            try {
+                load(name, false);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Tracker: could not load " + name + " - " + e.getMessage());
+            }
+            List<Runnable> sessions;
+            synchronized (this) {
+                sessions = waiting.remove(name);
+            }
+            sessions.forEach(Runnable::run);
+        });
+        return false;
+    }
+
+    // one task per file name at most, so the queue stays as short as the catalog
+    private synchronized ThreadPoolExecutor loaderPool() {
+        if (loader == null) {
+            loader = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "TrackerLoader");
+                t.setDaemon(true);
+                return t;
+            });
+            loader.allowCoreThreadTimeOut(true);
+        }
+        return loader;
+    }
+
+    // checks the loaded files for changed sources every intervalMs, on a daemon thread
+    void startWatching(long intervalMs) {
+        Thread watcher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                List<SharedFile> files;
+                synchronized (this) {
+                    files = new ArrayList<>(loaded.values());
+                }
+                for (SharedFile file : files) {
+                    if (file.sourceChanged()) {
+                        try {
+                            publishNextVersion(file);
+                        } catch (IOException e) {
+                            System.out.println("Tracker: could not load the new " + file.fileName() + " - " + e.getMessage());
+                        }
+                    }
+                }
+            }
+        }, "TrackerWatcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        System.out.println("Tracker: watching shared files for changes every " + intervalMs + " ms");
+    }
+
+    // only the watcher thread calls this, so there is one new version at a
+    // time; it is set up outside the lock, sessions keep getting the current one
+    private void publishNextVersion(SharedFile current) throws IOException {
+        String name = current.fileName();
+        synchronized (this) {
+            if (loaded.get(name) != current) {
+                return; // unloaded meanwhile
+            }
+        }
+        System.out.println("Tracker: " + name + " changed, chunking version " + (current.version() + 1));
+        SharedFile next = new SharedFile(dir.resolve(name), mmap, cache, chunker, pieceSize, compression, shards,
+                superSeed, current);
+        synchronized (this) {
+            // if it was unloaded meanwhile, the next peer that wants it gets this version
+            evicted.remove(name, current);
+            loaded.put(name, next);
+        }
+        current.retire();
+    }
+
+    private boolean contains(String name) {
+        if (defaultName != null) {
+            return defaultName.equals(name);
+        }
+        // only plain names inside the catalog directory
+        if (name.isEmpty() || name.startsWith(".") || name.contains("/") || name.contains("\\")) {
+            return false;
+        }
+        return Files.isRegularFile(dir.resolve(name));
+    }
+}
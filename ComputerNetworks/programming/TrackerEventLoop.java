@@ -0,0 +1,106 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One selector thread serving many TrackerSessions.
+// Tracker.startNioServer runs a small fixed number of these and hands
+// every accepted channel to one of them round robin.
+class TrackerEventLoop implements Runnable {
+
+    private final Tracker tracker;
+    private final Selector selector;
+    private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    private final Queue<SelectionKey> granted = new ConcurrentLinkedQueue<>();
+
+    TrackerEventLoop(Tracker tracker) throws IOException {
+        this.tracker = tracker;
+        this.selector = Selector.open();
+    }
+
+    // called from the accept thread
+    void register(SocketChannel channel) {
+        newChannels.add(channel);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                registerNewChannels();
+                resumeGranted();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    step(key, false);
+                }
+            } catch (IOException e) {
+                System.out.println("Tracker: event loop error - " + e.getMessage());
+            }
+        }
+    }
+
+    private void registerNewChannels() {
+        SocketChannel channel;
+        while ((channel = newChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                TrackerSession session = new TrackerSession(tracker, channel);
+                SelectionKey key = channel.register(selector, session.interestOps(), session);
+                // runs on the scheduler thread
+                session.onGranted(() -> {
+                    granted.add(key);
+                    selector.wakeup();
+                });
+            } catch (IOException e) {
+                System.out.println("Tracker: error peer - " + e.getMessage());
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    // sessions whose throttled chunk the BandwidthScheduler has granted
+    private void resumeGranted() {
+        SelectionKey key;
+        while ((key = granted.poll()) != null) {
+            if (key.isValid()) {
+                step(key, true);
+            }
+        }
+    }
+
+    private void step(SelectionKey key, boolean resumed) {
+        TrackerSession session = (TrackerSession) key.attachment();
+        try {
+            boolean open = true;
+            if (resumed) {
+                open = session.onResumed();
+            } else if (key.isReadable()) {
+                open = session.onReadable();
+            } else if (key.isWritable()) {
+                open = session.onWritable();
+            }
+
+            if (open) {
+                key.interestOps(session.interestOps());
+            } else {
+                key.cancel();
+                session.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // RuntimeException covers malformed requests, e.g. "chunk index abc"
+            System.out.println("Tracker: error peer - " + e.getMessage());
+            key.cancel();
+            session.close();
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try { channel.close(); } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms for a tracker, served in the Prometheus
+// text format on a local admin port:
+//
+//   curl http://127.0.0.1:<adminPort>/metrics
+//
+//   tracker_sessions_active / _total      peer connections now / ever
+//   tracker_handshake_seconds             accept -> end of rdy..rdyD, rdy2 or hello
+//   tracker_chunk_service_seconds         chunk request -> last byte handed to the socket
+//                                         (includes waiting for the bandwidth scheduler)
+//   tracker_sent_bytes_total / _chunks_total, tracker_sent_bytes_per_second (last 10 s)
+//   tracker_chunk_requests_total{file,chunk}  demand per chunk
+//   tracker_admission_wait_seconds        batch queued -> serving slot (with admit=)
+//   + chunk cache, bandwidth scheduler, resume token, compression and admission
+//     counters when there are any
+//
+// Histograms have power of two "le" buckets (16 us .. 16 s) and come with
+// *_quantile_seconds gauges read from the finer buckets (see LatencyHistogram).
+class TrackerMetrics {
+
+    private static final int MIN_LE_EXPONENT = 4;  // 2^4 us
+    private static final int MAX_LE_EXPONENT = 24; // 2^24 us, about 16 s
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+    private static final int RATE_WINDOW_S = 10;
+
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final LongAdder sessions = new LongAdder();
+    private final LatencyHistogram handshakes = new LatencyHistogram();
+    private final LatencyHistogram chunkService = new LatencyHistogram();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder sentChunks = new LongAdder();
+
+    // bytes sent in each of the last RATE_WINDOW_S seconds, guarded by itself
+    private final long[] rateBytes = new long[RATE_WINDOW_S];
+    private final long[] rateSecond = new long[RATE_WINDOW_S];
+
+    // file name -> requests per chunk index
+    private final Map<String, AtomicLongArray> chunkRequests = new ConcurrentHashMap<>();
+
+    // counters kept elsewhere, null when that part is off
+    private final ChunkCache cache;
+    private final BandwidthScheduler scheduler;
+    private final SessionTokens<?> tokens;
+    private final ChunkCompression compression;
+    private final AdmissionControl admission;
+
+    TrackerMetrics(ChunkCache cache, BandwidthScheduler scheduler, SessionTokens<?> tokens,
+                   ChunkCompression compression, AdmissionControl admission) {
+        this.cache = cache;
+        this.scheduler = scheduler;
+        this.tokens = tokens;
+        this.compression = compression != null && compression.enabled() ? compression : null;
+        this.admission = admission;
+    }
+
+    // RECORDING
+
+    void sessionOpened() {
+        activeSessions.incrementAndGet();
+        sessions.increment();
+    }
+
+    void sessionClosed() {
+        activeSessions.decrementAndGet();
+    }
+
+    void handshake(long nanos) {
+        handshakes.record(nanos);
+    }
+
+    void chunkRequested(String fileName, int totalChunks, int index) {
+        if (index < 0 || index >= totalChunks) {
+            return;
+        }
+        AtomicLongArray counts = chunkRequests.get(fileName);
+        if (counts == null || counts.length() != totalChunks) {
+            counts = chunkRequests.compute(fileName,
+                    (k, old) -> old != null && old.length() == totalChunks ? old : new AtomicLongArray(totalChunks));
+        }
+        counts.incrementAndGet(index);
+    }
+
+    // the catalog dropped the file's chunk index; its demand counts go with it
+    void fileUnloaded(String fileName) {
+        chunkRequests.remove(fileName);
+    }
+
+    void chunkSent(long bytes, long nanos) {
+        chunkService.record(nanos);
+        sentBytes.add(bytes);
+        sentChunks.increment();
+
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % RATE_WINDOW_S);
+        synchronized (rateBytes) {
+            if (rateSecond[slot] != second) {
+                rateSecond[slot] = second;
+                rateBytes[slot] = 0;
+            }
+            rateBytes[slot] += bytes;
+        }
+    }
+
+    // average over the last RATE_WINDOW_S whole seconds
+    double bytesPerSecond() {
+        long now = System.currentTimeMillis() / 1000;
+        long total = 0;
+        synchronized (rateBytes) {
+            for (int i = 0; i < RATE_WINDOW_S; i++) {
+                if (rateSecond[i] >= now - RATE_WINDOW_S && rateSecond[i] < now) {
+                    total += rateBytes[i];
+                }
+            }
+        }
+        return (double) total / RATE_WINDOW_S;
+    }
+
+    // EXPOSITION
+
+    String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        gauge(sb, "tracker_sessions_active", "Peer connections being served", activeSessions.get());
+        counter(sb, "tracker_sessions_total", "Peer connections accepted", sessions.sum());
+        histogram(sb, "tracker_handshake_seconds", "Accept to end of handshake", handshakes.snapshot());
+        histogram(sb, "tracker_chunk_service_seconds", "Chunk request to last byte sent", chunkService.snapshot());
+        counter(sb, "tracker_sent_bytes_total", "Chunk bytes sent", sentBytes.sum());
+        counter(sb, "tracker_sent_chunks_total", "Chunks sent", sentChunks.sum());
+        gauge(sb, "tracker_sent_bytes_per_second", "Chunk bytes sent per second, last " + RATE_WINDOW_S + " s",
+                bytesPerSecond());
+
+        sb.append("# HELP tracker_chunk_requests_total Requests per chunk\n");
+        sb.append("# TYPE tracker_chunk_requests_total counter\n");
+        for (Map.Entry<String, AtomicLongArray> e : chunkRequests.entrySet()) {
+            String file = escape(e.getKey());
+            AtomicLongArray counts = e.getValue();
+            for (int i = 0; i < counts.length(); i++) {
+                long n = counts.get(i);
+                if (n > 0) {
+                    sb.append("tracker_chunk_requests_total{file=\"").append(file)
+                            .append("\",chunk=\"").append(i).append("\"} ").append(n).append('\n');
+                }
+            }
+        }
+
+        if (cache != null) {
+            counter(sb, "tracker_cache_hits_total", "Chunk cache hits", cache.hits());
+            counter(sb, "tracker_cache_misses_total", "Chunk cache misses", cache.misses());
+            counter(sb, "tracker_cache_evictions_total", "Chunk cache evictions", cache.evictions());
+            gauge(sb, "tracker_cache_bytes", "Bytes held by the chunk cache", cache.bytes());
+        }
+        if (scheduler != null) {
+            counter(sb, "tracker_scheduler_granted_bytes_total", "Bytes granted by the bandwidth scheduler",
+                    scheduler.sentBytes());
+            counter(sb, "tracker_scheduler_throttled_chunks_total", "Chunks that waited for bandwidth",
+                    scheduler.throttledChunks());
+        }
+        if (tokens != null) {
+            gauge(sb, "tracker_resume_tokens", "Live hello resume tokens", tokens.size());
+        }
+        if (compression != null) {
+            counter(sb, "tracker_deflated_chunks_total", "Chunks deflated", compression.deflatedChunks());
+            counter(sb, "tracker_incompressible_chunks_total", "Chunks left raw because they didn't shrink",
+                    compression.rawChunks());
+            gauge(sb, "tracker_deflated_bytes", "Bytes held by deflated chunks", compression.bytes());
+        }
+        if (admission != null) {
+            gauge(sb, "tracker_admission_serving", "Sessions being sent a batch", admission.serving());
+            gauge(sb, "tracker_admission_waiting", "Batches waiting for a serving slot", admission.waiting());
+            counter(sb, "tracker_admission_admitted_total", "Batches given a serving slot", admission.admittedCount());
+            counter(sb, "tracker_admission_queued_total", "Batches that had to wait", admission.queuedCount());
+            counter(sb, "tracker_admission_busy_total", "Peers told to retry later", admission.rejectedCount());
+            histogram(sb, "tracker_admission_wait_seconds", "Batch queued to serving slot", admission.waits());
+        }
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, double value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder sb, String name, String help, LatencyHistogram.Snapshot h) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" histogram\n");
+        for (int k = MIN_LE_EXPONENT; k <= MAX_LE_EXPONENT; k++) {
+            sb.append(name).append("_bucket{le=\"").append((1L << k) / 1e6).append("\"} ")
+                    .append(h.countBelow(k)).append('\n');
+        }
+        sb.append(name).append("_bucket{le=\"+Inf\"} ").append(h.count).append('\n');
+        sb.append(name).append("_sum ").append(h.sumMicros / 1e6).append('\n');
+        sb.append(name).append("_count ").append(h.count).append('\n');
+
+        String q = name.substring(0, name.length() - "_seconds".length()) + "_quantile_seconds";
+        sb.append("# HELP ").append(q).append(' ').append(help).append(", quantiles\n");
+        sb.append("# TYPE ").append(q).append(" gauge\n");
+        for (double quantile : QUANTILES) {
+            sb.append(q).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(h.quantile(quantile) / 1e6).append('\n');
+        }
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    // ADMIN PORT
+
+    // serves GET /metrics on 127.0.0.1:port from a daemon thread
+    void startAdminServer(int port) throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        System.out.println("Tracker: metrics on http://127.0.0.1:" + port + "/metrics");
+
+        Thread t = new Thread(() -> {
+            while (true) {
+                try (Socket client = server.accept()) {
+                    client.setSoTimeout(5000);
+                    serveScrape(new LineCodec(client));
+                } catch (IOException e) {
+                    System.out.println("Tracker: metrics request failed - " + e.getMessage());
+                }
+            }
+        }, "TrackerAdmin");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void serveScrape(LineCodec io) throws IOException {
+        String request = io.readLine();
+        if (request == null) {
+            return;
+        }
+        while (io.nextLine() && !io.is("")) {
+            // headers, nothing in them matters here
+        }
+
+        String[] parts = request.split(" ");
+        String path = parts.length > 1 ? parts[1] : "";
+        boolean found = parts[0].equals("GET") && (path.equals("/metrics") || path.equals("/"));
+        byte[] body = (found ? render() : "not found\n").getBytes(StandardCharsets.UTF_8);
+
+        io.write(found ? "HTTP/1.1 200 OK\r\n" : "HTTP/1.1 404 Not Found\r\n")
+                .write("Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n")
+                .write("Content-Length: ").write(body.length).write("\r\n")
+                .write("Connection: close\r\n\r\n");
+        io.write(body, 0, body.length);
+        io.flush();
+    }
+}
@@ -0,0 +1,652 @@
+import java.io.*;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+
+// Per-connection state for the selector based tracker (TrackerEventLoop).
+// Runs the same steps as Tracker.handlePeer, but one line at a time:
+// rdy [fileName] -> fileName echo -> # of chunks echo -> rdyD ->
+// manifest / announce / peers / availability / chunk index / chunks / next / close
+// or, after "rdy2", protocol v2 frames (see Frames), BLOCKS of large pieces too. "hello ..." skips
+// straight to serving (see Hello).
+class TrackerSession {
+
+    enum State { RDY, FILE_NAME, TOTAL_CHUNKS, RDYD, SERVING, FRAMES }
+
+    private static final int LINE_BUFFER = 1024;
+
+    private final Tracker tracker;
+    private final SocketChannel channel;
+    private final SocketAddress remote;
+
+    // readBuf stays in "fill" mode between calls; grows for large v2 frames
+    private ByteBuffer readBuf = ByteBuffer.allocate(LINE_BUFFER);
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+
+    // split mode: body of the chunk being sent, written after `pending` with transferTo
+    private FileChannel chunkFile;
+    private long chunkPos;
+    private long chunkEnd;
+
+    // uplink share, null without a cap; a chunk waiting for its grant stops the session until resume()
+    private final BandwidthScheduler.Flow flow;
+    private Runnable resume;
+    private int throttledIndex = -1;
+    private int throttledOffset;
+    private int throttledLength; // of a block, -1 for a whole chunk
+    private ByteBuffer deflated; // deflated copy of the requested chunk, null to send it raw
+
+    // "chunks" request still being sent
+    private int[] batch;
+    private int batchPos;
+    // BLOCKS: (offset, length) for each index in batch, null for whole chunks
+    private int[] blocks;
+    // its serving slot, see AdmissionControl; a queued batch stops the session until resume()
+    private AdmissionControl.Ticket ticket;
+
+    private SharedFile file; // picked at rdy, held until close
+    // the rdy / hello line whose file the catalog is loading, handled again
+    // in onResumed; loadWaited once the session has waited for it
+    private String waitingLine;
+    private boolean loadWaited;
+    private boolean deflate; // negotiated, chunks that shrink go out deflated
+    private String announcedAs; // swarm key from this connection's announce
+    private State state = State.RDY;
+    private boolean closing = false;
+    private boolean closed = false;
+
+    // metrics: accept time, and the chunk in flight since chunkRequestedAt (0 if none)
+    private final TrackerMetrics metrics;
+    private final long acceptedAt = System.nanoTime();
+    private long chunkRequestedAt;
+    private long chunkBytes;
+
+    TrackerSession(Tracker tracker, SocketChannel channel) throws IOException {
+        this.tracker = tracker;
+        this.channel = channel;
+        this.remote = channel.getRemoteAddress();
+        BandwidthScheduler scheduler = tracker.scheduler();
+        this.flow = scheduler != null ? scheduler.register(remote.toString()) : null;
+        this.metrics = tracker.metrics();
+        metrics.sessionOpened();
+    }
+
+    // how the event loop gets this session going again after a grant
+    void onGranted(Runnable resume) {
+        this.resume = resume;
+    }
+
+    // while a reply is still being written we stop reading, so a slow peer
+    // can't make us buffer an unbounded number of chunks. A throttled chunk
+    // parks the session until the scheduler grants it, a queued batch until
+    // it gets a serving slot.
+    int interestOps() {
+        if (!idle()) {
+            return SelectionKey.OP_WRITE;
+        }
+        return throttledIndex >= 0 || waitingLine != null || (ticket != null && !ticket.admitted())
+                ? 0 : SelectionKey.OP_READ;
+    }
+
+    void close() {
+        if (!closed) {
+            closed = true;
+            metrics.sessionClosed();
+        }
+        if (flow != null) {
+            flow.close();
+        }
+        releaseSlot();
+        if (file != null) {
+            file.release();
+            file = null;
+        }
+        if (chunkFile != null) {
+            try { chunkFile.close(); } catch (IOException ignored) {}
+            chunkFile = null;
+        }
+        try { channel.close(); } catch (IOException ignored) {}
+    }
+
+    private boolean idle() {
+        return pending.isEmpty() && chunkFile == null;
+    }
+
+    // false -> the event loop should close the connection
+    boolean onReadable() throws IOException {
+        int n = channel.read(readBuf);
+        if (n == -1) {
+            return false;
+        }
+        processLines();
+        if (!readBuf.hasRemaining()) {
+            if (readBuf.capacity() >= LineCodec.MAX_LINE) {
+                System.out.println("Tracker: line too long from " + remote);
+                return false;
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(readBuf.capacity() * 2);
+            readBuf.flip();
+            readBuf = bigger.put(readBuf);
+        }
+        return !(closing && idle());
+    }
+
+    boolean onWritable() throws IOException {
+        if (!flush()) {
+            return true;
+        }
+        if (closing) {
+            return false;
+        }
+        processLines();
+        return !(closing && idle());
+    }
+
+    // the throttled chunk has been granted, the queued batch has a serving
+    // slot, or the file the peer asked for has been loaded
+    boolean onResumed() throws IOException {
+        if (waitingLine != null) {
+            String line = waitingLine;
+            waitingLine = null;
+            handleLine(line);
+            if (!flush()) {
+                return true;
+            }
+        }
+        if (throttledIndex >= 0) {
+            int index = throttledIndex;
+            throttledIndex = -1;
+            queueChunk(index, throttledOffset, throttledLength);
+            if (!flush()) {
+                return true;
+            }
+        }
+        processLines();
+        return !(closing && idle());
+    }
+
+    // PROTOCOL HANDLING
+
+    private void processLines() throws IOException {
+        readBuf.flip();
+        String line;
+        while (!closing && idle() && throttledIndex < 0 && waitingLine == null) {
+            if (batch != null) {
+                if (!hasSlot()) {
+                    break;
+                }
+                // one chunk of the batch per pass, so a slow peer still only has one queued
+                int index = batch[batchPos];
+                int offset = blocks != null ? blocks[2 * batchPos] : 0;
+                int length = blocks != null ? blocks[2 * batchPos + 1] : -1;
+                int send = Tracker.seedChunk(file, index, announcedAs, blocks == null ? batch : null);
+                if (++batchPos == batch.length) {
+                    batch = null;
+                    blocks = null;
+                }
+                if (send < 0) {
+                    refuseChunk(index, offset, length);
+                } else if (send != index && state != State.FRAMES) {
+                    pending.add(Tracker.insteadReply(send));
+                } else {
+                    requestChunk(send, offset, length);
+                }
+            } else {
+                releaseSlot(); // the last batch has been sent
+                if (state == State.FRAMES) {
+                    if (!nextFrame()) {
+                        break;
+                    }
+                } else if ((line = nextLine()) != null) {
+                    handleLine(line);
+                } else {
+                    break;
+                }
+            }
+            flush();
+        }
+        readBuf.compact();
+    }
+
+    private void handleLine(String line) throws IOException {
+        switch (state) {
+            case RDY:
+                if (Hello.isHello(line)) {
+                    if (!fileLoaded(line)) {
+                        return;
+                    }
+                    Hello.Accepted hello = Hello.accept(line, tracker.catalog(), tracker.sessions(),
+                            tracker.compression(), tracker.shards());
+                    file = hello.file;
+                    if (file == null) {
+                        System.out.println("Tracker: no such file, peer sent '" + line + "'");
+                        queueLine("unknown file");
+                        closing = true;
+                        return;
+                    }
+                    announcedAs = hello.announcedAs;
+                    deflate = hello.encoding.equals(ChunkCompression.DEFLATE);
+                    pending.add(ByteBuffer.wrap(hello.reply.getBytes(StandardCharsets.UTF_8)));
+                    if (hello.want.length > 0) {
+                        batch = hello.want;
+                        batchPos = 0;
+                    }
+                    state = State.SERVING;
+                    metrics.handshake(System.nanoTime() - acceptedAt);
+                    return;
+                }
+                boolean v2 = line.equals("rdy2") || line.startsWith("rdy2 ");
+                if (!(v2 || line.equals("rdy") || line.startsWith("rdy "))) {
+                    System.out.println("Tracker: expected 'rdy' got " + line);
+                    closing = true;
+                    return;
+                }
+                if (!fileLoaded(line)) {
+                    return;
+                }
+                file = tracker.catalog().select(line);
+                if (file == null) {
+                    System.out.println("Tracker: no such file, peer sent '" + line + "'");
+                    queueLine("unknown file");
+                    closing = true;
+                    return;
+                }
+                if (v2) {
+                    queueLine("rdy2");
+                    pending.add(Frames.hello(file));
+                    state = State.FRAMES;
+                    metrics.handshake(System.nanoTime() - acceptedAt);
+                    return;
+                }
+                queueLine("rdy");
+                queueLine(file.fileName());
+                state = State.FILE_NAME;
+                break;
+
+            case FILE_NAME:
+                if (!file.fileName().equals(line)) {
+                    System.out.println("Tracker: expected file name '" + file.fileName() + "', got '" + line + "'");
+                    closing = true;
+                    return;
+                }
+                queueLine("" + file.totalChunks());
+                state = State.TOTAL_CHUNKS;
+                break;
+
+            case TOTAL_CHUNKS:
+                if (!line.equals("" + file.totalChunks())) {
+                    System.out.println("Tracker: expected '# of chunks " + file.totalChunks() + "', got " + line);
+                    closing = true;
+                    return;
+                }
+                state = State.RDYD;
+                break;
+
+            case RDYD:
+                if (!"rdyD".equals(line)) {
+                    System.out.println("Tracker: expected 'rdyD', got " + line);
+                    closing = true;
+                    return;
+                }
+                state = State.SERVING;
+                metrics.handshake(System.nanoTime() - acceptedAt);
+                break;
+
+            case SERVING:
+                if (line.startsWith("chunk index")) {
+                    batch = new int[] { Integer.parseInt(line.split("\\s+")[2]) };
+                    batchPos = 0;
+                } else if (line.startsWith("chunks ")) {
+                    try {
+                        batch = ChunkBatch.parse(line.substring(7));
+                        batchPos = 0;
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Tracker: " + e.getMessage());
+                        closing = true;
+                    }
+                } else if ("manifest".equals(line)) {
+                    pending.add(ByteBuffer.wrap(file.manifestReply().getBytes(StandardCharsets.UTF_8)));
+                } else if (line.startsWith("announce ")) {
+                    announcedAs = file.swarm().announce(line);
+                    queueLine("ok");
+                } else if (line.startsWith("peers")) {
+                    pending.add(ByteBuffer.wrap(file.swarm().peersReply(line, announcedAs).getBytes(StandardCharsets.UTF_8)));
+                } else if ("availability".equals(line)) {
+                    pending.add(ByteBuffer.wrap(file.swarm().availabilityReply(file.totalChunks()).getBytes(StandardCharsets.UTF_8)));
+                } else if (line.startsWith("encoding ")) {
+                    String encoding = tracker.compression().negotiate(line.substring(9));
+                    deflate = encoding.equals(ChunkCompression.DEFLATE);
+                    queueLine("encoding " + encoding);
+                } else if ("shards".equals(line)) {
+                    queueLine(ShardMap.encode(tracker.shards()));
+                } else if (line.startsWith("version ")) {
+                    pending.add(ByteBuffer.wrap(file.versionReply(Integer.parseInt(line.substring(8).trim()))
+                            .getBytes(StandardCharsets.UTF_8)));
+                } else if ("next".equals(line)) {
+                    // nothing to do
+                } else if ("close".equals(line)) {
+                    System.out.println("Tracker: closed connection");
+                    closing = true;
+                } else {
+                    System.out.println("Tracker: wrong command " + line);
+                }
+                break;
+        }
+    }
+
+    // PROTOCOL V2
+
+    // handles the next frame if readBuf (in "drain" mode) holds all of it
+    private boolean nextFrame() throws IOException {
+        int start = readBuf.position();
+        if (readBuf.remaining() < 2) {
+            return false;
+        }
+        int length = Frames.peekVarint(readBuf, start + 1);
+        if (length < 0) {
+            return false;
+        }
+        if (length > Frames.MAX_FRAME) {
+            throw new IOException("frame too large: " + length);
+        }
+        int end = start + 1 + Frames.varintSize(length) + length;
+        if (end > readBuf.limit()) {
+            if (end - start > readBuf.capacity()) {
+                // room for the whole frame, still in "drain" mode
+                ByteBuffer bigger = ByteBuffer.allocate(end - start);
+                bigger.put(readBuf).flip();
+                readBuf = bigger;
+            }
+            return false;
+        }
+
+        // hand the payload over in place, no copy
+        byte type = readBuf.get(start);
+        int limit = readBuf.limit();
+        readBuf.limit(end).position(end - length);
+        handleFrame(type, readBuf);
+        readBuf.limit(limit).position(end);
+        return true;
+    }
+
+    private void handleFrame(byte type, ByteBuffer payload) throws IOException {
+        switch (type) {
+            case Frames.REQUEST:
+                batch = Frames.parseRequest(payload);
+                batchPos = 0;
+                if (batch.length == 0) {
+                    batch = null;
+                }
+                break;
+            case Frames.BLOCKS:
+                int[] triples = Frames.parseBlocks(payload);
+                if (triples.length > 0) {
+                    batch = new int[triples.length / 3];
+                    blocks = new int[2 * batch.length];
+                    for (int i = 0; i < batch.length; i++) {
+                        batch[i] = triples[3 * i];
+                        blocks[2 * i] = triples[3 * i + 1];
+                        blocks[2 * i + 1] = triples[3 * i + 2];
+                    }
+                    batchPos = 0;
+                }
+                break;
+            case Frames.META:
+                pending.add(Frames.frame(Frames.META, file.manifestFrame()));
+                break;
+            case Frames.AVAIL:
+                pending.add(Frames.frame(Frames.AVAIL, file.swarm().availabilityFrame(file.totalChunks())));
+                break;
+            case Frames.ENCODING:
+                String encoding = tracker.compression().negotiate(StandardCharsets.UTF_8.decode(payload).toString());
+                deflate = encoding.equals(ChunkCompression.DEFLATE);
+                pending.add(Frames.frame(Frames.ENCODING, encoding.getBytes(StandardCharsets.UTF_8)));
+                break;
+            case Frames.SHARDS:
+                pending.add(Frames.frame(Frames.SHARDS,
+                        ShardMap.encode(tracker.shards()).getBytes(StandardCharsets.UTF_8)));
+                break;
+            case Frames.VERSION:
+                pending.add(Frames.frame(Frames.VERSION,
+                        file.versionReply(Frames.getVarint(payload)).trim().getBytes(StandardCharsets.UTF_8)));
+                break;
+            case Frames.BITFIELD:
+                announcedAs = file.swarm().announce(payload);
+                break;
+            case Frames.HAVE:
+                if (announcedAs != null) {
+                    file.swarm().have(announcedAs, Frames.getVarint(payload), file.totalChunks());
+                }
+                break;
+            case Frames.CLOSE:
+                System.out.println("Tracker: closed connection");
+                closing = true;
+                break;
+            default:
+                System.out.println("Tracker: unknown frame type " + type);
+                closing = true;
+        }
+    }
+
+    // true once the batch has a serving slot. false while it is queued (the
+    // session is resumed when it gets one) or when the tracker is busy, in
+    // which case the peer is told to retry and the connection closes
+    private boolean hasSlot() {
+        AdmissionControl admission = tracker.admission();
+        if (admission == null) {
+            return true;
+        }
+        if (ticket == null) {
+            ticket = admission.tryAdmit(file.swarm().chunksHeld(announcedAs), resume);
+            if (ticket == null) {
+                System.out.println("Tracker: busy, peer told to retry in " + admission.retryMs() + " ms");
+                pending.add(Tracker.busyReply(state == State.FRAMES, admission.retryMs()));
+                batch = null;
+                blocks = null;
+                closing = true;
+                return false;
+            }
+        }
+        return ticket.admitted();
+    }
+
+    private void releaseSlot() {
+        if (ticket != null) {
+            ticket.close();
+            ticket = null;
+        }
+    }
+
+    // queues the chunk (length -1) or a block of it, or parks the session until the scheduler grants it
+    private void requestChunk(int index, int offset, int length) throws IOException {
+        chunkRequestedAt = System.nanoTime();
+        chunkBytes = 0;
+        if (length < 0 || offset == 0) {
+            metrics.chunkRequested(file.fileName(), file.totalChunks(), index);
+        }
+        // blocks always go raw; chunks not deflated yet too, this is a selector thread
+        deflated = deflate && length < 0 ? file.keptDeflatedChunk(index) : null;
+        int size;
+        if (length >= 0) {
+            size = file.blockLength(index, offset, length);
+        } else {
+            size = deflated != null ? deflated.remaining() : file.chunkLength(index);
+        }
+        if (flow == null || flow.tryAcquire(size, resume)) {
+            queueChunk(index, offset, length);
+        } else {
+            throttledIndex = index;
+            throttledOffset = offset;
+            throttledLength = length;
+        }
+    }
+
+    private void queueChunk(int index, int offset, int length) throws IOException {
+        if (length >= 0) {
+            queueBlock(index, offset, length);
+            return;
+        }
+        if (deflated != null) {
+            int decoded = file.chunkLength(index);
+            pending.add(Tracker.deflatedHeader(state == State.FRAMES, index, decoded, deflated.remaining()));
+            pending.add(deflated);
+            chunkBytes = deflated.remaining();
+            deflated = null;
+
+            System.out.println("Tracker: sent chunk " + index + " (" + chunkBytes + " bytes, deflated from " + decoded + ")");
+            return;
+        }
+        // a chunk cache miss goes out from the file, without the cache
+        ByteBuffer buffer = file.hasChunkBuffers() ? file.loadedChunkBuffer(index) : null;
+        if (buffer != null) {
+            // header and mapped slice / cached chunk leave in the same gather write
+            queueChunkHeader(index, buffer.remaining());
+            pending.add(buffer);
+            chunkBytes = buffer.remaining();
+
+            System.out.println("Tracker: sent chunk " + index + " (" + buffer.remaining() + " bytes)");
+            return;
+        }
+
+        SharedFile.ChunkLocation chunk = file.chunkLocation(index);
+        if (chunk == null) {
+            queueChunkHeader(index, 0);
+            return;
+        }
+
+        chunkFile = FileChannel.open(chunk.file, StandardOpenOption.READ);
+        chunkPos = chunk.offset;
+        chunkEnd = chunk.offset + chunk.length;
+        queueChunkHeader(index, chunk.length);
+        chunkBytes = chunk.length;
+
+        System.out.println("Tracker: sent chunk " + index + " (" + chunk.length + " bytes)");
+    }
+
+    // super-seeding: an empty reply for a chunk that has been sent already
+    private void refuseChunk(int index, int offset, int length) {
+        if (length >= 0) {
+            pending.add(Frames.blockHeader(index, offset, 0, 0));
+        } else {
+            queueChunkHeader(index, 0);
+        }
+    }
+
+    // BLOCK frame, see PieceBlocks
+    private void queueBlock(int index, int offset, int length) throws IOException {
+        int size = file.blockLength(index, offset, length);
+        ByteBuffer buffer = file.hasChunkBuffers() ? file.loadedBlockBuffer(index, offset, length) : null;
+        if (buffer != null) {
+            pending.add(Frames.blockHeader(index, offset, file.chunkLength(index), size));
+            pending.add(buffer);
+        } else {
+            SharedFile.ChunkLocation block = file.blockLocation(index, offset, length);
+            if (block == null) {
+                pending.add(Frames.blockHeader(index, offset, 0, 0));
+                return;
+            }
+            chunkFile = FileChannel.open(block.file, StandardOpenOption.READ);
+            chunkPos = block.offset;
+            chunkEnd = block.offset + size;
+            pending.add(Frames.blockHeader(index, offset, file.chunkLength(index), size));
+        }
+        chunkBytes = size;
+
+        System.out.println("Tracker: sent chunk " + index + " block at " + offset + " (" + size + " bytes)");
+    }
+
+    // HELPERS
+
+    // false -> the file this rdy / hello line picks isn't loaded yet, which
+    // reads the whole file with content defined chunks. It is loaded off the
+    // selector thread and the line handled again once it is. If it still
+    // isn't after that (it couldn't be loaded), the peer gets "unknown file"
+    private boolean fileLoaded(String line) {
+        TrackerCatalog catalog = tracker.catalog();
+        String name = Hello.isHello(line) ? Hello.fileName(line, catalog, tracker.sessions()) : catalog.nameIn(line);
+        if (name == null || (loadWaited ? catalog.ready(name) : catalog.loadLater(name, resume))) {
+            return true;
+        }
+        if (loadWaited) {
+            System.out.println("Tracker: " + name + " could not be loaded for " + remote);
+            queueLine("unknown file");
+            closing = true;
+            return false;
+        }
+        waitingLine = line;
+        loadWaited = true;
+        return false;
+    }
+
+    // "chunk size N", or a DATA frame header in protocol v2
+    private void queueChunkHeader(int index, int size) {
+        if (state == State.FRAMES) {
+            pending.add(Frames.dataHeader(index, size));
+        } else {
+            queueLine("chunk size " + size);
+        }
+    }
+
+    private void queueLine(String msg) {
+        pending.add(ByteBuffer.wrap((msg + "\n").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // true once everything queued has been handed to the socket
+    private boolean flush() throws IOException {
+        if (!pending.isEmpty()) {
+            // all queued lines go out in one gather write
+            channel.write(pending.toArray(new ByteBuffer[0]));
+            while (!pending.isEmpty() && !pending.peek().hasRemaining()) {
+                pending.poll();
+            }
+            if (!pending.isEmpty()) {
+                return false; // socket buffer full, wait for OP_WRITE
+            }
+        }
+
+        if (chunkFile != null) {
+            while (chunkPos < chunkEnd) {
+                long n = chunkFile.transferTo(chunkPos, chunkEnd - chunkPos, channel);
+                if (n == 0) {
+                    if (chunkPos >= chunkFile.size()) {
+                        // the file shrank, OP_WRITE would fire forever
+                        throw new EOFException("chunk file shrank while sending it");
+                    }
+                    return false;
+                }
+                chunkPos += n;
+            }
+            chunkFile.close();
+            chunkFile = null;
+        }
+        if (chunkRequestedAt != 0 && throttledIndex < 0) {
+            metrics.chunkSent(chunkBytes, System.nanoTime() - chunkRequestedAt);
+            chunkRequestedAt = 0;
+        }
+        return true;
+    }
+
+    // readBuf must be in "drain" mode; returns null if no full line is buffered yet
+    private String nextLine() {
+        int start = readBuf.position();
+        for (int i = start; i < readBuf.limit(); i++) {
+            if (readBuf.get(i) == '\n') {
+                StringBuilder sb = new StringBuilder(i - start);
+                for (int j = start; j < i; j++) {
+                    char ch = (char) (readBuf.get(j) & 0xff);
+                    if (ch != '\r') {
+                        sb.append(ch);
+                    }
+                }
+                readBuf.position(i + 1);
+                return sb.toString();
+            }
+        }
+        return null;
+    }
+}
@@ -1,6 +1,8 @@
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -30,6 +32,9 @@ public class revisedClient {
     private volatile int totalChunks = -1;
     private volatile String fileName = "unknown";
 
+    // runs one handler per upload neighbor (threads= / maxSessions=, see SessionExecutor)
+    private SessionExecutor uploadHandlers = new SessionExecutor("platform", 0, "UploadHandler");
+
     // CONSTRUCTOR
 
     public revisedClient(String peerId,
@@ -49,6 +54,11 @@ public class revisedClient {
         this.initialChunksFromTracker = initialChunksFromTracker;
     }
 
+    // before start()
+    void setUploadHandlers(SessionExecutor uploadHandlers) {
+        this.uploadHandlers = uploadHandlers;
+    }
+
     // STARTUP
 
     public void start() throws IOException {
@@ -75,67 +85,130 @@ public class revisedClient {
     // TALK TO TRACKER
 
     private void connectToTrackerAndDownloadInitialChunks() {
+        // protocol v2 first, the text protocol if the tracker doesn't have it
+        if (downloadInitialChunksV2()) {
+            return;
+        }
+
         try (Socket socket = new Socket(trackerHost, trackerPort)) {
-            InputStream in = socket.getInputStream();
-            OutputStream out = socket.getOutputStream();
+            LineCodec io = new LineCodec(socket);
 
             // rdy 
-            sendLine(out, "rdy");
-            String resp = readLine(in);
+            io.sendLine("rdy");
+            String resp = io.readLine();
             if (!"rdy".equals(resp)) {
                 System.err.println("Client " + peerId + ": expected 'rdy' " + resp);
                 return;
             }
 
             // fName
-            resp = readLine(in);
+            resp = io.readLine();
             fileName = resp;
-            sendLine(out, resp);
+            io.sendLine(resp);
 
             System.out.println("Client " + peerId + ": tracker fileName=" + fileName);
 
             // # of chunks
-            resp = readLine(in);
+            resp = io.readLine();
             totalChunks = Integer.parseInt(resp);
-            sendLine(out, resp);
             System.out.println("Client " + peerId + ": totalChunks=" + totalChunks);
 
-            // ready to download
-            sendLine(out, "rdyD");
+            // echo and ready to download in one packet
+            io.writeLine(resp).writeLine("rdyD");
 
             // choose indices
             List<Integer> chosen = chooseInitialChunkIndices(totalChunks, initialChunksFromTracker);
             System.out.println("Client " + peerId + ": initial chunk indices " + chosen);
 
             for (int idx : chosen) {
-                requestChunkFromTracker(idx, in, out);
-                sendLine(out, "next");
+                requestChunkFromTracker(idx, io);
+                // goes out with the next request
+                io.writeLine("next");
             }
 
-            sendLine(out, "close");
+            io.sendLine("close");
 
         } catch (IOException e) {
             System.err.println("Client " + peerId + ": error talking to tracker" + e.getMessage());
         }
     }
 
-    private void requestChunkFromTracker(int index,
-                                         InputStream in,
-                                         OutputStream out) throws IOException {
-        sendLine(out, "chunk index " + index);
+    // rdy2 -> HELLO -> REQUEST -> DATA... -> CLOSE, see Frames
+    // false if the tracker doesn't speak v2 or the exchange failed, the text protocol is tried then
+    private boolean downloadInitialChunksV2() {
+        try (Socket socket = new Socket(trackerHost, trackerPort)) {
+            LineCodec io = new LineCodec(socket);
+            io.sendLine("rdy2");
+            String resp = io.readLine();
+            if (!"rdy2".equals(resp)) {
+                System.out.println("Client " + peerId + ": tracker has no protocol v2 (" + resp + "), using text");
+                return false;
+            }
+
+            Frames.Reader in = new Frames.Reader(io.input());
+
+            if (in.next() != Frames.HELLO) {
+                System.err.println("Client " + peerId + ": expected HELLO, using text");
+                return false;
+            }
+            ByteBuffer hello = in.payload();
+            totalChunks = Frames.getVarint(hello);
+            Frames.getVarint(hello); // chunk size
+            fileName = StandardCharsets.UTF_8.decode(hello).toString();
+            System.out.println("Client " + peerId + ": tracker fileName=" + fileName + ", totalChunks=" + totalChunks);
+
+            List<Integer> chosen = chooseInitialChunkIndices(totalChunks, initialChunksFromTracker);
+            System.out.println("Client " + peerId + ": initial chunk indices " + chosen);
+
+            // one REQUEST per ChunkBatch.MAX_CHUNKS, the most a tracker takes at once
+            for (int from = 0; from < chosen.size(); from += ChunkBatch.MAX_CHUNKS) {
+                List<Integer> batch = chosen.subList(from, Math.min(chosen.size(), from + ChunkBatch.MAX_CHUNKS));
+                io.write(Frames.request(batch));
+                io.flush();
+                for (int i = 0; i < batch.size(); i++) {
+                    if (in.next() != Frames.DATA) {
+                        System.err.println("Client " + peerId + ": expected DATA, using text");
+                        return false;
+                    }
+                    ByteBuffer data = in.payload();
+                    int index = Frames.getVarint(data);
+                    if (!data.hasRemaining()) {
+                        System.err.println("Client " + peerId + ": chunk " + index + " has size 0");
+                        continue;
+                    }
+                    byte[] buf = new byte[data.remaining()];
+                    data.get(buf);
+                    saveChunkToDisk(index, buf);
+                    ownedChunks.add(index);
+                    System.out.println("Client " + peerId + ": got chunk " + index + " from tracker");
+                }
+            }
 
-        String szLine = readLine(in); // reads chunk size X
-        if (szLine == null || !szLine.startsWith("chunk size")) {
-            System.err.println("Client " + peerId + ": invalid size line for chunk " + index + ": " + szLine);
+            io.write(Frames.frame(Frames.CLOSE, new byte[0]));
+            io.flush();
+
+        } catch (IOException e) {
+            System.err.println("Client " + peerId + ": error talking to tracker" + e.getMessage() + ", using text");
+            return false;
+        }
+        return true;
+    }
+
+    private void requestChunkFromTracker(int index, LineCodec io) throws IOException {
+        io.writeLine("chunk index ", index).flush();
+
+        // reads chunk size X
+        if (!io.nextLine() || !io.startsWith("chunk size")) {
+            System.err.println("Client " + peerId + ": invalid size line for chunk " + index + ": " + io.line());
             return;
         }
-        int size = Integer.parseInt(szLine.split("\\s+")[2]);
+        int size = io.intField(2);
         if (size <= 0) {
             System.err.println("Client " + peerId + ": chunk " + index + " has size " + size);
             return;
         }
 
-        byte[] buf = rawRead(in, size);
+        byte[] buf = io.readBytes(size);
         saveChunkToDisk(index, buf);
         ownedChunks.add(index);
 
@@ -182,8 +255,12 @@ public class revisedClient {
                 Socket neighbor = serverSocket.accept();
                 System.out.println("Client " + peerId + ": upload neighbor connected from "
                         + neighbor.getRemoteSocketAddress());
-                new Thread(() -> handleUploadNeighbor(neighbor),
-                        "UploadHandler-" + peerId).start();
+                try {
+                    uploadHandlers.execute(() -> handleUploadNeighbor(neighbor));
+                } catch (RuntimeException | OutOfMemoryError e) {
+                    System.err.println("Client " + peerId + ": no thread for upload neighbor - " + e);
+                    neighbor.close();
+                }
             }
         } catch (IOException e) {
             System.err.println("Client " + peerId + ": upload server error - " + e.getMessage());
@@ -192,40 +269,38 @@ public class revisedClient {
 
     private void handleUploadNeighbor(Socket socket) {
         try {
-            InputStream in = socket.getInputStream();
-            OutputStream out = socket.getOutputStream();
+            LineCodec io = new LineCodec(socket);
 
             // handshake rdy 
-            String line = readLine(in);
+            String line = io.readLine();
             if (!"rdy".equals(line)) {
                 System.out.println("Client " + peerId + " UPeer: expected 'rdy', got " + line);
                 return;
             }
-            sendLine(out, "rdy");
+            io.sendLine("rdy");
 
             // wait for chunkIDList
-            line = readLine(in);
+            line = io.readLine();
             if (!"chunkIDList".equals(line)) {
                 System.out.println("Client " + peerId + " UPeer: expected 'chunkIDList', got " + line);
                 return;
             }
 
             // send our chunk ID list
-            sendChunkIdList(out);
+            sendChunkIdList(io);
 
             // wait for rdyD
-            line = readLine(in);
+            line = io.readLine();
             if (!"rdyD".equals(line)) {
                 System.out.println("Client " + peerId + " UPeer: expected 'rdyD', got " + line);
                 return;
             }
 
             // respond to requests
-            while ((line = readLine(in)) != null) {
-                if (line.startsWith("chunk index")) {
-                    int idx = Integer.parseInt(line.split("\\s+")[2]);
-                    sendChunkToNeighbor(idx, out);
-                } else if ("close".equals(line)) {
+            while (io.nextLine()) {
+                if (io.startsWith("chunk index")) {
+                    sendChunkToNeighbor(io.intField(2), io);
+                } else if (io.is("close")) {
                     System.out.println("Client " + peerId + " UPeer: neighbor closed");
                     break;
                 } else {
@@ -243,27 +318,29 @@ public class revisedClient {
         }
     }
 
-    private void sendChunkIdList(OutputStream out) throws IOException {
-        sendLine(out, "LIST " + ownedChunks.size());
-        for (int id : ownedChunks) {
-            sendLine(out, Integer.toString(id));
+    private void sendChunkIdList(LineCodec io) throws IOException {
+        // one write for the whole list
+        List<Integer> ids = new ArrayList<>(ownedChunks);
+        io.writeLine("LIST ", ids.size());
+        for (int id : ids) {
+            io.writeLine("", id);
         }
-        sendLine(out, "END");
+        io.writeLine("END").flush();
         System.out.println("Client " + peerId + " UPeer: sent chunk ID list " + ownedChunks);
     }
 
-    private void sendChunkToNeighbor(int index, OutputStream out) throws IOException {
+    private void sendChunkToNeighbor(int index, LineCodec io) throws IOException {
         Path path = chunkDir.resolve("chunk_" + index + ".dat");
         if (!Files.exists(path)) {
-            sendLine(out, "chunk size 0");
+            io.sendLine("chunk size 0");
             System.out.println("Client " + peerId + " UPeer: requested chunk " + index +
                     " but do not have it");
             return;
         }
         byte[] data = Files.readAllBytes(path);
-        sendLine(out, "chunk size " + data.length);
-        out.write(data);
-        out.flush();
+        io.writeLine("chunk size ", data.length);
+        io.write(data, 0, data.length);
+        io.flush();
         System.out.println("Client " + peerId + " UPeer: sent chunk " + index);
     }
 
@@ -277,23 +354,22 @@ public class revisedClient {
 
         while (true) {
             try (Socket socket = new Socket(downloadNeighborHost, downloadNeighborPort)) {
-                InputStream in = socket.getInputStream();
-                OutputStream out = socket.getOutputStream();
+                LineCodec io = new LineCodec(socket);
 
                 System.out.println("Client " + peerId + " DPeer: connected to "
                         + downloadNeighborHost + ":" + downloadNeighborPort);
 
                 // handshake
-                sendLine(out, "rdy");
-                String line = readLine(in);
+                io.sendLine("rdy");
+                String line = io.readLine();
                 if (!"rdy".equals(line)) {
                     System.err.println("Client " + peerId + " DPeer: expected 'rdy', got " + line);
                     continue;
                 }
 
                 // request chunk ID list
-                sendLine(out, "chunkIDList");
-                Set<Integer> neighborChunks = receiveChunkIdList(in);
+                io.sendLine("chunkIDList");
+                Set<Integer> neighborChunks = receiveChunkIdList(io);
                 System.out.println("Client " + peerId + " DPeer: neighbor has " + neighborChunks);
 
                 // compute missing
@@ -302,7 +378,7 @@ public class revisedClient {
                 System.out.println("Client " + peerId + " DPeer: missing from neighbor: " + missing);
 
                 if (missing.isEmpty()) {
-                    sendLine(out, "close");
+                    io.sendLine("close");
 
                     if (totalChunks > 0 && ownedChunks.size() >= totalChunks) {
                         System.out.println("Client " + peerId + " DPeer: have all chunks!");
@@ -318,25 +394,24 @@ public class revisedClient {
                 }
 
                 // ready to download
-                sendLine(out, "rdyD");
+                io.sendLine("rdyD");
 
                 for (int idx : missing) {
-                    sendLine(out, "chunk index " + idx);
-                    String szLine = readLine(in);
-                    if (szLine == null || !szLine.startsWith("chunk size")) {
+                    io.writeLine("chunk index ", idx).flush();
+                    if (!io.nextLine() || !io.startsWith("chunk size")) {
                         System.err.println("Client " + peerId + " DPeer: invalid size line for chunk "
-                                + idx + ": " + szLine);
+                                + idx + ": " + io.line());
                         break;
                     }
-                    int size = Integer.parseInt(szLine.split("\\s+")[2]);
+                    int size = io.intField(2);
                     if (size <= 0) continue;
-                    byte[] data = rawRead(in, size);
+                    byte[] data = io.readBytes(size);
                     saveChunkToDisk(idx, data);
                     ownedChunks.add(idx);
                     System.out.println("Client " + peerId + " DPeer: downloaded chunk " + idx);
                 }
 
-                sendLine(out, "close");
+                io.sendLine("close");
 
                 if (totalChunks > 0 && ownedChunks.size() >= totalChunks) {
                     System.out.println("Client " + peerId + " DPeer: have all chunks!");
@@ -359,14 +434,12 @@ public class revisedClient {
         }
     }
 
-    private Set<Integer> receiveChunkIdList(InputStream in) throws IOException {
+    private Set<Integer> receiveChunkIdList(LineCodec io) throws IOException {
         Set<Integer> ids = new HashSet<>();
-        String header = readLine(in); // "LIST n"
+        String header = io.readLine(); // "LIST n"
         if (header == null || !header.startsWith("LIST")) return ids;
-        String line;
-        while ((line = readLine(in)) != null) {
-            if ("END".equals(line)) break;
-            ids.add(Integer.parseInt(line.trim()));
+        while (io.nextLine() && !io.is("END")) {
+            ids.add(io.intField(0));
         }
         return ids;
     }
@@ -377,37 +450,6 @@ public class revisedClient {
         Files.write(path, data);
     }
 
-    private byte[] rawRead(InputStream in, int size) throws IOException {
-        byte[] buf = new byte[size];
-        int off = 0;
-        while (off < size) {
-            int r = in.read(buf, off, size - off);
-            if (r == -1) throw new EOFException("Unexpected EOF");
-            off += r;
-        }
-        return buf;
-    }
-
-    private static void sendLine(OutputStream out, String msg) throws IOException {
-        out.write((msg + "\n").getBytes("UTF-8"));
-        out.flush();
-    }
-
-    private static String readLine(InputStream in) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int ch;
-        while ((ch = in.read()) != -1) {
-            if (ch == '\n') break;
-            if (ch != '\r') {
-                sb.append((char) ch);
-            }
-        }
-        if (sb.length() == 0 && ch == -1) {
-            return null;
-        }
-        return sb.toString();
-    }
-
     private void writeSummaryFile() throws IOException {
         Path summary = chunkDir.resolve("summary.txt");
         try (BufferedWriter w = Files.newBufferedWriter(summary)) {
@@ -445,10 +487,15 @@ public class revisedClient {
     // param for terminal: java revisedClient <peerId> <trackerHost> <trackerPort> <uploadPort>
     //                            <downloadNeighborHost> <downloadNeighborPort>
     //                            <chunkDir> <initialChunksFromTracker>
+    //                            [threads=platform|virtual] [maxSessions=n]
     public static void main(String[] args) throws Exception {
+        List<String> rest = new ArrayList<>();
+        SessionExecutor uploadHandlers = SessionExecutor.fromArgs(args, rest, "UploadHandler");
+        args = rest.toArray(new String[0]);
         if (args.length != 8) {
             System.err.println("Usage: java revisedClient <peerId> <trackerHost> <trackerPort> <uploadPort> " +
-                    "<downloadNeighborHost> <downloadNeighborPort> <chunkDir> <initialChunksFromTracker>");
+                    "<downloadNeighborHost> <downloadNeighborPort> <chunkDir> <initialChunksFromTracker>" +
+                    " [threads=platform|virtual] [maxSessions=n]");
             System.exit(1);
         }
 
@@ -467,6 +514,7 @@ public class revisedClient {
                 uploadPort, downloadHost, downloadPort,
                 chunkDir, initialFromTracker
         );
+        client.setUploadHandlers(uploadHandlers);
         client.start();
     }
 